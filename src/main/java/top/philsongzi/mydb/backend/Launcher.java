@@ -30,11 +30,13 @@ public class Launcher {
         options.addOption("open", true, "-open DBPath");
         options.addOption("create", true, "-create DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("offheap", true, "-offheap 1GB");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options,args);
 
         if(cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+            long offHeap = cmd.hasOption("offheap") ? parseMem(cmd.getOptionValue("offheap")) : 0;
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")), offHeap);
             return;
         }
         if(cmd.hasOption("create")) {
@@ -53,11 +55,18 @@ public class Launcher {
         dm.close();
     }
 
-    private static void openDB(String path, long mem) {
+    private static void openDB(String path, long mem, long offHeap) {
         TransactionManager tm = TransactionManager.open(path);
-        DataManager dm = DataManager.open(path, mem, tm);
+        DataManager dm = DataManager.open(path, mem, offHeap, tm);
         VersionManager vm = new VersionManagerImpl(tm, dm);
-        TableManager tbm = TableManager.open(path, vm, dm);
+        final TableManager tbm = TableManager.open(path, vm, dm, mem);
+        // 正常退出时关闭非日志表的存储，下次启动才能保留其中的数据
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                tbm.close();
+            }
+        });
         new Server(port, tbm).start();
     }
 
@@ -1,7 +1,8 @@
 package top.philsongzi.mydb.backend.common;
 
 import java.util.HashMap;
-import java.util.Set;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -129,6 +130,31 @@ public abstract class AbstractCache<T> {
         }
     }
 
+    /**
+     * 资源当前的引用计数，不在缓存中时为 0
+     */
+    protected int references(long key) {
+        lock.lock();
+        try {
+            Integer ref = references.get(key);
+            return ref == null ? 0 : ref;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 缓存是否已经用掉了四分之三以上，后台的预读这时不再占用缓存，把空间留给前台
+     */
+    protected boolean almostFull() {
+        lock.lock();
+        try {
+            return maxResource > 0 && count * 4 >= maxResource * 3;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * close 方法 关闭缓存,写回所有资源
      */
@@ -136,12 +162,12 @@ public abstract class AbstractCache<T> {
         // 缓存应当还有以一个安全关闭的功能，在关闭时，需要将缓存中所有的资源强行回源。
         lock.lock();
         try {
-            Set<Long> keys = cache.keySet();
-            for (long key : keys) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
+            Iterator<Map.Entry<Long, T>> it = cache.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, T> e = it.next();
+                releaseForCache(e.getValue());
+                references.remove(e.getKey());
+                it.remove();
             }
         } finally {
             lock.unlock();
@@ -3,8 +3,17 @@ package top.philsongzi.mydb.backend.dm;
 import top.philsongzi.mydb.backend.dm.dataItem.DataItem;
 import top.philsongzi.mydb.backend.dm.logger.Logger;
 import top.philsongzi.mydb.backend.dm.page.PageOne;
+import top.philsongzi.mydb.backend.dm.pageCache.MemoryPageCache;
 import top.philsongzi.mydb.backend.dm.pageCache.PageCache;
+import top.philsongzi.mydb.backend.dm.pageCache.PageCacheImpl;
+import top.philsongzi.mydb.backend.dm.pageIndex.FreeSpaceMap;
 import top.philsongzi.mydb.backend.tm.TransactionManager;
+import top.philsongzi.mydb.backend.utils.Panic;
+import top.philsongzi.mydb.common.Error;
+
+import java.io.File;
+
+import java.util.List;
 
 /**
  * DataManager 接口
@@ -15,6 +24,38 @@ import top.philsongzi.mydb.backend.tm.TransactionManager;
 public interface DataManager {
     DataItem read(long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    void free(long uid) throws Exception;
+
+    /**
+     * 批量插入，返回与 datas 一一对应的 uid。默认逐条插入，DataManagerImpl 会把多条记录装进同一页
+     */
+    default long[] insertBatch(long xid, List<byte[]> datas) throws Exception {
+        long[] uids = new long[datas.size()];
+        for (int i = 0; i < uids.length; i++) {
+            uids[i] = insert(xid, datas.get(i));
+        }
+        return uids;
+    }
+
+    /**
+     * 批量导入，写入新分配的页。默认与 insertBatch 相同
+     */
+    default long[] load(long xid, List<byte[]> datas) throws Exception {
+        return insertBatch(xid, datas);
+    }
+
+    /**
+     * 预读提示：这些记录很快会被读取，它们所在的页可以提前异步读入。默认忽略
+     */
+    default void prefetch(List<Long> uids) {}
+
+    /**
+     * 打开时原有的数据是否已被清空：非日志存储在崩溃后、内存存储在每次启动时。
+     * 清空之后，上层保存在别处的 uid（例如索引的根节点）都已失效
+     */
+    default boolean wasReset() {
+        return false;
+    }
     void close();
 
     /**
@@ -29,7 +70,8 @@ public interface DataManager {
         PageCache pc = PageCache.create(path, mem);
         Logger lg = Logger.create(path);
 
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        FreeSpaceMap.remove(path);
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm, path);
         // 调用初始化方法：空文件创建首先需要对第一页进行初始化
         dm.initPageOne();
         return dm;
@@ -43,12 +85,21 @@ public interface DataManager {
      * @return DataManager
      */
     static DataManager open(String path, long mem, TransactionManager tm) {
+        return open(path, mem, 0, tm);
+    }
+
+    /**
+     * 打开已有文件创建 DataManager，并开启堆外页帧池
+     * @param offHeap 堆外页帧池的大小，0 表示不开启
+     */
+    static DataManager open(String path, long mem, long offHeap, TransactionManager tm) {
         // 创建 PageCache 和 Logger，用的 open 方法
-        PageCache pc = PageCache.open(path, mem);
+        PageCache pc = PageCache.open(path, mem, offHeap);
         Logger lg = Logger.open(path);
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm, path);
         // 调用 loadCheckPageOne 方法：对第一页进行校验，来判断是否需要执行恢复流程
-        if(!dm.loadCheckPageOne()) {
+        boolean recovered = !dm.loadCheckPageOne();
+        if(recovered) {
             Recover.recover(tm, lg, pc);
         }
         dm.fillPageIndex();
@@ -57,4 +108,47 @@ public interface DataManager {
 
         return dm;
     }
+
+    /**
+     * 打开（不存在时创建）非日志存储：数据写在 path.unlogged.db 中，不写日志。
+     * 上次没有正常关闭时，文件中的数据没有日志可以恢复，直接清空重建
+     */
+    static DataManager openUnlogged(String path, long mem) {
+        String storagePath = path + DataManagerImpl.UNLOGGED_SUFFIX;
+        File file = new File(storagePath + PageCacheImpl.DB_SUFFIX);
+        if(file.exists()) {
+            PageCache pc = PageCache.open(storagePath, mem);
+            // 不做恢复，不需要 TM
+            DataManagerImpl dm = new DataManagerImpl(pc, Logger.noop(), null, storagePath);
+            dm.uidTag = DataManagerImpl.UNLOGGED_TAG;
+            if(dm.loadCheckPageOne()) {
+                dm.fillPageIndex();
+                PageOne.setVcOpen(dm.pageOne);
+                dm.pageCache.flushPage(dm.pageOne);
+                return dm;
+            }
+            dm.pageOne.release();
+            pc.close();
+            if(!file.delete()) {
+                Panic.panic(Error.FileCannotRWException);
+            }
+        }
+        FreeSpaceMap.remove(storagePath);
+        DataManagerImpl dm = new DataManagerImpl(PageCache.create(storagePath, mem), Logger.noop(), null, storagePath);
+        dm.uidTag = DataManagerImpl.UNLOGGED_TAG;
+        dm.reset = true;
+        dm.initPageOne();
+        return dm;
+    }
+
+    /**
+     * 创建内存存储：页面只在内存中，最多占用 mem 字节，关闭后数据丢失
+     */
+    static DataManager openMemory(long mem) {
+        DataManagerImpl dm = new DataManagerImpl(new MemoryPageCache(mem), Logger.noop(), null, null);
+        dm.uidTag = DataManagerImpl.MEMORY_TAG;
+        dm.reset = true;
+        dm.initPageOne();
+        return dm;
+    }
 }
\ No newline at end of file
@@ -8,6 +8,7 @@ import top.philsongzi.mydb.backend.dm.page.Page;
 import top.philsongzi.mydb.backend.dm.page.PageOne;
 import top.philsongzi.mydb.backend.dm.page.PageX;
 import top.philsongzi.mydb.backend.dm.pageCache.PageCache;
+import top.philsongzi.mydb.backend.dm.pageIndex.FreeSpaceMap;
 import top.philsongzi.mydb.backend.dm.pageIndex.PageIndex;
 import top.philsongzi.mydb.backend.dm.pageIndex.PageInfo;
 import top.philsongzi.mydb.backend.tm.TransactionManager;
@@ -15,9 +16,15 @@ import top.philsongzi.mydb.backend.utils.Panic;
 import top.philsongzi.mydb.backend.utils.Types;
 import top.philsongzi.mydb.common.Error;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
  * DataManager 是 DM 层直接对外提供方法的类，同时，也实现成 DataItem 对象的缓存。
  * DataItem 存储的 key，是由页号和页内偏移组成的一个 8 字节无符号整数，页号和偏移各占 4 字节。
+ * 非日志存储和内存存储的 key 的高位带有 uidTag，解析页号之前先去掉。
  *
  * @author 小子松
  * @since 2023/8/7
@@ -29,13 +36,49 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     Logger logger;
     PageIndex pIndex;
     Page pageOne;
+    String path;
+    // 非日志存储、内存存储的 uid 带上各自的标记位，和主存储的 uid 不会重复（VM 的锁表按 uid 加锁）
+    long uidTag;
+    // 打开时原有数据是否被清空，见 DataManager.wasReset
+    boolean reset;
+
+    // 非日志存储的文件名后缀（在数据库路径之后），以及两种存储的 uid 标记位
+    static final String UNLOGGED_SUFFIX = ".unlogged";
+    static final long UNLOGGED_TAG = 1L << 62;
+    static final long MEMORY_TAG = 1L << 61;
+
+    // 页面上被释放的字节数超过这个值时做页内整理
+    static final int COMPACT_THRESHOLD = PageCache.PAGE_SIZE / 16;
+
+    // 日志每增长这么多字节做一次检查点，把 PageIndex 写出到 FreeSpaceMap
+    static final long CHECKPOINT_LOG_SIZE = 1 << 22;
+    private Lock checkpointLock;
+    // 上一次检查点时日志的末尾位置
+    private volatile long checkpointed;
+    private boolean closed;
+    // 打开时为重建 PageIndex 扫描的页数
+    int scannedPages;
 
-    public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
+    public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm, String path) {
         super(0);
+        this.path = path;
         this.pageCache = pc;
         this.logger = logger;
         this.tm = tm;
         this.pIndex = new PageIndex();
+        this.checkpointLock = new ReentrantLock();
+        this.checkpointed = logger.offset();
+        pc.setLogger(logger);
+        if(tm != null) {
+            // 同步提交和异步提交的刷盘都要先把日志刷盘，顺便看看是否需要检查点
+            tm.setLogFlush(new Runnable() {
+                @Override
+                public void run() {
+                    DataManagerImpl.this.logger.flush();
+                    checkpointIfNeeded();
+                }
+            });
+        }
     }
 
     /**
@@ -73,13 +116,223 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
             throw Error.DataTooLargeException;
         }
 
-        // 尝试获取可用页
+        PageInfo pageInfo = selectPage(raw.length);
+
+        Page page = null;
+        int freeSpace = 0;
+        try {
+            page = pageCache.getPage(pageInfo.pgno);
+            long[] uids = new long[1];
+            // 先做日志，再执行插入操作
+            insertRaw(xid, page, raw, new byte[][]{raw}, 0, 1, uids);
+            compactIfNeeded(page);
+            freeSpace = PageX.getFreeSpace(page);
+            page.release();
+            return uids[0];
+
+        } finally {
+            // 将取出的pg归还给pIndex，通常会留作当前线程下一次插入的页
+            pIndex.release(pageInfo.pgno, freeSpace);
+        }
+    }
+
+    /**
+     * 批量插入：尽可能多地把连续的记录装进同一页，每页只 pin 一次、只写一条插入日志。
+     * 同一页内的记录在页面上是连续存放的，因此一条插入日志的 Raw 部分可以直接是多个 DataItem 的拼接。
+     * @param xid xid
+     * @param datas 数据
+     * @return 与 datas 一一对应的 key
+     * @throws Exception 异常
+     */
+    @Override
+    public long[] insertBatch(long xid, List<byte[]> datas) throws Exception {
+        byte[][] raws = wrapDataItemRaws(datas);
+        long[] uids = new long[raws.length];
+        int i = 0;
+        while(i < raws.length) {
+            PageInfo pageInfo = selectPage(raws[i].length);
+            Page page = null;
+            try {
+                page = pageCache.getPage(pageInfo.pgno);
+                i = fillPage(xid, page, raws, i, uids);
+                compactIfNeeded(page);
+            } finally {
+                if(page != null) {
+                    pIndex.release(pageInfo.pgno, PageX.getFreeSpace(page));
+                    page.release();
+                } else {
+                    pIndex.release(pageInfo.pgno, 0);
+                }
+            }
+        }
+        return uids;
+    }
+
+    /**
+     * 批量导入：不经过 pageIndex 挑选旧页，而是直接创建新页并尽量填满，
+     * 每页只写一条覆盖整页数据的插入日志，相当于页面镜像。填完的页最后才加入 pageIndex。
+     */
+    @Override
+    public long[] load(long xid, List<byte[]> datas) throws Exception {
+        byte[][] raws = wrapDataItemRaws(datas);
+        long[] uids = new long[raws.length];
+        int i = 0;
+        while(i < raws.length) {
+            if(!pageCache.canGrow()) {
+                throw Error.StorageFullException;
+            }
+            int pgno = pageCache.newPage(PageX.initRaw());
+            Page page = pageCache.getPage(pgno);
+            try {
+                i = fillPage(xid, page, raws, i, uids);
+            } finally {
+                pIndex.add(pgno, PageX.getFreeSpace(page));
+                page.release();
+            }
+        }
+        return uids;
+    }
+
+    private byte[][] wrapDataItemRaws(List<byte[]> datas) throws Exception {
+        byte[][] raws = new byte[datas.size()][];
+        for (int i = 0; i < raws.length; i++) {
+            raws[i] = DataItem.wrapDataItemRaw(datas.get(i));
+            if(raws[i].length > PageX.MAX_FREE_SPACE) {
+                throw Error.DataTooLargeException;
+            }
+        }
+        return raws;
+    }
+
+    /**
+     * 从 raws[i] 开始，把能放下的记录连续写进 page，只写一条插入日志
+     * @return 下一条还未写入的记录下标
+     */
+    private int fillPage(long xid, Page page, byte[][] raws, int i, long[] uids) {
+        // 槽页上每条记录可能还需要一个新槽
+        int freeSpace = PageX.getRawFreeSpace(page);
+        int overhead = PageX.slotOverhead(page);
+        int j = i, size = 0;
+        while(j < raws.length && size + (j - i + 1) * overhead + raws[j].length <= freeSpace) {
+            size += raws[j].length;
+            j ++;
+        }
+        if(j == i) {
+            return i;
+        }
+        byte[] packed = new byte[size];
+        int pos = 0;
+        for (int k = i; k < j; k++) {
+            System.arraycopy(raws[k], 0, packed, pos, raws[k].length);
+            pos += raws[k].length;
+        }
+        insertRaw(xid, page, packed, raws, i, j, uids);
+        return j;
+    }
+
+    /**
+     * 写插入日志并把 packed（raws[i, j) 的拼接）插入页面，uids[i, j) 中填入每条记录的 uid。
+     * 槽页上 uid 的低位是槽号，旧的追加页上是页内偏移
+     */
+    private void insertRaw(long xid, Page page, byte[] packed, byte[][] raws, int i, int j, long[] uids) {
+        int pgno = page.getPageNumber();
+        if(!PageX.isSlotted(page)) {
+            logger.log(Recover.insertLog(xid, page, packed));
+            short offset = PageX.insert(page, packed);
+            for (int k = i; k < j; k++) {
+                uids[k] = Types.addressToUid(pgno, offset) | uidTag;
+                offset += raws[k].length;
+            }
+            return;
+        }
+        short[] slots = PageX.nextSlots(page, j - i);
+        short[] offsets = new short[j - i];
+        short offset = PageX.getFSO(page);
+        for (int k = i; k < j; k++) {
+            offsets[k - i] = offset;
+            offset += raws[k].length;
+        }
+        logger.log(Recover.slotInsertLog(xid, page, slots, offsets, packed));
+        PageX.insert(page, packed, slots, offsets);
+        for (int k = i; k < j; k++) {
+            uids[k] = Types.addressToUid(pgno, slots[k - i]) | uidTag;
+        }
+    }
+
+    /**
+     * 页面上被释放的空间足够多时做页内整理。整理会移动记录，只有在除了自己以外没有人引用这一页
+     * （没有缓存中的 DataItem）时才能进行；页锁保证整理期间其他线程无法通过槽解析出偏移
+     */
+    private void compactIfNeeded(Page page) {
+        if(!PageX.isSlotted(page) || PageX.getGarbage(page) < COMPACT_THRESHOLD) {
+            return;
+        }
+        page.lock();
+        try {
+            if(pageCache.pinCount(page.getPageNumber()) != 1) {
+                return;
+            }
+            PageX.compact(page);
+            logger.log(Recover.imageLog(page));
+        } finally {
+            page.unlock();
+        }
+    }
+
+    /**
+     * 按 uid 的顺序去掉重复的页号，交给页面缓存预读
+     */
+    @Override
+    public void prefetch(List<Long> uids) {
+        int[] pgnos = new int[uids.size()];
+        int n = 0;
+        for (Long uid : uids) {
+            int pgno = (int)((uid & ~uidTag) >>> 32);
+            if(n == 0 || pgnos[n - 1] != pgno) {
+                pgnos[n ++] = pgno;
+            }
+        }
+        pageCache.prefetch(Arrays.copyOf(pgnos, n));
+    }
+
+    /**
+     * 释放一条记录，它的槽可以被之后的插入复用，空间在下一次插入这一页时整理回收。
+     * 调用方需要保证不再有任何地方（包括索引）引用这个 uid。旧的追加页不支持释放
+     */
+    @Override
+    public void free(long uid) throws Exception {
+        short slot = (short)(uid & ((1L << 16) - 1));
+        int pgno = (int)((uid & ~uidTag) >>> 32);
+        Page page = pageCache.getPage(pgno);
+        try {
+            if(!PageX.isSlotted(page)) {
+                return;
+            }
+            page.lock();
+            try {
+                logger.log(Recover.freeLog(pgno, slot));
+                PageX.free(page, slot);
+            } finally {
+                page.unlock();
+            }
+        } finally {
+            page.release();
+        }
+    }
+
+    /**
+     * 从 pageIndex 中取出一个空闲空间足够的页，没有时创建新页
+     */
+    private PageInfo selectPage(int spaceSize) throws Exception {
         PageInfo pageInfo = null;
         for(int i = 0; i < 5; i ++) {
-            pageInfo = pIndex.select(raw.length);
+            pageInfo = pIndex.select(spaceSize);
             if (pageInfo != null) {
                 break;
             } else {
+                if(!pageCache.canGrow()) {
+                    throw Error.StorageFullException;
+                }
                 int newPgno = pageCache.newPage(PageX.initRaw());
                 pIndex.add(newPgno, PageX.MAX_FREE_SPACE);
             }
@@ -87,38 +340,69 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         if(pageInfo == null) {
             throw Error.DatabaseBusyException;
         }
+        return pageInfo;
+    }
 
-        Page page = null;
-        int freeSpace = 0;
+    /**
+     * 距离上一次检查点日志增长超过 CHECKPOINT_LOG_SIZE 时做一次检查点。在提交刷日志之后调用，此时不持有任何页面；
+     * 已经有线程在做检查点时直接返回
+     */
+    void checkpointIfNeeded() {
+        if(logger.offset() - checkpointed < CHECKPOINT_LOG_SIZE || !checkpointLock.tryLock()) {
+            return;
+        }
         try {
-            page = pageCache.getPage(pageInfo.pgno);
-            // 首先做日志
-            byte[] log = Recover.insertLog(xid, page, raw);
-            logger.log(log);
-
-            // 再执行插入操作，调用普通页面 PageX 的 insert 方法
-            short offset = PageX.insert(page, raw);
-
-            page.release();
-            return Types.addressToUid(pageInfo.pgno, offset);
-
+            if(logger.offset() - checkpointed >= CHECKPOINT_LOG_SIZE) {
+                checkpoint();
+            }
         } finally {
-            // 将取出的pg重新插入pIndex
-            if(page != null) {
-                pIndex.add(pageInfo.pgno, PageX.getFreeSpace(page));
-            } else {
-                pIndex.add(pageInfo.pgno, freeSpace);
+            checkpointLock.unlock();
+        }
+    }
+
+    /**
+     * 检查点：先记下日志的末尾位置并把日志刷盘，再写出 PageIndex。
+     * 这个位置之前的插入，要么已经归还给 PageIndex，要么页面还在插入中（记为 UNKNOWN），
+     * 崩溃后只需要重新扫描这个位置之后的日志涉及的页
+     */
+    void checkpoint() {
+        checkpointLock.lock();
+        try {
+            if(closed) {
+                return;
             }
+            long offset = logger.offset();
+            logger.flush();
+            FreeSpaceMap.save(path, pIndex, pageCache.getPageNumber(), offset);
+            checkpointed = offset;
+        } finally {
+            checkpointLock.unlock();
         }
     }
 
     /**
      * 关闭 DataManager 时，需要关闭 PageCache 和 Logger，同时，需要将第一页的字节校验写回文件。
+     * 在写第一页的字节校验之前最后写出一次 FreeSpaceMap，正常关闭后重新打开不需要扫描任何页。
      */
     @Override
     public void close() {
+        checkpointLock.lock();
+        try {
+            closed = true;
+        } finally {
+            checkpointLock.unlock();
+        }
         super.close();
+        long logOffset = logger.offset();
         logger.close();
+        if(tm != null) {
+            tm.setLogFlush(null);
+        }
+
+        // 内存存储没有文件
+        if(path != null) {
+            FreeSpaceMap.save(path, pIndex, pageCache.getPageNumber(), logOffset);
+        }
 
         PageOne.setVcClose(pageOne);  // 设置第一页的字节校验
         pageOne.release();
@@ -135,6 +419,11 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         logger.log(log);
     }
 
+    @Override
+    public boolean wasReset() {
+        return reset;
+    }
+
     public void releaseDataItem(DataItem di) {
         super.release(di.getUid());
     }
@@ -147,11 +436,14 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
      */
     @Override
     protected DataItem getForCache(long uid) throws Exception {
-        short offset = (short)(uid & ((1L << 16) - 1));
-        uid >>>= 32;
-        int pgno = (int)(uid & ((1L << 32) - 1));
+        short address = (short)(uid & ((1L << 16) - 1));
+        int pgno = (int)(((uid & ~uidTag) >>> 32) & ((1L << 32) - 1));
         Page pg = pageCache.getPage(pgno);
-        return DataItem.parseDataItem(pg, offset, this);
+        short offset = PageX.resolve(pg, address);
+        if(offset < 0) {
+            return DataItem.deadDataItem(pg, uid, this);
+        }
+        return DataItem.parseDataItem(pg, offset, uid, this);
     }
 
     /**
@@ -191,11 +483,32 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     }
 
     /**
-     * 初始化pageIndex，DataManager 被创建时，需要获取所有页面并填充 PageIndex
+     * 初始化pageIndex，DataManager 被打开时，需要获取所有页面的空闲空间并填充 PageIndex。
+     * 先从 FreeSpaceMap 读出每页的区间，只扫描 FSM 之后的日志涉及的页（恢复也只改动这些页）、
+     * 区间未知的页和 FSM 之后新增的页；FSM 不可用时扫描所有页
      */
     void fillPageIndex() {
         int pageNumber = pageCache.getPageNumber();
+        byte[] classes = new byte[pageNumber];
+        Arrays.fill(classes, FreeSpaceMap.UNKNOWN);
+        long offset = FreeSpaceMap.load(path, classes);
+        if(offset > logger.offset()) {
+            // 日志比检查点时还短，FSM 不可信
+            Arrays.fill(classes, FreeSpaceMap.UNKNOWN);
+        } else if(offset >= 0) {
+            for (int pgno : Recover.touchedPages(logger, offset)) {
+                if(pgno >= 1 && pgno <= pageNumber) {
+                    classes[pgno-1] = FreeSpaceMap.UNKNOWN;
+                }
+            }
+        }
+        scannedPages = 0;
+        // 第一页是 PageOne，不参与空闲空间管理
         for(int i = 2; i <= pageNumber; i ++) {
+            if(classes[i-1] != FreeSpaceMap.UNKNOWN) {
+                pIndex.add(i, FreeSpaceMap.freeSpace(classes[i-1]));
+                continue;
+            }
             Page pg = null;
             try {
                 pg = pageCache.getPage(i);
@@ -206,6 +519,7 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
             pIndex.add(pg.getPageNumber(), PageX.getFreeSpace(pg));
             // 用完 Page 之后 release，避免撑爆缓存
             pg.release();
+            scannedPages ++;
         }
     }
 
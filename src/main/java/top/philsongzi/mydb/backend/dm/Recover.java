@@ -28,13 +28,27 @@ import java.util.*;
  */
 public class Recover {
 
-    // 两种日志的格式——
+    // 日志的格式——
     // updateLog:
     // [LogType] [XID] [UID] [OldRaw] [NewRaw]
-    // insertLog:
+    // deltaLog（只记录变化的字节，改动很小时代替 updateLog）:
+    // [LogType] [XID] [UID] [Count] ([Offset] [Length] [OldBytes] [NewBytes]) * Count
+    // Offset 是相对于 dataitem 开头的偏移
+    // insertLog（旧的追加页）:
     // [LogType] [XID] [Pgno] [Offset] [Raw]
+    // 批量插入时 Raw 是同一页上连续存放的多个 dataitem
+    // slotInsertLog（槽页）:
+    // [LogType] [XID] [Pgno] [Count] [Slot Offset] * Count [Raw]
+    // imageLog（页内整理之后的整页镜像，与事务无关，XID 为 0）:
+    // [LogType] [XID] [Pgno] [Image]
+    // freeLog（释放一个槽，与事务无关，XID 为 0）:
+    // [LogType] [XID] [Pgno] [Slot]
     private static final byte LOG_TYPE_INSERT = 0;
     private static final byte LOG_TYPE_UPDATE = 1;
+    private static final byte LOG_TYPE_SLOT_INSERT = 2;
+    private static final byte LOG_TYPE_IMAGE = 3;
+    private static final byte LOG_TYPE_FREE = 4;
+    private static final byte LOG_TYPE_DELTA = 5;
 
     private static final int REDO = 0;
     private static final int UNDO = 1;
@@ -68,14 +82,7 @@ public class Recover {
         while(true) {
             byte[] log = lg.next();
             if(log == null) break;
-            int pgno;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                pgno = li.pgno;
-            } else {
-                UpdateLogInfo li = parseUpdateLog(log);
-                pgno = li.pgno;
-            }
+            int pgno = parsePgno(log);
             if(pgno > maxPgno) {
                 maxPgno = pgno;
             }
@@ -106,18 +113,9 @@ public class Recover {
         while(true) {
             byte[] log = lg.next();
             if(log == null) break;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if(!tm.isActive(xid)) {
-                    doInsertLog(pc, log, REDO);
-                }
-            } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if(!tm.isActive(xid)) {
-                    doUpdateLog(pc, log, REDO);
-                }
+            // 页面镜像和释放槽与事务无关，总是重做
+            if(!isTransactional(log) || !tm.isActive(parseXid(log))) {
+                doLog(pc, log, REDO);
             }
         }
     }
@@ -134,24 +132,15 @@ public class Recover {
         while(true) {
             byte[] log = lg.next();
             if(log == null) break;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if(tm.isActive(xid)) {
-                    if(!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
-                }
-            } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if(tm.isActive(xid)) {
-                    if(!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
+            if(!isTransactional(log)) {
+                continue;
+            }
+            long xid = parseXid(log);
+            if(tm.isActive(xid)) {
+                if(!logCache.containsKey(xid)) {
+                    logCache.put(xid, new ArrayList<>());
                 }
+                logCache.get(xid).add(log);
             }
         }
 
@@ -159,19 +148,76 @@ public class Recover {
         for(Map.Entry<Long, List<byte[]>> entry : logCache.entrySet()) {
             List<byte[]> logs = entry.getValue();
             for (int i = logs.size()-1; i >= 0; i --) {
-                byte[] log = logs.get(i);
-                if(isInsertLog(log)) {
-                    doInsertLog(pc, log, UNDO);
-                } else {
-                    doUpdateLog(pc, log, UNDO);
-                }
+                doLog(pc, logs.get(i), UNDO);
             }
             tm.abort(entry.getKey());
         }
     }
 
-    private static boolean isInsertLog(byte[] log) {
-        return log[0] == LOG_TYPE_INSERT;
+    /**
+     * 从 offset 处开始的日志涉及的页号
+     * @param lg 日志 logger
+     * @param offset 日志位置
+     * @return 页号集合
+     */
+    public static Set<Integer> touchedPages(Logger lg, long offset) {
+        Set<Integer> pages = new HashSet<>();
+        lg.seek(offset);
+        while(true) {
+            byte[] log = lg.next();
+            if(log == null) break;
+            pages.add(parsePgno(log));
+        }
+        return pages;
+    }
+
+    private static boolean isTransactional(byte[] log) {
+        return log[OF_TYPE] != LOG_TYPE_IMAGE && log[OF_TYPE] != LOG_TYPE_FREE;
+    }
+
+    private static long parseXid(byte[] log) {
+        return Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_XID+8));
+    }
+
+    private static int parsePgno(byte[] log) {
+        if(log[OF_TYPE] == LOG_TYPE_UPDATE || log[OF_TYPE] == LOG_TYPE_DELTA) {
+            return (int)(Parser.parseLong(log, OF_UPDATE_UID) >>> 32);
+        }
+        // 其余日志的 Pgno 都紧跟在 XID 之后
+        return Parser.parseInt(log, OF_INSERT_PGNO);
+    }
+
+    private static void doLog(PageCache pc, byte[] log, int flag) {
+        switch(log[OF_TYPE]) {
+            case LOG_TYPE_INSERT:
+                doInsertLog(pc, log, flag);
+                break;
+            case LOG_TYPE_UPDATE:
+                doUpdateLog(pc, log, flag);
+                break;
+            case LOG_TYPE_DELTA:
+                doDeltaLog(pc, log, flag);
+                break;
+            case LOG_TYPE_SLOT_INSERT:
+                doSlotInsertLog(pc, log, flag);
+                break;
+            case LOG_TYPE_IMAGE:
+                doImageLog(pc, log);
+                break;
+            case LOG_TYPE_FREE:
+                doFreeLog(pc, log);
+                break;
+        }
+    }
+
+    private static Page getPage(PageCache pc, int pgno) {
+        Page pg = null;
+        try {
+            pg = pc.getPage(pgno);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        return pg;
     }
 
     // updateLog： [LogType] [XID] [UID] [OldRaw] [NewRaw]
@@ -180,16 +226,105 @@ public class Recover {
     private static final int OF_UPDATE_UID = OF_XID+8;
     private static final int OF_UPDATE_RAW = OF_UPDATE_UID+8;
 
+    /**
+     * 为 dataitem 的一次修改生成日志：比较前像和修改后的数据，只改动了少量字节（例如 setXmax 只改 8 字节）时
+     * 生成只记录变化区间的 deltaLog，否则生成记录完整前后像的 updateLog
+     */
     public static byte[] updateLog(long xid, DataItem di) {
+        byte[] oldRaw = di.getOldRaw();
+        SubArray raw = di.getRaw();
+        byte[] delta = deltaLog(xid, di.getUid(), oldRaw, raw.raw, raw.start);
+        if(delta != null) {
+            return delta;
+        }
         byte[] logType = {LOG_TYPE_UPDATE};
         byte[] xidRaw = Parser.long2Byte(xid);
         byte[] uidRaw = Parser.long2Byte(di.getUid());
-        byte[] oldRaw = di.getOldRaw();
-        SubArray raw = di.getRaw();
         byte[] newRaw = Arrays.copyOfRange(raw.raw, raw.start, raw.end);
         return Bytes.concat(logType, xidRaw, uidRaw, oldRaw, newRaw);
     }
 
+    // deltaLog：[LogType] [XID] [UID] [Count] ([Offset] [Length] [OldBytes] [NewBytes]) * Count
+    private static final int OF_DELTA_COUNT = OF_UPDATE_RAW;
+    private static final int OF_DELTA_RANGES = OF_DELTA_COUNT+2;
+    private static final int DELTA_RANGE_HEADER = 4;
+    // 两个变化区间之间相同的字节不超过这个数时合并成一个区间，比多一个区间头更省
+    private static final int DELTA_MERGE_GAP = DELTA_RANGE_HEADER / 2;
+
+    /**
+     * 比较 oldRaw 和 buf 中 start 开始的新数据，生成 deltaLog；不比 updateLog 短时返回 null
+     */
+    static byte[] deltaLog(long xid, long uid, byte[] oldRaw, byte[] buf, int start) {
+        int length = oldRaw.length;
+        // 先找出所有变化区间 [from, to)
+        int[] ranges = new int[8];
+        int count = 0;
+        int size = OF_DELTA_RANGES;
+        int i = 0;
+        while(i < length) {
+            if(oldRaw[i] == buf[start + i]) {
+                i ++;
+                continue;
+            }
+            int from = i;
+            int to = i + 1;
+            int j = to;
+            while(j < length && j - to <= DELTA_MERGE_GAP) {
+                if(oldRaw[j] != buf[start + j]) {
+                    to = j + 1;
+                }
+                j ++;
+            }
+            if(count * 2 == ranges.length) {
+                ranges = Arrays.copyOf(ranges, ranges.length * 2);
+            }
+            ranges[count * 2] = from;
+            ranges[count * 2 + 1] = to;
+            count ++;
+            size += DELTA_RANGE_HEADER + 2 * (to - from);
+            if(size >= OF_UPDATE_RAW + 2 * length) {
+                return null;
+            }
+            i = to;
+        }
+
+        byte[] log = new byte[size];
+        log[OF_TYPE] = LOG_TYPE_DELTA;
+        Parser.putLong(log, OF_XID, xid);
+        Parser.putLong(log, OF_UPDATE_UID, uid);
+        Parser.putShort(log, OF_DELTA_COUNT, (short) count);
+        int pos = OF_DELTA_RANGES;
+        for (int k = 0; k < count; k++) {
+            int from = ranges[k * 2];
+            int n = ranges[k * 2 + 1] - from;
+            Parser.putShort(log, pos, (short) from);
+            Parser.putShort(log, pos + 2, (short) n);
+            System.arraycopy(oldRaw, from, log, pos + DELTA_RANGE_HEADER, n);
+            System.arraycopy(buf, start + from, log, pos + DELTA_RANGE_HEADER + n, n);
+            pos += DELTA_RANGE_HEADER + 2 * n;
+        }
+        return log;
+    }
+
+    private static void doDeltaLog(PageCache pc, byte[] log, int flag) {
+        long uid = Parser.parseLong(log, OF_UPDATE_UID);
+        short address = (short)(uid & ((1L << 16) - 1));
+        Page pg = getPage(pc, (int)(uid >>> 32));
+        try {
+            int count = Parser.parseShort(log, OF_DELTA_COUNT);
+            int pos = OF_DELTA_RANGES;
+            for (int k = 0; k < count; k++) {
+                int at = Parser.parseShort(log, pos);
+                int n = Parser.parseShort(log, pos + 2);
+                int src = pos + DELTA_RANGE_HEADER + (flag == REDO ? n : 0);
+                PageX.recoverUpdate(pg, address, at, log, src, n);
+                pos += DELTA_RANGE_HEADER + 2 * n;
+            }
+        } finally {
+            pg.release();
+        }
+    }
+
     private static UpdateLogInfo parseUpdateLog(byte[] log) {
         UpdateLogInfo li = new UpdateLogInfo();
         li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
@@ -283,4 +418,88 @@ public class Recover {
             pg.release();
         }
     }
-}
\ No newline at end of file
+
+    // slotInsertLog：[LogType] [XID] [Pgno] [Count] [Slot Offset] * Count [Raw]
+    private static final int OF_SLOT_COUNT = OF_INSERT_PGNO+4;
+    private static final int OF_SLOTS = OF_SLOT_COUNT+2;
+
+    public static byte[] slotInsertLog(long xid, Page pg, short[] slots, short[] offsets, byte[] raw) {
+        byte[] log = new byte[OF_SLOTS + slots.length * 4 + raw.length];
+        log[OF_TYPE] = LOG_TYPE_SLOT_INSERT;
+        Parser.putLong(log, OF_XID, xid);
+        Parser.putInt(log, OF_INSERT_PGNO, pg.getPageNumber());
+        Parser.putShort(log, OF_SLOT_COUNT, (short) slots.length);
+        int pos = OF_SLOTS;
+        for (int i = 0; i < slots.length; i++) {
+            Parser.putShort(log, pos, slots[i]);
+            Parser.putShort(log, pos+2, offsets[i]);
+            pos += 4;
+        }
+        System.arraycopy(raw, 0, log, pos, raw.length);
+        return log;
+    }
+
+    private static void doSlotInsertLog(PageCache pc, byte[] log, int flag) {
+        int count = Parser.parseShort(log, OF_SLOT_COUNT);
+        short[] slots = new short[count];
+        short[] offsets = new short[count];
+        int pos = OF_SLOTS;
+        for (int i = 0; i < count; i++) {
+            slots[i] = Parser.parseShort(log, pos);
+            offsets[i] = Parser.parseShort(log, pos+2);
+            pos += 4;
+        }
+        Page pg = getPage(pc, Parser.parseInt(log, OF_INSERT_PGNO));
+        try {
+            if(flag == REDO) {
+                PageX.insert(pg, Arrays.copyOfRange(log, pos, log.length), slots, offsets);
+            } else {
+                // 记录可能已经被整理移动过，通过槽找到它现在的位置再标记为无效
+                PageX.recoverInvalidate(pg, slots);
+            }
+        } finally {
+            pg.release();
+        }
+    }
+
+    // imageLog：[LogType] [XID] [Pgno] [Image]
+    private static final int OF_IMAGE = OF_INSERT_PGNO+4;
+
+    public static byte[] imageLog(Page pg) {
+        byte[] image = pg.getData();
+        byte[] log = new byte[OF_IMAGE + image.length];
+        log[OF_TYPE] = LOG_TYPE_IMAGE;
+        Parser.putInt(log, OF_INSERT_PGNO, pg.getPageNumber());
+        System.arraycopy(image, 0, log, OF_IMAGE, image.length);
+        return log;
+    }
+
+    private static void doImageLog(PageCache pc, byte[] log) {
+        Page pg = getPage(pc, Parser.parseInt(log, OF_INSERT_PGNO));
+        try {
+            PageX.recoverImage(pg, Arrays.copyOfRange(log, OF_IMAGE, log.length));
+        } finally {
+            pg.release();
+        }
+    }
+
+    // freeLog：[LogType] [XID] [Pgno] [Slot]
+    private static final int OF_FREE_SLOT = OF_INSERT_PGNO+4;
+
+    public static byte[] freeLog(int pgno, short slot) {
+        byte[] log = new byte[OF_FREE_SLOT + 2];
+        log[OF_TYPE] = LOG_TYPE_FREE;
+        Parser.putInt(log, OF_INSERT_PGNO, pgno);
+        Parser.putShort(log, OF_FREE_SLOT, slot);
+        return log;
+    }
+
+    private static void doFreeLog(PageCache pc, byte[] log) {
+        Page pg = getPage(pc, Parser.parseInt(log, OF_INSERT_PGNO));
+        try {
+            PageX.free(pg, Parser.parseShort(log, OF_FREE_SLOT));
+        } finally {
+            pg.release();
+        }
+    }
+}
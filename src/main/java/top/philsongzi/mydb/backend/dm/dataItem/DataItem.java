@@ -5,9 +5,6 @@ import top.philsongzi.mydb.backend.common.SubArray;
 import top.philsongzi.mydb.backend.dm.DataManagerImpl;
 import top.philsongzi.mydb.backend.dm.page.Page;
 import top.philsongzi.mydb.backend.utils.Parser;
-import top.philsongzi.mydb.backend.utils.Types;
-
-import java.util.Arrays;
 
 /**
  * DataItem 是 DM 层向上层提供的数据抽象。上层模块通过地址，向 DM 请求到对应的 DataItem，再获取到其中的数据。
@@ -39,16 +36,33 @@ public interface DataItem {
         return Bytes.concat(valid, size, raw);
     }
 
-    // 从页面的 offset 处解析出 dataitem
-    static DataItem parseDataItem(Page pg, short offset, DataManagerImpl dm) {
+    // 从页面的 offset 处解析出 dataitem，槽页上 uid 中保存的是槽号而不是 offset
+    static DataItem parseDataItem(Page pg, short offset, long uid, DataManagerImpl dm) {
         byte[] raw = pg.getData();
-        short size = Parser.parseShort(Arrays.copyOfRange(raw, offset+DataItemImpl.OF_SIZE, offset+DataItemImpl.OF_DATA));
+        short size = Parser.parseShort(raw, offset+DataItemImpl.OF_SIZE);
         short length = (short)(size + DataItemImpl.OF_DATA);
-        long uid = Types.addressToUid(pg.getPageNumber(), offset);
-        return new DataItemImpl(new SubArray(raw, offset, offset+length), new byte[length], pg, uid, dm);
+        return new DataItemImpl(new SubArray(raw, offset, offset+length), null, pg, uid, dm);
     }
 
-    static void setDataItemRawInvalid(byte[] raw) {
+    // 槽为空或者记录已经被整理掉时，返回一个无效的 dataitem，读取方会把它当作不存在
+    static DataItem deadDataItem(Page pg, long uid, DataManagerImpl dm) {
+        byte[] raw = wrapDataItemRaw(new byte[0]);
         raw[DataItemImpl.OF_VALID] = (byte)1;
+        return new DataItemImpl(new SubArray(raw, 0, raw.length), null, pg, uid, dm);
+    }
+
+    // 把单个 dataitem 标记为无效，需要在 before() 和 after() 之间调用
+    static void setDataItemInvalid(SubArray raw) {
+        raw.raw[raw.start+DataItemImpl.OF_VALID] = (byte)1;
+    }
+
+    // raw 中可能是多个连续存放的 dataitem（批量插入），逐个标记为无效
+    static void setDataItemRawInvalid(byte[] raw) {
+        int pos = 0;
+        while(pos < raw.length) {
+            raw[pos+DataItemImpl.OF_VALID] = (byte)1;
+            short size = Parser.parseShort(raw, pos+DataItemImpl.OF_SIZE);
+            pos += size + DataItemImpl.OF_DATA;
+        }
     }
 }
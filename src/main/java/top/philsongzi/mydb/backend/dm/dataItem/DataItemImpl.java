@@ -25,6 +25,9 @@ public class DataItemImpl implements DataItem {
 
     // 共享内存数组，该数组的结构包含：原始数据、开始位置、结束位置
     private SubArray raw;
+    // Data 部分在页面上的视图，DataItem 的位置不变，创建时算好即可
+    private SubArray data;
+    // 前像只有在修改时才需要，第一次 before() 时才分配，只读的 DataItem 不分配
     private byte[] oldRaw;
     // 读写锁
     private Lock rLock;
@@ -36,6 +39,7 @@ public class DataItemImpl implements DataItem {
 
     public DataItemImpl(SubArray raw, byte[] oldRaw, Page pg, long uid, DataManagerImpl dm) {
         this.raw = raw;
+        this.data = new SubArray(raw.raw, raw.start+OF_DATA, raw.end);
         this.oldRaw = oldRaw;
         ReadWriteLock lock = new ReentrantReadWriteLock();
         rLock = lock.readLock();
@@ -52,11 +56,12 @@ public class DataItemImpl implements DataItem {
 
     /**
      * 获取 DataItem 中的数据。该方法返回的数组是数据共享的，而不是拷贝实现的，所以使用了 SubArray。
+     * 调用方不应修改返回的 SubArray 本身（start、end）。
      * @return SubArray
      */
     @Override
     public SubArray data() {
-        return new SubArray(raw.raw, raw.start+OF_DATA, raw.end);
+        return data;
     }
 
     // 上层模块对 DataItem 进行修改时，需遵循的流程：
@@ -71,6 +76,9 @@ public class DataItemImpl implements DataItem {
     public void before() {
         wLock.lock();
         pg.setDirty(true);
+        if(oldRaw == null) {
+            oldRaw = new byte[raw.end - raw.start];
+        }
         System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
     }
 
@@ -20,11 +20,22 @@ public interface Logger {
 
     // 定义的方法：日志文件的写入、截断、读取、回溯、关闭
     void log(byte[] data);
+    // 把已写入的日志刷盘。log 只写不刷，提交和页面写回之前调用它
+    void flush();
     void truncate(long x) throws Exception;
     byte[] next();
     void rewind();
+    // 从 offset 处开始读，offset 是之前某一时刻 offset() 的返回值
+    void seek(long offset);
+    // 已写入日志的末尾位置，只随本对象的 log 增长
+    long offset();
     void close();
 
+    // 不写日志，见 NoopLogger
+    static Logger noop() {
+        return new NoopLogger();
+    }
+
     // 单例模式创建日志文件
     static Logger create(String path) {
         File f = new File(path+LoggerImpl.LOG_SUFFIX);
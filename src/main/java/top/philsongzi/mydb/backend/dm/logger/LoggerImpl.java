@@ -21,6 +21,12 @@ import java.util.concurrent.locks.ReentrantLock;
  * BadTail: 日志文件的尾部，可能是不完整的日志，需要移除（不一定存在）。
  * 单条日志的内容：[Size][Checksum][Data]
  * 其中，Size 是一个四字节整数，标识了 Data 段的字节数。Checksum 则是该条日志的校验和。
+ *
+ * log 只把日志追加到文件，XChecksum 只在内存中累计，不刷盘；flush 才 force，多条日志共用一次刷盘。
+ * 同步提交、后台刷盘线程和页面写回在各自落盘之前调用 flush（先写日志）。
+ * force 先让日志落盘，再写入 XChecksum 并再刷一次，磁盘上的 XChecksum 不会覆盖还没有落盘的日志。
+ * 打开时截断到校验和与 XChecksum 相符的最后一条日志为止；没有相符的前缀时（XChecksum 领先于日志，
+ * 比如旧版本写出的文件），保留所有完整的日志，并把 XChecksum 改成与它们相符。
  * @author 小子松
  * @since 2023/8/7
  */
@@ -42,6 +48,12 @@ public class LoggerImpl implements Logger {
     private long position;  // 当前日志指针的位置
     private long fileSize;  // 初始化时记录，log操作不更新
     private int xChecksum;
+    // 有写入但还没有刷盘的日志
+    private boolean unforced;
+    // 已写入日志的末尾位置
+    private long end;
+    private boolean closed;
+    private long forces;
 
     LoggerImpl(RandomAccessFile raf, FileChannel fc) {
         this.file = raf;
@@ -53,6 +65,7 @@ public class LoggerImpl implements Logger {
         this.file = raf;
         this.fc = fc;
         this.xChecksum = xChecksum;
+        this.end = 4;
         lock = new ReentrantLock();
     }
 
@@ -90,15 +103,24 @@ public class LoggerImpl implements Logger {
     private void checkAndRemoveTail() {
         rewind();
 
+        // XChecksum 和日志不是一起刷盘的，取累计校验和等于 XChecksum 的最长前缀
         int xCheck = 0;
+        long valid = xCheck == xChecksum ? position : -1;
         while(true) {
             byte[] log = internNext();
             if(log == null) {break;}
             xCheck = calChecksum(xCheck, log);
+            if(xCheck == xChecksum) {
+                valid = position;
+            }
         }
-        if(xCheck != xChecksum) {
-            Panic.panic(Error.BadLogFileException);
+        if(valid < 0) {
+            // XChecksum 覆盖了没有写到磁盘上的日志，保留所有完整的日志
+            valid = position;
+            xChecksum = xCheck;
+            writeXChecksum();
         }
+        position = valid;
 
         try {
             // 截断日志文件到最后一个完整的日志
@@ -106,6 +128,8 @@ public class LoggerImpl implements Logger {
         } catch (Exception e) {
             Panic.panic(e);
         }
+        fileSize = position;
+        end = position;
         try {
             file.seek(position);
         } catch (IOException e) {
@@ -139,30 +163,66 @@ public class LoggerImpl implements Logger {
             // 定位到日志文件的末尾、追加日志
             fc.position(fc.size());
             fc.write(buf);
+            // 累计日志文件的校验和，必须和追加在同一个临界区内，否则并发写入时校验和与文件内容对不上
+            xChecksum = calChecksum(xChecksum, log);
+            end += log.length;
+            unforced = true;
         } catch(IOException e) {
             Panic.panic(e);
         } finally {
             lock.unlock();
         }
-        // 更新日志文件的校验和
-        updateXChecksum(log);
     }
 
     /**
-     * 更新日志文件的校验和
-     * @param log 日志
+     * 把内存中的校验和写入文件头并刷盘
      */
-    private void updateXChecksum(byte[] log) {
-        this.xChecksum = calChecksum(this.xChecksum, log);
+    private void writeXChecksum() {
         try {
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)));
+            fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)), 0);
             fc.force(false);
         } catch(IOException e) {
             Panic.panic(e);
         }
     }
 
+    @Override
+    public void flush() {
+        lock.lock();
+        try {
+            force();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 需要持有 lock。日志落盘之后才写 XChecksum
+    private void force() {
+        if(closed || !unforced) {
+            return;
+        }
+        try {
+            fc.force(false);
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        writeXChecksum();
+        unforced = false;
+        forces ++;
+    }
+
+    /**
+     * 到目前为止日志文件刷盘的次数
+     */
+    public long forceCount() {
+        lock.lock();
+        try {
+            return forces;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * 包装日志：添加日志的大小和校验和
      * @param data 日志
@@ -255,13 +315,33 @@ public class LoggerImpl implements Logger {
         position = 4;
     }
 
+    @Override
+    public void seek(long offset) {
+        position = Math.max(offset, 4);
+    }
+
+    @Override
+    public long offset() {
+        lock.lock();
+        try {
+            return end;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public void close() {
+        lock.lock();
         try {
+            force();
+            closed = true;
             fc.close();
             file.close();
         } catch(IOException e) {
             Panic.panic(e);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -0,0 +1,45 @@
+package top.philsongzi.mydb.backend.dm.logger;
+
+/**
+ * 不写日志的 Logger，用于非日志表（unlogged）和内存表的存储：
+ * 这些存储崩溃后直接清空，不需要恢复，日志只会拖慢写入
+ *
+ * @author 小子松
+ * @since 2026/10/19
+ */
+class NoopLogger implements Logger {
+
+    @Override
+    public void log(byte[] data) {
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void truncate(long x) {
+    }
+
+    @Override
+    public void seek(long offset) {
+    }
+
+    @Override
+    public long offset() {
+        return 0;
+    }
+
+    @Override
+    public byte[] next() {
+        return null;
+    }
+
+    @Override
+    public void rewind() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -11,6 +11,14 @@ import java.util.Arrays;
  * [FreeSpaceOffset] [Data]
  * FreeSpaceOffset: 2字节 空闲位置开始偏移
  *
+ * 新建的页使用槽页格式，FSO 的最高位为 1 表示槽页：
+ * [FreeSpaceOffset] [SlotCount] [FreeSlots] [Garbage] [Data ...] [空闲] [... Slot1] [Slot0]
+ * 槽目录从页尾向前增长，每个槽 2 字节，保存记录在页内的偏移；FREE 表示空槽，可以被之后的插入复用，
+ * DEAD 表示记录已经被整理掉了，这个地址永远读不到数据（索引中可能还留有指向它的 uid，所以不能复用）。
+ * 槽页上的 uid 由页号和槽号组成，记录在页内的移动（整理）只需要改槽目录，uid 不变。
+ * Garbage 是被 free 掉的记录占用的字节数，超过阈值后由 DM 在页面没有其他引用时整理。
+ * 旧的追加页仍然按原来的方式读写，uid 中保存的是页内偏移。
+ *
  * @author 小子松
  * @since 2023/8/6
  */
@@ -20,16 +28,40 @@ public class PageX {
     // 对普通页的管理，基本都是围绕着对 FSO（Free Space Offset）进行的
     private static final short OF_FREE = 0;
     private static final short OF_DATA = 2;
-    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
+
+    // 槽页
+    private static final int SLOTTED_FLAG = 0x8000;
+    private static final short OF_SLOT_COUNT = 2;
+    private static final short OF_FREE_SLOTS = 4;
+    private static final short OF_GARBAGE = 6;
+    private static final short OF_SLOTTED_DATA = 8;
+    public static final int SLOT_SIZE = 2;
+    public static final short SLOT_FREE = 0;
+    public static final short SLOT_DEAD = 1;
+
+    // 页内的记录是 DataItem：[ValidFlag 1][DataSize 2][Data]，整理时需要知道记录的长度和是否有效
+    private static final int ITEM_OF_VALID = 0;
+    private static final int ITEM_OF_SIZE = 1;
+    private static final int ITEM_OF_DATA = 3;
+
+    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_SLOTTED_DATA - SLOT_SIZE;
 
     public static byte[] initRaw() {
         byte[] raw = new byte[PageCache.PAGE_SIZE];
-        setFSO(raw, OF_DATA);
+        setFSO(raw, OF_SLOTTED_DATA);
+        raw[OF_FREE] |= (byte) (SLOTTED_FLAG >>> 8);
         return raw;
     }
 
+    public static boolean isSlotted(Page pg) {
+        return isSlotted(pg.getData());
+    }
+    private static boolean isSlotted(byte[] raw) {
+        return (raw[OF_FREE] & 0x80) != 0;
+    }
+
     /**
-     * 将raw插入pg中，返回插入位置
+     * 将raw插入pg中，返回插入位置。只用于旧的追加页
      * @param pg 页面
      * @param raw 数据
      * @return 插入位置
@@ -48,7 +80,11 @@ public class PageX {
      * @param ofData 数据偏移
      */
     private static void setFSO(byte[] raw, short ofData) {
+        boolean slotted = isSlotted(raw);
         System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);
+        if(slotted) {
+            raw[OF_FREE] |= (byte) (SLOTTED_FLAG >>> 8);
+        }
     }
 
     // 获取pg的FSO
@@ -56,12 +92,209 @@ public class PageX {
         return getFSO(pg.getData());
     }
     private static short getFSO(byte[] raw) {
-        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
+        return (short) (Parser.parseShort(raw, OF_FREE) & ~SLOTTED_FLAG);
     }
 
-    // 获取页面的空闲空间大小
+    // 获取页面的空闲空间大小：槽页上没有空槽可复用时，还要留出一个新槽的位置
     public static int getFreeSpace(Page pg) {
-        return PageCache.PAGE_SIZE - (int)getFSO(pg.getData());
+        byte[] raw = pg.getData();
+        if(!isSlotted(raw)) {
+            return PageCache.PAGE_SIZE - (int)getFSO(raw);
+        }
+        int free = getRawFreeSpace(raw);
+        if(Parser.parseShort(raw, OF_FREE_SLOTS) == 0) {
+            free -= SLOT_SIZE;
+        }
+        return Math.max(free, 0);
+    }
+
+    /**
+     * 数据区和槽目录之间连续的空闲字节数
+     */
+    public static int getRawFreeSpace(Page pg) {
+        return getRawFreeSpace(pg.getData());
+    }
+    private static int getRawFreeSpace(byte[] raw) {
+        if(!isSlotted(raw)) {
+            return PageCache.PAGE_SIZE - (int)getFSO(raw);
+        }
+        return PageCache.PAGE_SIZE - SLOT_SIZE * getSlotCount(raw) - getFSO(raw);
+    }
+
+    /**
+     * 每条记录除了自身之外额外占用的空间，槽页上最多是一个新槽
+     */
+    public static int slotOverhead(Page pg) {
+        return isSlotted(pg) ? SLOT_SIZE : 0;
+    }
+
+    public static int getGarbage(Page pg) {
+        return Parser.parseShort(pg.getData(), OF_GARBAGE);
+    }
+
+    /**
+     * 为 n 条新记录挑选槽号：先复用空槽，再在槽目录末尾追加。不修改页面
+     */
+    public static short[] nextSlots(Page pg, int n) {
+        short[] slots = new short[n];
+        pg.lock();
+        try {
+            byte[] raw = pg.getData();
+            int count = getSlotCount(raw);
+            int i = 0;
+            if(Parser.parseShort(raw, OF_FREE_SLOTS) > 0) {
+                for (short s = 0; s < count && i < n; s++) {
+                    if(getSlot(raw, s) == SLOT_FREE) {
+                        slots[i ++] = s;
+                    }
+                }
+            }
+            while(i < n) {
+                slots[i ++] = (short) count ++;
+            }
+        } finally {
+            pg.unlock();
+        }
+        return slots;
+    }
+
+    /**
+     * 把 raw（一个或多个连续存放的记录）写到 offsets[0] 处，并让 slots[i] 指向 offsets[i]。
+     * 插入和恢复时的重做共用这个方法，重复执行的结果相同
+     */
+    public static void insert(Page pg, byte[] raw, short[] slots, short[] offsets) {
+        pg.lock();
+        try {
+            pg.setDirty(true);
+            byte[] data = pg.getData();
+            System.arraycopy(raw, 0, data, offsets[0], raw.length);
+            int count = getSlotCount(data);
+            int freeSlots = Parser.parseShort(data, OF_FREE_SLOTS);
+            for (int i = 0; i < slots.length; i++) {
+                short s = slots[i];
+                if(s >= count) {
+                    // 中间跳过的槽（恢复时未重做的插入）都是空槽
+                    for (int k = count; k < s; k++) {
+                        setSlot(data, k, SLOT_FREE);
+                    }
+                    freeSlots += s - count;
+                    count = s + 1;
+                    Parser.putShort(data, OF_SLOT_COUNT, (short) count);
+                } else if(getSlot(data, s) == SLOT_FREE) {
+                    freeSlots --;
+                }
+                setSlot(data, s, offsets[i]);
+            }
+            Parser.putShort(data, OF_FREE_SLOTS, (short) freeSlots);
+            if(getFSO(data) < offsets[0] + raw.length) {
+                setFSO(data, (short) (offsets[0] + raw.length));
+            }
+        } finally {
+            pg.unlock();
+        }
+    }
+
+    /**
+     * 把 uid 中的地址解析为页内偏移：旧页上地址就是偏移，槽页上查槽目录。
+     * 槽为空或者已经被整理掉时返回 -1
+     */
+    public static short resolve(Page pg, short address) {
+        if(!isSlotted(pg)) {
+            return address;
+        }
+        pg.lock();
+        try {
+            byte[] raw = pg.getData();
+            if(address < 0 || address >= getSlotCount(raw)) {
+                return -1;
+            }
+            short offset = getSlot(raw, address);
+            return offset == SLOT_FREE || offset == SLOT_DEAD ? -1 : offset;
+        } finally {
+            pg.unlock();
+        }
+    }
+
+    /**
+     * 释放一个槽，记录占用的空间计入 Garbage，槽可以被之后的插入复用。重复执行的结果相同
+     */
+    public static void free(Page pg, short slot) {
+        pg.lock();
+        try {
+            byte[] raw = pg.getData();
+            if(slot >= getSlotCount(raw)) {
+                return;
+            }
+            short offset = getSlot(raw, slot);
+            if(offset == SLOT_FREE) {
+                return;
+            }
+            pg.setDirty(true);
+            if(offset != SLOT_DEAD) {
+                Parser.putShort(raw, OF_GARBAGE, (short) (Parser.parseShort(raw, OF_GARBAGE) + itemLength(raw, offset)));
+            }
+            setSlot(raw, slot, SLOT_FREE);
+            Parser.putShort(raw, OF_FREE_SLOTS, (short) (Parser.parseShort(raw, OF_FREE_SLOTS) + 1));
+        } finally {
+            pg.unlock();
+        }
+    }
+
+    /**
+     * 页内整理：把仍然有效的记录按原来的顺序紧凑地移到数据区开头，无效的记录被丢弃，它的槽变为 DEAD。
+     * 调用方必须保证没有其他人持有这一页上的 DataItem
+     */
+    public static void compact(Page pg) {
+        pg.lock();
+        try {
+            pg.setDirty(true);
+            byte[] raw = pg.getData();
+            int count = getSlotCount(raw);
+            // 高 16 位是偏移，低 16 位是槽号，按偏移排序后依次前移不会覆盖还没移动的记录
+            long[] items = new long[count];
+            int n = 0;
+            for (int s = 0; s < count; s++) {
+                short offset = getSlot(raw, s);
+                if(offset != SLOT_FREE && offset != SLOT_DEAD) {
+                    items[n ++] = ((long) offset << 16) | s;
+                }
+            }
+            Arrays.sort(items, 0, n);
+            int pos = OF_SLOTTED_DATA;
+            for (int i = 0; i < n; i++) {
+                int offset = (int) (items[i] >>> 16);
+                int slot = (int) (items[i] & 0xFFFF);
+                if(raw[offset + ITEM_OF_VALID] != 0) {
+                    setSlot(raw, slot, SLOT_DEAD);
+                    continue;
+                }
+                int length = itemLength(raw, offset);
+                System.arraycopy(raw, offset, raw, pos, length);
+                setSlot(raw, slot, (short) pos);
+                pos += length;
+            }
+            int fso = getFSO(raw);
+            if(fso > pos) {
+                Arrays.fill(raw, pos, fso, (byte) 0);
+            }
+            setFSO(raw, (short) pos);
+            Parser.putShort(raw, OF_GARBAGE, (short) 0);
+        } finally {
+            pg.unlock();
+        }
+    }
+
+    /**
+     * 用整页镜像覆盖页面，用于重做页内整理
+     */
+    public static void recoverImage(Page pg, byte[] image) {
+        pg.lock();
+        try {
+            pg.setDirty(true);
+            System.arraycopy(image, 0, pg.getData(), 0, image.length);
+        } finally {
+            pg.unlock();
+        }
     }
 
     //  recoverInsert() 和 recoverUpdate() 用于在数据库崩溃后重新打开时，恢复例程直接插入数据以及修改数据使用。
@@ -85,10 +318,57 @@ public class PageX {
      * 将raw插入pg中的offset位置，不更新update
      * @param pg 页面
      * @param raw 数据
-     * @param offset 偏移
+     * @param address uid 中的页内地址，槽页上是槽号
      */
-    public static void recoverUpdate(Page pg, byte[] raw, short offset) {
+    public static void recoverUpdate(Page pg, byte[] raw, short address) {
+        short offset = resolve(pg, address);
+        if(offset < 0) {
+            return;
+        }
         pg.setDirty(true);
         System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
     }
+
+    /**
+     * 只覆盖记录中的一段：把 src[pos, pos+length) 写到记录内 at 处，用于重做、撤销差量更新日志
+     * @param address uid 中的页内地址，槽页上是槽号
+     */
+    public static void recoverUpdate(Page pg, short address, int at, byte[] src, int pos, int length) {
+        short offset = resolve(pg, address);
+        if(offset < 0) {
+            return;
+        }
+        pg.setDirty(true);
+        System.arraycopy(src, pos, pg.getData(), offset + at, length);
+    }
+
+    /**
+     * 撤销槽页上的插入：把槽指向的记录标记为无效
+     */
+    public static void recoverInvalidate(Page pg, short[] slots) {
+        for (short slot : slots) {
+            short offset = resolve(pg, slot);
+            if(offset < 0) {
+                continue;
+            }
+            pg.setDirty(true);
+            pg.getData()[offset + ITEM_OF_VALID] = (byte) 1;
+        }
+    }
+
+    private static int getSlotCount(byte[] raw) {
+        return Parser.parseShort(raw, OF_SLOT_COUNT);
+    }
+
+    private static short getSlot(byte[] raw, int slot) {
+        return Parser.parseShort(raw, PageCache.PAGE_SIZE - SLOT_SIZE * (slot + 1));
+    }
+
+    private static void setSlot(byte[] raw, int slot, short offset) {
+        Parser.putShort(raw, PageCache.PAGE_SIZE - SLOT_SIZE * (slot + 1), offset);
+    }
+
+    private static int itemLength(byte[] raw, int offset) {
+        return Parser.parseShort(raw, offset + ITEM_OF_SIZE) + ITEM_OF_DATA;
+    }
 }
@@ -0,0 +1,138 @@
+package top.philsongzi.mydb.backend.dm.pageCache;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 堆外页帧池：启动时一次性在直接内存中分配固定数量的页帧，保存最近被释放的页面。
+ * 引用计数缓存只保存正在被使用（pin）的页面，引用计数归零的页面会立刻被驱逐，下次访问又要读一次文件。
+ * 开启页帧池后，页面被驱逐时先拷进一个页帧，再次访问时从页帧拷回，不再读文件，
+ * 大部分缓存的页面都在堆外，堆上只有正在被使用的那些页面。
+ *
+ * 页帧满了以后按 CLOCK 算法淘汰：每个页帧有一个访问位，指针扫过时访问位为 1 的清零，为 0 的被淘汰。
+ * 页面在写回文件之后才放进页帧，页帧中的内容总是和文件一致，淘汰时直接丢弃即可。
+ *
+ * @author 小子松
+ * @since 2026/10/19
+ */
+public class FrameArena {
+
+    // 单个 ByteBuffer 最大 2GB，按 1GB 一块分配
+    private static final int FRAMES_PER_CHUNK = (1 << 30) / PageCache.PAGE_SIZE;
+
+    private ByteBuffer[] chunks;
+    private int frames;
+    // 每个页帧中保存的页号，0 表示空闲
+    private int[] pgnos;
+    private boolean[] referenced;
+    private Map<Integer, Integer> frameOf;
+    private int hand;
+    private Lock lock;
+
+    FrameArena(long memory) {
+        this.frames = (int) Math.min(memory / PageCache.PAGE_SIZE, Integer.MAX_VALUE);
+        int chunkNumber = (frames + FRAMES_PER_CHUNK - 1) / FRAMES_PER_CHUNK;
+        this.chunks = new ByteBuffer[chunkNumber];
+        for (int i = 0; i < chunkNumber; i++) {
+            int n = Math.min(FRAMES_PER_CHUNK, frames - i * FRAMES_PER_CHUNK);
+            chunks[i] = ByteBuffer.allocateDirect(n * PageCache.PAGE_SIZE);
+        }
+        this.pgnos = new int[frames];
+        this.referenced = new boolean[frames];
+        this.frameOf = new HashMap<>();
+        this.lock = new ReentrantLock();
+    }
+
+    boolean contains(int pgno) {
+        lock.lock();
+        try {
+            return frameOf.containsKey(pgno);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 页面在页帧池中时，把内容拷到 dst
+     * @return 是否命中
+     */
+    boolean read(int pgno, byte[] dst) {
+        lock.lock();
+        try {
+            Integer frame = frameOf.get(pgno);
+            if(frame == null) {
+                return false;
+            }
+            referenced[frame] = true;
+            ByteBuffer chunk = position(frame);
+            chunk.get(dst, 0, PageCache.PAGE_SIZE);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 保存页面的最新内容，页面已经在页帧池中时覆盖原来的页帧
+     */
+    void write(int pgno, byte[] src) {
+        lock.lock();
+        try {
+            Integer frame = frameOf.get(pgno);
+            if(frame == null) {
+                frame = victim();
+                if(pgnos[frame] != 0) {
+                    frameOf.remove(pgnos[frame]);
+                }
+                pgnos[frame] = pgno;
+                frameOf.put(pgno, frame);
+            }
+            referenced[frame] = true;
+            ByteBuffer chunk = position(frame);
+            chunk.put(src, 0, PageCache.PAGE_SIZE);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 丢弃页号大于 maxPgno 的页帧，用于截断文件
+     */
+    void truncate(int maxPgno) {
+        lock.lock();
+        try {
+            Iterator<Map.Entry<Integer, Integer>> it = frameOf.entrySet().iterator();
+            while(it.hasNext()) {
+                Map.Entry<Integer, Integer> e = it.next();
+                if(e.getKey() > maxPgno) {
+                    pgnos[e.getValue()] = 0;
+                    referenced[e.getValue()] = false;
+                    it.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int victim() {
+        while(true) {
+            int frame = hand;
+            hand = (hand + 1) % frames;
+            if(pgnos[frame] == 0 || !referenced[frame]) {
+                return frame;
+            }
+            referenced[frame] = false;
+        }
+    }
+
+    private ByteBuffer position(int frame) {
+        ByteBuffer chunk = chunks[frame / FRAMES_PER_CHUNK];
+        chunk.position((frame % FRAMES_PER_CHUNK) * PageCache.PAGE_SIZE);
+        return chunk;
+    }
+}
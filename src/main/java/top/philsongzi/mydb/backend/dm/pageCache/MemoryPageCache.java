@@ -0,0 +1,124 @@
+package top.philsongzi.mydb.backend.dm.pageCache;
+
+import top.philsongzi.mydb.backend.dm.page.Page;
+import top.philsongzi.mydb.backend.dm.page.PageImpl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 内存页面缓存，用于内存表：页面只在内存中，不对应任何文件，不驱逐也不写回，关闭后内容全部丢弃。
+ * 页面格式和文件上的页完全相同，DM 之上的代码不需要区分。
+ * 页数受 memory 限制，写满后 canGrow() 返回 false，DM 不再创建新页。
+ *
+ * @author 小子松
+ * @since 2026/10/19
+ */
+public class MemoryPageCache implements PageCache {
+
+    private int maxPages;
+    private List<Page> pages;
+    // 每一页被引用的次数，页内整理时需要
+    private List<Integer> pins;
+    private Lock lock;
+
+    public MemoryPageCache(long memory) {
+        this.maxPages = (int) Math.min(memory / PAGE_SIZE, Integer.MAX_VALUE);
+        this.pages = new ArrayList<>();
+        this.pins = new ArrayList<>();
+        this.lock = new ReentrantLock();
+    }
+
+    @Override
+    public int newPage(byte[] initData) {
+        lock.lock();
+        try {
+            int pgno = pages.size() + 1;
+            byte[] data = new byte[PAGE_SIZE];
+            System.arraycopy(initData, 0, data, 0, Math.min(initData.length, PAGE_SIZE));
+            pages.add(new PageImpl(pgno, data, this));
+            pins.add(0);
+            return pgno;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Page getPage(int pgno) throws Exception {
+        lock.lock();
+        try {
+            pins.set(pgno - 1, pins.get(pgno - 1) + 1);
+            return pages.get(pgno - 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void release(Page page) {
+        lock.lock();
+        try {
+            int pgno = page.getPageNumber();
+            pins.set(pgno - 1, pins.get(pgno - 1) - 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int pinCount(int pgno) {
+        lock.lock();
+        try {
+            return pins.get(pgno - 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void truncateByPgno(int maxPgno) {
+        lock.lock();
+        try {
+            while(pages.size() > maxPgno) {
+                pages.remove(pages.size() - 1);
+                pins.remove(pins.size() - 1);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getPageNumber() {
+        lock.lock();
+        try {
+            return pages.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean canGrow() {
+        return getPageNumber() < maxPages;
+    }
+
+    // 没有文件，不需要写回
+    @Override
+    public void flushPage(Page page) {
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            pages.clear();
+            pins.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package top.philsongzi.mydb.backend.dm.pageCache;
 
+import top.philsongzi.mydb.backend.dm.logger.Logger;
 import top.philsongzi.mydb.backend.dm.page.Page;
 import top.philsongzi.mydb.backend.utils.Panic;
 import top.philsongzi.mydb.common.Error;
@@ -28,6 +29,25 @@ public interface PageCache {
     void truncateByPgno(int maxPgno);
     int getPageNumber();
     void flushPage(Page page);
+    // 页面当前被引用（pin）的次数
+    int pinCount(int pgno);
+
+    /**
+     * 预读提示：这些页很快会被访问，可以提前异步读入。默认忽略
+     */
+    default void prefetch(int[] pgnos) {}
+
+    /**
+     * 页面写回文件之前先把这个 Logger 中的日志刷盘（先写日志）。默认不写文件，忽略
+     */
+    default void setLogger(Logger logger) {}
+
+    /**
+     * 是否还能创建新页。文件上的页面缓存总是可以，内存页面缓存受内存上限限制
+     */
+    default boolean canGrow() {
+        return true;
+    }
 
     // public 修饰对于接口类方法来说是多余的，因为接口类方法默认就是 public 的。
     static PageCacheImpl create(String path, long memory) {
@@ -55,6 +75,13 @@ public interface PageCache {
     }
 
     static PageCacheImpl open(String path, long memory) {
+        return open(path, memory, 0);
+    }
+
+    /**
+     * @param offHeap 堆外页帧池的大小，0 表示不开启
+     */
+    static PageCacheImpl open(String path, long memory, long offHeap) {
         File file = new File(path+PageCacheImpl.DB_SUFFIX);
         // Duplicated code fragment (15 lines long).
         if(!file.exists()) {
@@ -72,6 +99,6 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        return new PageCacheImpl(raf, fc, (int)(memory/PAGE_SIZE), offHeap);
     }
 }
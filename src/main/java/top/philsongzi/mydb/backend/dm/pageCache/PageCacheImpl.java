@@ -1,6 +1,7 @@
 package top.philsongzi.mydb.backend.dm.pageCache;
 
 import top.philsongzi.mydb.backend.common.AbstractCache;
+import top.philsongzi.mydb.backend.dm.logger.Logger;
 import top.philsongzi.mydb.backend.dm.page.Page;
 import top.philsongzi.mydb.backend.dm.page.PageImpl;
 import top.philsongzi.mydb.backend.utils.Panic;
@@ -10,12 +11,23 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 页面缓存的具体实现类，需要继承抽象缓存框架，并且实现 getForCache() 和 releaseForCache() 两个抽象方法
+ * 文件读写都使用带位置参数的 FileChannel.read/write，不共享通道的 position，因此不需要文件锁。
+ *
+ * 预读：扫描把接下来要访问的页号通过 prefetch 交给几个后台线程异步读取，前台线程访问到时页面已经在内存中。
+ * 开启了堆外页帧池时，后台线程把页面读进缓存再立刻释放，页面随之进入页帧池，一致性由缓存本身保证；
+ * 否则把连续的页合并成一次大块读取，只为预热操作系统的页缓存。队列满了直接丢弃提示，预读只是尽力而为。
+ *
+ * 缓存中只有正被引用的页面，引用数归零就被逐出。逐出页面的堆上数组放进 freeFrames，缺页时优先复用，
+ * 堆上的页面数组始终是被引用的页面数加上至多 FREE_FRAMES 个空闲数组，缺页不再每次都分配新数组。
  *
  * @author 小子松
  * @since 2023/8/6
@@ -27,12 +39,31 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
     public static final String DB_SUFFIX = ".db";  // 数据库文件后缀，public修饰，因为需要直接访问
     private RandomAccessFile file;  // 文件
     private FileChannel fc;  // 文件通道
-    private Lock fileLock;  // 文件锁
     // 页面数，记录当前打开的数据库文件有多少页，在数据库文件被打开时就会被计算，新建页面时自增
     private AtomicInteger pageNumbers;
+    // 堆外页帧池，为 null 时不开启
+    FrameArena arena;
+    // 日志只写不刷，页面写回之前要先把日志刷盘
+    private volatile Logger logger;
+
+    private static final int FREE_FRAMES = 64;
+    private ArrayBlockingQueue<byte[]> freeFrames;
+
+    private static final int PREFETCH_THREADS = 2;
+    private static final int PREFETCH_QUEUE = 64;
+    // 不开启页帧池时，一次合并读取的最大页数
+    private static final int PREFETCH_RUN = 32;
+    private ThreadPoolExecutor prefetcher;
 
     // 构造方法
     PageCacheImpl(RandomAccessFile file, FileChannel fc, int maxResource) {
+        this(file, fc, maxResource, 0);
+    }
+
+    /**
+     * @param offHeap 堆外页帧池的大小，小于一页时不开启
+     */
+    PageCacheImpl(RandomAccessFile file, FileChannel fc, int maxResource, long offHeap) {
         // 调用父类构造方法——
         super(maxResource);
         // 如果最大资源数小于最小内存限制，抛出异常
@@ -48,8 +79,20 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
         // 初始化字段
         this.file = file;
         this.fc = fc;
-        this.fileLock = new ReentrantLock();
         this.pageNumbers = new AtomicInteger((int)length / PAGE_SIZE);  // 根据文件大小计算页面数
+        if(offHeap >= PAGE_SIZE) {
+            this.arena = new FrameArena(offHeap);
+        }
+        this.freeFrames = new ArrayBlockingQueue<>(FREE_FRAMES);
+        this.prefetcher = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(PREFETCH_QUEUE), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "mydb-prefetch");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }, new ThreadPoolExecutor.DiscardPolicy());
     }
 
     // PageCache 还使用了一个 AtomicInteger，来记录了当前打开的数据库文件有多少页
@@ -67,8 +110,22 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
         return get(pageNumber);
     }
 
+    @Override
+    public void prefetch(int[] pgnos) {
+        if(pgnos.length > 0) {
+            prefetcher.execute(new Prefetch(pgnos));
+        }
+    }
+
     @Override
     public void close() {
+        // 先等正在进行的预读结束，它们可能还持有页面
+        prefetcher.shutdownNow();
+        try {
+            prefetcher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
         super.close();
         try {
             fc.close();
@@ -78,6 +135,11 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
         }
     }
 
+    @Override
+    public void setLogger(Logger logger) {
+        this.logger = logger;
+    }
+
     @Override
     public void release(Page page) {
         release(page.getPageNumber());
@@ -92,6 +154,9 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
             Panic.panic(e);
         }
         pageNumbers.set(maxPgno);
+        if(arena != null) {
+            arena.truncate(maxPgno);
+        }
     }
 
     @Override
@@ -104,8 +169,14 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
         flush(page);
     }
 
+    @Override
+    public int pinCount(int pgno) {
+        return references(pgno);
+    }
+
     /**
      * 从文件系统中获取页面数据:由于数据源就是文件系统， getForCache 直接从文件中获取数据，包裹成Page即可。
+     * 开启了堆外页帧池时，先看页面是否还在页帧中。
      *
      * @param key 页面号
      * @return 页面
@@ -116,21 +187,33 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
         int pgno = (int)key;
         long offset = PageCacheImpl.pageOffset(pgno);
 
-        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
-        fileLock.lock();
+        byte[] data = freeFrames.poll();
+        if(data == null) {
+            data = new byte[PAGE_SIZE];
+        }
+        if(arena != null && arena.read(pgno, data)) {
+            return new PageImpl(pgno, data, this);
+        }
+        // 按位置读，不移动通道的 position，也就不需要加锁，不同页面的缺页可以并行读文件
+        ByteBuffer buf = ByteBuffer.wrap(data);
         try {
-            fc.position(offset);
-            fc.read(buf);
+            while(buf.hasRemaining()) {
+                if(fc.read(buf, offset + buf.position()) < 0) {
+                    break;
+                }
+            }
         } catch (IOException e) {
             Panic.panic(e);
         }
-        fileLock.unlock();
+        // 复用的数组里还有上一个页面的内容，读到文件末尾时剩下的部分清零
+        Arrays.fill(data, buf.position(), PAGE_SIZE, (byte)0);
         // 将数据包裹成Page
-        return new PageImpl(pgno, buf.array(), this);
+        return new PageImpl(pgno, data, this);
     }
 
     /**
-     * 释放页面数据：releaseForCache() 驱逐页面时，也只需要根据页面是否是脏页面，来决定是否需要写回文件系统
+     * 释放页面数据：releaseForCache() 驱逐页面时，也只需要根据页面是否是脏页面，来决定是否需要写回文件系统。
+     * 写回之后再放进堆外页帧池，页面的数组交给下一次缺页复用
      * @param page
      */
     @Override
@@ -138,28 +221,100 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
         if(page.isDirty()) {
             flush(page);
             page.setDirty(false);
+        } else if(arena != null) {
+            arena.write(page.getPageNumber(), page.getData());
         }
+        freeFrames.offer(page.getData());
     }
 
     private void flush(Page page) {
         int pgno = page.getPageNumber();
         long offset = pageOffset(pgno);
+        // 页面上的修改对应的日志必须先于页面落盘
+        Logger lg = logger;
+        if(lg != null) {
+            lg.flush();
+        }
 
-        fileLock.lock();
         try {
             ByteBuffer buf = ByteBuffer.wrap(page.getData());
-            fc.position(offset);
-            fc.write(buf);
+            while(buf.hasRemaining()) {
+                fc.write(buf, offset + buf.position());
+            }
             fc.force(false);
         } catch (IOException e) {
             Panic.panic(e);
-        } finally {
-            fileLock.unlock();
+        }
+        // 页帧中的内容要和文件保持一致
+        if(arena != null) {
+            arena.write(pgno, page.getData());
+        }
+    }
+
+    private class Prefetch implements Runnable {
+        private int[] pgnos;
+
+        Prefetch(int[] pgnos) {
+            this.pgnos = pgnos;
+        }
+
+        @Override
+        public void run() {
+            if(arena != null) {
+                intoArena();
+            } else {
+                intoOsCache();
+            }
+        }
+
+        private void intoArena() {
+            for (int pgno : pgnos) {
+                if(Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                if(pgno <= 0 || pgno > pageNumbers.get() || references(pgno) > 0 || arena.contains(pgno)) {
+                    continue;
+                }
+                if(almostFull()) {
+                    return;
+                }
+                try {
+                    get(pgno);
+                } catch (Exception e) {
+                    // 缓存已满，放弃这次预读
+                    return;
+                }
+                release(pgno);
+            }
+        }
+
+        private void intoOsCache() {
+            int[] sorted = Arrays.copyOf(pgnos, pgnos.length);
+            Arrays.sort(sorted);
+            int i = 0;
+            while(i < sorted.length && !Thread.currentThread().isInterrupted()) {
+                int first = sorted[i];
+                int last = first;
+                i ++;
+                while(i < sorted.length && sorted[i] <= last + 1 && sorted[i] - first < PREFETCH_RUN) {
+                    last = sorted[i ++];
+                }
+                last = Math.min(last, pageNumbers.get());
+                if(first <= 0 || first > last) {
+                    continue;
+                }
+                ByteBuffer buf = ByteBuffer.allocate((last - first + 1) * PAGE_SIZE);
+                try {
+                    fc.read(buf, pageOffset(first));
+                } catch (IOException e) {
+                    return;
+                }
+            }
         }
     }
 
     private static long pageOffset(int pgno) {
         // 页号从 1 开始，所以需要减 1
-        return (pgno - 1) * PAGE_SIZE;
+        return (long)(pgno - 1) * PAGE_SIZE;
     }
 }
@@ -0,0 +1,110 @@
+package top.philsongzi.mydb.backend.dm.pageIndex;
+
+import top.philsongzi.mydb.backend.utils.Panic;
+import top.philsongzi.mydb.backend.utils.Parser;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * 空闲空间表（FSM）：每页用一个字节记录它在 PageIndex 中所处的区间，保存在单独的 .fsm 文件中。
+ * 二进制格式为：
+ * [PageNumber 4][LogOffset 8][Checksum 4][Class 1] * PageNumber
+ * 第 i 个 Class 对应第 i+1 页，UNKNOWN 表示写出时这一页正在被插入，区间未知。
+ *
+ * FSM 是延迟更新的：运行期间只维护内存中的 PageIndex，日志每增长一段做一次检查点，
+ * 以及正常关闭时，把它整体写出一次，插入路径上没有额外开销。LogOffset 是写出时日志的末尾位置。
+ * FSM 只是提示信息：之后的日志涉及的页，空闲空间可能已经变了（崩溃恢复还会重做或撤销它们），启动时只重新扫描这些页，
+ * 加上 UNKNOWN 的页和 FSM 之后新增的页，启动的 IO 只和 FSM 的大小、检查点之后的日志有关，而不是整个数据库的大小。
+ * 文件不完整、校验失败时 FSM 作废，退回到逐页扫描。
+ *
+ * @author 小子松
+ * @since 2026/10/19
+ */
+public class FreeSpaceMap {
+
+    public static final String FSM_SUFFIX = ".fsm";
+    public static final String FSM_TMP_SUFFIX = ".fsm_tmp";
+    public static final byte UNKNOWN = -1;
+
+    private static final int SEED = 13331;
+    private static final int OF_LOG_OFFSET = 4;
+    private static final int OF_CHECKSUM = OF_LOG_OFFSET + 8;
+    private static final int OF_CLASSES = OF_CHECKSUM + 4;
+
+    /**
+     * 把 pIndex 中前 pageNumber 页的区间和日志位置 logOffset 写入 FSM 文件，先写临时文件再原子替换，写到一半不会留下损坏的 FSM
+     */
+    public static void save(String path, PageIndex pIndex, int pageNumber, long logOffset) {
+        byte[] classes = pIndex.dump(pageNumber);
+        byte[] raw = new byte[OF_CLASSES + classes.length];
+        Parser.putInt(raw, 0, pageNumber);
+        Parser.putLong(raw, OF_LOG_OFFSET, logOffset);
+        Parser.putInt(raw, OF_CHECKSUM, checksum(classes));
+        System.arraycopy(classes, 0, raw, OF_CLASSES, classes.length);
+
+        File tmp = new File(path + FSM_TMP_SUFFIX);
+        try {
+            Files.write(tmp.toPath(), raw);
+            Files.move(tmp.toPath(), new File(path + FSM_SUFFIX).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 读取 FSM 文件，把其中的区间填进 classes（第 i 个对应第 i+1 页）。
+     * FSM 覆盖不到的页保持调用方填好的值，FSM 比 classes 长时（恢复截掉了末尾的页）多出的部分忽略
+     * @return FSM 写出时的日志位置，FSM 不可用时返回 -1，classes 不变
+     */
+    public static long load(String path, byte[] classes) {
+        File f = new File(path + FSM_SUFFIX);
+        if(!f.exists()) {
+            return -1;
+        }
+        byte[] raw;
+        try {
+            raw = Files.readAllBytes(f.toPath());
+        } catch (IOException e) {
+            return -1;
+        }
+        if(raw.length < OF_CLASSES) {
+            return -1;
+        }
+        int covered = Parser.parseInt(raw, 0);
+        if(covered < 1 || raw.length != OF_CLASSES + covered) {
+            return -1;
+        }
+        if(checksum(Arrays.copyOfRange(raw, OF_CLASSES, raw.length)) != Parser.parseInt(raw, OF_CHECKSUM)) {
+            return -1;
+        }
+        System.arraycopy(raw, OF_CLASSES, classes, 0, Math.min(covered, classes.length));
+        return Parser.parseLong(raw, OF_LOG_OFFSET);
+    }
+
+    /**
+     * 区间 cls 对应的空闲空间，取区间的下界
+     */
+    public static int freeSpace(byte cls) {
+        return cls * PageIndex.THRESHOLD;
+    }
+
+    /**
+     * 删除 FSM 文件，新建数据库时调用，避免读到同一路径下旧数据库留下的 FSM
+     */
+    public static void remove(String path) {
+        new File(path + FSM_SUFFIX).delete();
+        new File(path + FSM_TMP_SUFFIX).delete();
+    }
+
+    private static int checksum(byte[] classes) {
+        int xCheck = 0;
+        for (byte b : classes) {
+            xCheck = xCheck * SEED + b;
+        }
+        return xCheck;
+    }
+}
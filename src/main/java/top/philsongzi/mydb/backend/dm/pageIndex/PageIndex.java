@@ -2,36 +2,41 @@ package top.philsongzi.mydb.backend.dm.pageIndex;
 
 import top.philsongzi.mydb.backend.dm.pageCache.PageCache;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * 页面索引类：缓存了每一页的空闲空间。用于在上层模块进行插入操作时，能够快速找到一个合适空间的页面，而无需从磁盘或者缓存中检查每一个页面的信息。
  * 实现方式：
  * 将一页的空间划分成了 40 个区间。
- * 在启动时，就会遍历所有的页面信息，获取页面的空闲空间，安排到这 40 个区间中。
+ * 在启动时，从 FreeSpaceMap 中读出每页所在的区间，只扫描 FSM 之后被改过的页；FSM 不可用时，遍历所有的页面信息，获取页面的空闲空间，安排到这 40 个区间中。
  * insert 在请求一个页时，会首先将所需的空间向上取整，映射到某一个区间，随后取出这个区间的任何一页，都可以满足需求。
+ *
+ * 每个区间是一个无锁的双端队列，并发插入的线程不会在这里串行。
+ * 另外按线程分出 STRIPES 个“当前插入页”：插入完成后页面先放回自己的槽位（release），下一次插入直接在这一页上追加，
+ * 槽位被占用或者页面快满时才放回区间。取用槽位是一次 getAndSet，同一页同一时刻仍然只会被一个线程写。
  * @author 小子松
  * @since 2023/8/7
  */
 public class PageIndex {
     // 将一页划成40个区间。怎么分？—— 页大小（页面缓存接口中定义的属性） / 区间数（前面定好的 40 页）
     private static final int INTERVALS_NO = 40;
-    private static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;
+    static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;
+    // 当前插入页的槽位数，必须是 2 的幂
+    private static final int STRIPES = 16;
 
-    private Lock lock;
-    // 40个区间，每个区间都是一个 List，用于存放空闲空间大小在这个区间的页面
-    private List<PageInfo>[] lists;
+    // 40个区间，每个区间都是一个队列，用于存放空闲空间大小在这个区间的页面
+    private ConcurrentLinkedDeque<PageInfo>[] lists;
+    private AtomicReferenceArray<PageInfo> current;
 
     @SuppressWarnings("unchecked")
     public PageIndex() {
-        lock = new ReentrantLock();
-        lists = new List[INTERVALS_NO+1];
+        lists = new ConcurrentLinkedDeque[INTERVALS_NO+1];
         for (int i = 0; i < INTERVALS_NO+1; i ++) {
-            lists[i] = new ArrayList<>();
+            lists[i] = new ConcurrentLinkedDeque<>();
         }
+        current = new AtomicReferenceArray<>(STRIPES);
     }
 
     /**
@@ -40,12 +45,23 @@ public class PageIndex {
      * @param freeSpace 空闲空间大小
      */
     public void add(int pgno, int freeSpace) {
-        lock.lock();
-        try {
-            int number = freeSpace / THRESHOLD;
-            lists[number].add(new PageInfo(pgno, freeSpace));
-        } finally {
-            lock.unlock();
+        add(new PageInfo(pgno, freeSpace));
+    }
+
+    private void add(PageInfo pi) {
+        // 后放回的页先被取出，刚写过的页大概率还在页面缓存里
+        lists[pi.freeSpace / THRESHOLD].offerFirst(pi);
+    }
+
+    /**
+     * 插入结束后归还页面：优先留作当前线程的插入页，槽位已被占用或者剩余空间不足一个区间时放回区间
+     * @param pgno 页面号
+     * @param freeSpace 空闲空间大小
+     */
+    public void release(int pgno, int freeSpace) {
+        PageInfo pi = new PageInfo(pgno, freeSpace);
+        if(freeSpace < THRESHOLD || !current.compareAndSet(stripe(), null, pi)) {
+            add(pi);
         }
     }
 
@@ -55,24 +71,65 @@ public class PageIndex {
      * @return PageInfo
      */
     public PageInfo select(int spaceSize) {
-        lock.lock();
-        try {
-            int number = spaceSize / THRESHOLD;
-            if(number < INTERVALS_NO) {number ++;}
-            while(number <= INTERVALS_NO) {
-                if(lists[number].isEmpty()) {
-                    number ++;
-                    continue;
+        // 先看当前线程的插入页
+        PageInfo pi = current.getAndSet(stripe(), null);
+        if(pi != null) {
+            if(pi.freeSpace >= spaceSize) {
+                return pi;
+            }
+            add(pi);
+        }
+        int number = spaceSize / THRESHOLD;
+        if(number < INTERVALS_NO) {number ++;}
+        while(number <= INTERVALS_NO) {
+            // 返回的 PageInfo 中包含了页面号和空闲空间大小
+            // 同时，被选中的页会直接从 PageIndex 中移除，意味着，同一个页面是不允许并发写的！
+            // 上层使用完这个页面之后，需要将它重新插入到 PageIndex
+            pi = lists[number].pollFirst();
+            if(pi != null) {
+                return pi;
+            }
+            number ++;
+        }
+        // 区间里都没有合适的页，再看其他线程留着的插入页，避免有空闲空间却去创建新页
+        for (int i = 0; i < STRIPES; i ++) {
+            pi = current.getAndSet(i, null);
+            if(pi == null) {
+                continue;
+            }
+            if(pi.freeSpace >= spaceSize) {
+                return pi;
+            }
+            add(pi);
+        }
+        return null;
+    }
+
+    private static int stripe() {
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+
+    /**
+     * 导出前 pageNumber 页所在的区间，第 i 个字节对应第 i+1 页，用于写出 FreeSpaceMap。
+     * 可以和插入并发：正被插入（被 select 取走）的页不在索引中，记为 FreeSpaceMap.UNKNOWN
+     */
+    byte[] dump(int pageNumber) {
+        byte[] classes = new byte[pageNumber];
+        Arrays.fill(classes, FreeSpaceMap.UNKNOWN);
+        for (int i = 0; i <= INTERVALS_NO; i ++) {
+            for (PageInfo pi : lists[i]) {
+                if(pi.pgno <= pageNumber) {
+                    classes[pi.pgno-1] = (byte) i;
                 }
-                // 返回的 PageInfo 中包含了页面号和空闲空间大小
-                // 同时，被选中的页会直接从 PageIndex 中移除，意味着，同一个页面是不允许并发写的！
-                // 上层使用完这个页面之后，需要将它重新插入到 PageIndex
-                return lists[number].remove(0);
             }
-            return null;
-        } finally {
-            lock.unlock();
         }
+        for (int i = 0; i < STRIPES; i ++) {
+            PageInfo pi = current.get(i);
+            if(pi != null && pi.pgno <= pageNumber) {
+                classes[pi.pgno-1] = (byte) (pi.freeSpace / THRESHOLD);
+            }
+        }
+        return classes;
     }
 
 }
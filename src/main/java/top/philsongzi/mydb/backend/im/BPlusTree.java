@@ -8,12 +8,20 @@ import top.philsongzi.mydb.backend.utils.Parser;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * 数据库索引的 B+ 树实现。
+ * 保存根节点 uid 的启动项（boot）和树的节点可以放在不同的 DM 中：非日志表、内存表的节点放在各自的存储中，
+ * 启动项放在主存储中，存储被清空之后启动项仍然存在，用 reset() 换上一个新的空根即可。
+ * 普通插入之间互不阻塞，共享 treeLock 的读锁；建树和 reset 整个替换根，持有写锁，期间没有插入落在将被丢弃的旧根上。
+ * vacuum 通过 remove 删除指向死版本的项，只从叶子中删除，不合并节点。
  *
  * @author 小子松
  * @since 2023/8/10
@@ -23,21 +31,35 @@ public class BPlusTree {
     long bootUid;
     DataItem bootDataItem;
     Lock bootLock;
+    ReadWriteLock treeLock;
 
     public static long create(DataManager dm) throws Exception {
+        return create(dm, dm);
+    }
+
+    /**
+     * @param bootDm 启动项所在的 DM
+     * @param dm 节点所在的 DM
+     */
+    public static long create(DataManager bootDm, DataManager dm) throws Exception {
         byte[] rawRoot = Node.newNilRootRaw();
         long rootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rawRoot);
-        return dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(rootUid));
+        return bootDm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(rootUid));
     }
 
     public static BPlusTree load(long bootUid, DataManager dm) throws Exception {
-        DataItem bootDataItem = dm.read(bootUid);
+        return load(bootUid, dm, dm);
+    }
+
+    public static BPlusTree load(long bootUid, DataManager bootDm, DataManager dm) throws Exception {
+        DataItem bootDataItem = bootDm.read(bootUid);
         assert bootDataItem != null;
         BPlusTree t = new BPlusTree();
         t.bootUid = bootUid;
         t.dm = dm;
         t.bootDataItem = bootDataItem;
         t.bootLock = new ReentrantLock();
+        t.treeLock = new ReentrantReadWriteLock();
         return t;
     }
 
@@ -105,17 +127,162 @@ public class BPlusTree {
                 break;
             } else {
                 leafUid = res.siblingUid;
+                dm.prefetch(Collections.singletonList(leafUid));
             }
         }
         return uids;
     }
 
+    /**
+     * 返回一个逐叶子推进的区间迭代器，调用方每次只持有一个叶子的 uid，内存占用与区间大小无关
+     */
+    public RangeIterator iterator(long leftKey, long rightKey) throws Exception {
+        long leafUid = searchLeaf(rootUid(), leftKey);
+        return new RangeIterator(this, leafUid, leftKey, rightKey);
+    }
+
     public void insert(long key, long uid) throws Exception {
-        long rootUid = rootUid();
-        InsertRes res = insert(rootUid, uid, key);
-        assert res != null;
-        if(res.newNode != 0) {
-            updateRootUid(rootUid, res.newNode, res.newKey);
+        treeLock.readLock().lock();
+        try {
+            long rootUid = rootUid();
+            InsertRes res = insert(rootUid, uid, key);
+            assert res != null;
+            if(res.newNode != 0) {
+                updateRootUid(rootUid, res.newNode, res.newKey);
+            }
+        } finally {
+            treeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 沿叶子链表删除所有指向 uids 的项，返回删除的项数。
+     * 只改动叶子，内部节点的分隔 key 不变：叶子仍然有序，查找和插入在叶子中找不到位置时本来就会向右兄弟移动。
+     * 和普通插入一样共享 treeLock 的读锁，并发分裂移到右边的项随后也会被扫描到
+     */
+    public int remove(Set<Long> uids) throws Exception {
+        treeLock.readLock().lock();
+        try {
+            int removed = 0;
+            long leafUid = searchLeaf(rootUid(), Long.MIN_VALUE);
+            while(leafUid != 0) {
+                Node leaf = Node.loadNode(this, leafUid);
+                Node.LeafRemoveRes res = leaf.leafRemove(uids);
+                leaf.release();
+                removed += res.removed;
+                leafUid = res.siblingUid;
+            }
+            return removed;
+        } finally {
+            treeLock.readLock().unlock();
+        }
+    }
+
+    public boolean isEmpty() throws Exception {
+        Node root = Node.loadNode(this, rootUid());
+        try {
+            return root.isEmptyLeaf();
+        } finally {
+            root.release();
+        }
+    }
+
+    /**
+     * 树为空时自底向上建树并返回 true，否则什么也不做并返回 false，由调用方逐个插入。
+     * 判空和替换根在同一把写锁下完成，并发的插入要么在建树之前（树不再为空），要么在建树之后落在新树上。
+     * keys[0, n) 必须已按升序排列，uids 与之一一对应。
+     * 先把叶子按 BUILD_FILL 个 key 一组从右往左写入（这样写左边的节点时右兄弟的 uid 已知），
+     * 再逐层向上构造内部节点，最后把根替换成新树的根。
+     * 叶子留有空余，之后的普通插入不会立刻引起分裂；相同的 key 尽量不跨越叶子边界。
+     */
+    public boolean buildIfEmpty(long[] keys, long[] uids, int n) throws Exception {
+        treeLock.writeLock().lock();
+        try {
+            if(!isEmpty()) {
+                return false;
+            }
+            build(keys, uids, n);
+            return true;
+        } finally {
+            treeLock.writeLock().unlock();
+        }
+    }
+
+    private void build(long[] keys, long[] uids, int n) throws Exception {
+        if(n == 0) {
+            return;
+        }
+        int fill = Node.BALANCE_NUMBER * 3 / 2;
+
+        // 叶子层的划分
+        List<int[]> ranges = new ArrayList<>();
+        int start = 0;
+        while(start < n) {
+            int end = Math.min(start + fill, n);
+            while(end < n && end - start < Node.BALANCE_NUMBER * 2 - 1 && keys[end] == keys[end-1]) {
+                end ++;
+            }
+            ranges.add(new int[]{start, end});
+            start = end;
+        }
+
+        int m = ranges.size();
+        long[] levelUids = new long[m];
+        long[] levelKeys = new long[m];
+        long sibling = 0;
+        for(int r = m - 1; r >= 0; r --) {
+            int[] range = ranges.get(r);
+            byte[] raw = Node.newRaw(true, uids, keys, range[0], range[1], sibling);
+            levelUids[r] = dm.insert(TransactionManagerImpl.SUPER_XID, raw);
+            levelKeys[r] = keys[range[0]];
+            sibling = levelUids[r];
+        }
+
+        // 内部节点：第 i 个儿子对应的 key 是第 i+1 个儿子的最小 key，整层最右边为 MAX_VALUE
+        while(m > 1) {
+            long[] sepKeys = new long[m];
+            for(int i = 0; i < m; i ++) {
+                sepKeys[i] = i + 1 < m ? levelKeys[i+1] : Long.MAX_VALUE;
+            }
+            int pm = (m + fill - 1) / fill;
+            long[] parentUids = new long[pm];
+            long[] parentKeys = new long[pm];
+            sibling = 0;
+            for(int p = pm - 1; p >= 0; p --) {
+                int from = p * fill, to = Math.min(from + fill, m);
+                byte[] raw = Node.newRaw(false, levelUids, sepKeys, from, to, sibling);
+                parentUids[p] = dm.insert(TransactionManagerImpl.SUPER_XID, raw);
+                parentKeys[p] = levelKeys[from];
+                sibling = parentUids[p];
+            }
+            levelUids = parentUids;
+            levelKeys = parentKeys;
+            m = pm;
+        }
+        setRootUid(levelUids[0]);
+    }
+
+    /**
+     * 节点所在的存储被清空后，原来的节点都已经不存在，换上一个新的空根
+     */
+    public void reset() throws Exception {
+        treeLock.writeLock().lock();
+        try {
+            setRootUid(dm.insert(TransactionManagerImpl.SUPER_XID, Node.newNilRootRaw()));
+        } finally {
+            treeLock.writeLock().unlock();
+        }
+    }
+
+    private void setRootUid(long newRootUid) throws Exception {
+        bootLock.lock();
+        try {
+            bootDataItem.before();
+            SubArray diRaw = bootDataItem.data();
+            System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, 8);
+            bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+        } finally {
+            bootLock.unlock();
         }
     }
 
@@ -9,6 +9,7 @@ import top.philsongzi.mydb.backend.utils.Parser;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Node 类，用于表示 B+ 树的节点。其结构：
@@ -126,6 +127,23 @@ public class Node {
         return raw.raw;
     }
 
+    /**
+     * 用排好序的 sons[start, end)、keys[start, end) 直接构造一个节点，用于自底向上建树
+     */
+    static byte[] newRaw(boolean isLeaf, long[] sons, long[] keys, int start, int end, long sibling) {
+        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+
+        setRawIsLeaf(raw, isLeaf);
+        setRawNoKeys(raw, end - start);
+        setRawSibling(raw, sibling);
+        for(int i = start; i < end; i ++) {
+            setRawKthSon(raw, sons[i], i - start);
+            setRawKthKey(raw, keys[i], i - start);
+        }
+
+        return raw.raw;
+    }
+
     static Node loadNode(BPlusTree bTree, long uid) throws Exception {
         DataItem di = bTree.dm.read(uid);
         assert di != null;
@@ -150,6 +168,15 @@ public class Node {
         }
     }
 
+    public boolean isEmptyLeaf() {
+        dataItem.rLock();
+        try {
+            return getRawIfLeaf(raw) && getRawNoKeys(raw) == 0;
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
     class SearchNextRes {
         long uid;
         long siblingUid;
@@ -217,6 +244,84 @@ public class Node {
         }
     }
 
+    class LeafScanRes {
+        long[] keys;
+        long[] uids;
+        int size;
+        long siblingUid;
+    }
+
+    /**
+     * 与 leafSearchRange 相同，但同时返回每个 uid 对应的 key，供 RangeIterator 在节点分裂后去重
+     */
+    public LeafScanRes leafScan(long leftKey, long rightKey) {
+        dataItem.rLock();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            int kth = 0;
+            while(kth < noKeys && getRawKthKey(raw, kth) < leftKey) {
+                kth ++;
+            }
+            LeafScanRes res = new LeafScanRes();
+            res.keys = new long[noKeys - kth];
+            res.uids = new long[noKeys - kth];
+            while(kth < noKeys) {
+                long ik = getRawKthKey(raw, kth);
+                if(ik > rightKey) {
+                    break;
+                }
+                res.keys[res.size] = ik;
+                res.uids[res.size] = getRawKthSon(raw, kth);
+                res.size ++;
+                kth ++;
+            }
+            if(kth == noKeys) {
+                res.siblingUid = getRawSibling(raw);
+            }
+            return res;
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    class LeafRemoveRes {
+        int removed;
+        long siblingUid;
+    }
+
+    /**
+     * 从叶子中删除 uid 属于 uids 的项，其余项保持顺序。节点不合并，变空的叶子仍然留在兄弟链表中
+     */
+    public LeafRemoveRes leafRemove(Set<Long> uids) {
+        LeafRemoveRes res = new LeafRemoveRes();
+        dataItem.before();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            int kept = 0;
+            for(int i = 0; i < noKeys; i ++) {
+                long son = getRawKthSon(raw, i);
+                if(uids.contains(son)) {
+                    res.removed ++;
+                    continue;
+                }
+                if(kept != i) {
+                    setRawKthKey(raw, getRawKthKey(raw, i), kept);
+                    setRawKthSon(raw, son, kept);
+                }
+                kept ++;
+            }
+            setRawNoKeys(raw, kept);
+            res.siblingUid = getRawSibling(raw);
+            return res;
+        } finally {
+            if(res.removed > 0) {
+                dataItem.after(TransactionManagerImpl.SUPER_XID);
+            } else {
+                dataItem.unBefore();
+            }
+        }
+    }
+
     class InsertAndSplitRes {
         long siblingUid, newSon, newKey;
     }
@@ -0,0 +1,75 @@
+package top.philsongzi.mydb.backend.im;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * B+ 树区间扫描的迭代器，每次 next() 返回一个叶子上落在区间内的 uid。
+ * 两次 next() 之间叶子可能发生分裂，已经读过的 key 会被搬到右侧新的兄弟节点上，
+ * 因此这里记住上一次返回的最大 key 以及该 key 下已经返回过的 uid，跳过重复的部分。
+ *
+ * @author 小子松
+ * @since 2026/10/19
+ */
+public class RangeIterator {
+
+    private BPlusTree tree;
+    private long leafUid;
+    private long leftKey;
+    private long rightKey;
+
+    private boolean started;
+    private long lastKey;
+    private Set<Long> lastKeyUids = new HashSet<>();
+
+    RangeIterator(BPlusTree tree, long leafUid, long leftKey, long rightKey) {
+        this.tree = tree;
+        this.leafUid = leafUid;
+        this.leftKey = leftKey;
+        this.rightKey = rightKey;
+    }
+
+    /**
+     * @return 下一批 uid，区间扫描结束时返回 null
+     */
+    public List<Long> next() throws Exception {
+        while(leafUid != 0) {
+            Node leaf = Node.loadNode(tree, leafUid);
+            Node.LeafScanRes res;
+            try {
+                res = leaf.leafScan(started ? lastKey : leftKey, rightKey);
+            } finally {
+                leaf.release();
+            }
+            leafUid = res.siblingUid;
+            if(leafUid != 0) {
+                // 调用方处理这个叶子的同时，后台读入下一个叶子
+                tree.dm.prefetch(Collections.singletonList(leafUid));
+            }
+
+            List<Long> uids = new ArrayList<>(res.size);
+            for(int i = 0; i < res.size; i ++) {
+                long key = res.keys[i];
+                long uid = res.uids[i];
+                if(started && key == lastKey) {
+                    if(!lastKeyUids.add(uid)) {
+                        continue;
+                    }
+                } else {
+                    started = true;
+                    lastKey = key;
+                    lastKeyUids.clear();
+                    lastKeyUids.add(uid);
+                }
+                uids.add(uid);
+            }
+            if(!uids.isEmpty()) {
+                return uids;
+            }
+        }
+        return null;
+    }
+}
@@ -64,6 +64,30 @@ public class Parser {
                 case "show":
                     stat = parseShow(tokenizer);
                     break;
+                case "analyze":
+                    stat = parseAnalyze(tokenizer);
+                    break;
+                case "set":
+                    stat = parseSet(tokenizer);
+                    break;
+                case "vacuum":
+                    stat = parseVacuum(tokenizer);
+                    break;
+                case "explain":
+                    stat = parseExplain(tokenizer);
+                    break;
+                case "load":
+                    stat = parseLoad(tokenizer);
+                    break;
+                case "declare":
+                    stat = parseDeclare(tokenizer);
+                    break;
+                case "fetch":
+                    stat = parseFetch(tokenizer);
+                    break;
+                case "close":
+                    stat = parseClose(tokenizer);
+                    break;
                 default:
                     throw Error.InvalidCommandException;
             }
@@ -87,6 +111,188 @@ public class Parser {
         return stat;
     }
 
+    private static Analyze parseAnalyze(Tokenizer tokenizer) throws Exception {
+        // analyze [table] tableName
+        if("table".equals(tokenizer.peek())) {
+            tokenizer.pop();
+        }
+        String tableName = tokenizer.peek();
+        if("".equals(tableName) || !isName(tableName)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        if(!"".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        Analyze analyze = new Analyze();
+        analyze.tableName = tableName;
+        return analyze;
+    }
+
+    private static SetVariable parseSet(Tokenizer tokenizer) throws Exception {
+        // set name [= | to] value
+        String name = tokenizer.peek();
+        if("".equals(name) || !isName(name)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        if("=".equals(tokenizer.peek()) || "to".equals(tokenizer.peek())) {
+            tokenizer.pop();
+        }
+        String value = tokenizer.peek();
+        if("".equals(value)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        if(!"".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        SetVariable set = new SetVariable();
+        set.name = name;
+        set.value = value;
+        return set;
+    }
+
+    private static Vacuum parseVacuum(Tokenizer tokenizer) throws Exception {
+        // vacuum 冻结所有表，不带参数
+        if(!"".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        return new Vacuum();
+    }
+
+    private static Explain parseExplain(Tokenizer tokenizer) throws Exception {
+        // explain 只支持会用到 where 的三种语句
+        String token = tokenizer.peek();
+        tokenizer.pop();
+        Explain explain = new Explain();
+        switch (token) {
+            case "select":
+                explain.statement = parseSelect(tokenizer);
+                break;
+            case "update":
+                explain.statement = parseUpdate(tokenizer);
+                break;
+            case "delete":
+                explain.statement = parseDelete(tokenizer);
+                break;
+            default:
+                throw Error.InvalidCommandException;
+        }
+        return explain;
+    }
+
+    private static Load parseLoad(Tokenizer tokenizer) throws Exception {
+        // load data "path" into [table] tableName
+        if(!"data".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        Load load = new Load();
+        load.path = tokenizer.peek();
+        if("".equals(load.path)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        if(!"into".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        if("table".equals(tokenizer.peek())) {
+            tokenizer.pop();
+        }
+
+        String tableName = tokenizer.peek();
+        if("".equals(tableName) || !isName(tableName)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        if(!"".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        load.tableName = tableName;
+        return load;
+    }
+
+    private static Declare parseDeclare(Tokenizer tokenizer) throws Exception {
+        // declare cursorName cursor for select ...
+        String name = tokenizer.peek();
+        if(!isName(name)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        if(!"cursor".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        if(!"for".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        if(!"select".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        Declare declare = new Declare();
+        declare.cursorName = name;
+        declare.select = parseSelect(tokenizer);
+        return declare;
+    }
+
+    private static Fetch parseFetch(Tokenizer tokenizer) throws Exception {
+        // fetch [count] [from] cursorName，省略 count 时取一行
+        Fetch fetch = new Fetch();
+        fetch.count = 1;
+        String tmp = tokenizer.peek();
+        if(!"".equals(tmp) && Character.isDigit(tmp.charAt(0))) {
+            try {
+                fetch.count = Integer.parseInt(tmp);
+            } catch(NumberFormatException e) {
+                throw Error.InvalidCommandException;
+            }
+            if(fetch.count <= 0) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
+        }
+        if("from".equals(tokenizer.peek())) {
+            tokenizer.pop();
+        }
+
+        String name = tokenizer.peek();
+        if("".equals(name) || !isName(name)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        if(!"".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        fetch.cursorName = name;
+        return fetch;
+    }
+
+    private static Close parseClose(Tokenizer tokenizer) throws Exception {
+        String name = tokenizer.peek();
+        if("".equals(name) || !isName(name)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        if(!"".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        Close close = new Close();
+        close.cursorName = name;
+        return close;
+    }
+
     private static Show parseShow(Tokenizer tokenizer) throws Exception {
         String tmp = tokenizer.peek();
         if("".equals(tmp)) {
@@ -163,18 +369,54 @@ public class Parser {
         if(!"values".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
         }
+        tokenizer.pop();
 
-        List<String> values = new ArrayList<>();
-        while(true) {
-            tokenizer.pop();
-            String value = tokenizer.peek();
-            if("".equals(value)) {
-                break;
-            } else {
+        List<String[]> rows = new ArrayList<>();
+        if(!"(".equals(tokenizer.peek())) {
+            // 单行：values v1 v2 ...
+            List<String> values = new ArrayList<>();
+            while(true) {
+                String value = tokenizer.peek();
+                if("".equals(value)) {
+                    break;
+                }
                 values.add(value);
+                tokenizer.pop();
+            }
+            rows.add(values.toArray(new String[values.size()]));
+        } else {
+            // 多行：values (v1, v2, ...), (v1, v2, ...) ...，括号内的值用逗号或空格分隔
+            while(true) {
+                if(!"(".equals(tokenizer.peek())) {
+                    throw Error.InvalidCommandException;
+                }
+                tokenizer.pop();
+                List<String> values = new ArrayList<>();
+                while(true) {
+                    String value = tokenizer.peek();
+                    if(")".equals(value)) {
+                        tokenizer.pop();
+                        break;
+                    } else if("".equals(value)) {
+                        throw Error.InvalidCommandException;
+                    } else if(!",".equals(value)) {
+                        values.add(value);
+                    }
+                    tokenizer.pop();
+                }
+                rows.add(values.toArray(new String[values.size()]));
+
+                String next = tokenizer.peek();
+                if("".equals(next)) {
+                    break;
+                } else if(",".equals(next)) {
+                    tokenizer.pop();
+                } else {
+                    throw Error.InvalidCommandException;
+                }
             }
         }
-        insert.values = values.toArray(new String[values.size()]);
+        insert.rows = rows.toArray(new String[rows.size()][]);
 
         return insert;
     }
@@ -309,12 +551,20 @@ public class Parser {
     }
 
     private static Create parseCreate(Tokenizer tokenizer) throws Exception {
+        // create [unlogged | memory] table ...
+        Create create = new Create();
+        if("unlogged".equals(tokenizer.peek())) {
+            create.isUnlogged = true;
+            tokenizer.pop();
+        } else if("memory".equals(tokenizer.peek())) {
+            create.isMemory = true;
+            tokenizer.pop();
+        }
         if(!"table".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
         }
         tokenizer.pop();
 
-        Create create = new Create();
         String name = tokenizer.peek();
         if(!isName(name)) {
             throw Error.InvalidCommandException;
@@ -404,8 +654,13 @@ public class Parser {
     }
 
     private static Begin parseBegin(Tokenizer tokenizer) throws Exception {
-        String isolation = tokenizer.peek();
+        // begin [async] [isolation level read committed | repeatable read]
         Begin begin = new Begin();
+        if("async".equals(tokenizer.peek())) {
+            begin.isAsync = true;
+            tokenizer.pop();
+        }
+        String isolation = tokenizer.peek();
         if("".equals(isolation)) {
             return begin;
         }
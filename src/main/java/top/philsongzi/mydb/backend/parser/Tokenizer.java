@@ -144,7 +144,7 @@ public class Tokenizer {
 
     static boolean isSymbol(byte b) {
         return (b == '>' || b == '<' || b == '=' || b == '*' ||
-                b == ',' || b == '(' || b == ')');
+                b == ',' || b == '(' || b == ')' || b == '?');
     }
 
     static boolean isBlank(byte b) {
@@ -0,0 +1,11 @@
+package top.philsongzi.mydb.backend.parser.statement;
+
+/**
+ * @author 小子松
+ * @since 2026/10/19
+ */
+public class Analyze {
+
+    // 需要收集统计信息的表名
+    public String tableName;
+}
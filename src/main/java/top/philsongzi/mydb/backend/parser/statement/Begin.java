@@ -7,4 +7,6 @@ package top.philsongzi.mydb.backend.parser.statement;
 public class Begin {
 
     public boolean isRepeatableRead;
+    // begin async：提交时不等事务状态刷盘
+    public boolean isAsync;
 }
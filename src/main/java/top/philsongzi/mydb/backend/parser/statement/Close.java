@@ -0,0 +1,10 @@
+package top.philsongzi.mydb.backend.parser.statement;
+
+/**
+ * @author 小子松
+ * @since 2026/10/19
+ */
+public class Close {
+
+    public String cursorName;
+}
@@ -11,4 +11,7 @@ public class Create {
     public String[] fieldName;
     public String[] fieldType;
     public String[] index;
+    // create unlogged table：行不写日志，崩溃后清空；create memory table：行只在内存中
+    public boolean isUnlogged;
+    public boolean isMemory;
 }
@@ -0,0 +1,11 @@
+package top.philsongzi.mydb.backend.parser.statement;
+
+/**
+ * @author 小子松
+ * @since 2026/10/19
+ */
+public class Explain {
+
+    // 被解释的语句，只能是 Select、Update 或 Delete
+    public Object statement;
+}
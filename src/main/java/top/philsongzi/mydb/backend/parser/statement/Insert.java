@@ -6,7 +6,7 @@ package top.philsongzi.mydb.backend.parser.statement;
  */
 public class Insert {
 
-    // 要插入的表名、值
+    // 要插入的表名、每一行的值
     public String tableName;
-    public String[] values;
+    public String[][] rows;
 }
@@ -0,0 +1,12 @@
+package top.philsongzi.mydb.backend.parser.statement;
+
+/**
+ * @author 小子松
+ * @since 2026/10/19
+ */
+public class Load {
+
+    // 服务端本地的 CSV 文件路径、目标表名
+    public String path;
+    public String tableName;
+}
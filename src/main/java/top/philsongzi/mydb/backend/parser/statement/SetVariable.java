@@ -0,0 +1,13 @@
+package top.philsongzi.mydb.backend.parser.statement;
+
+/**
+ * set 语句，设置本连接上的会话变量
+ *
+ * @author 小子松
+ * @since 2026/10/19
+ */
+public class SetVariable {
+
+    public String name;
+    public String value;
+}
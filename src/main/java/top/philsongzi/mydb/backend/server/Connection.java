@@ -0,0 +1,257 @@
+package top.philsongzi.mydb.backend.server;
+
+import org.apache.commons.codec.binary.Hex;
+import top.philsongzi.mydb.backend.utils.Parser;
+import top.philsongzi.mydb.transport.Encoder;
+import top.philsongzi.mydb.transport.FrameTransporter;
+import top.philsongzi.mydb.transport.Package;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 一个客户端连接的状态：读缓冲区、当前请求、待写回的结果和这个连接上的 Executor。
+ * 读写缓冲区只在 Selector 线程中访问；request 在提交给工作线程前设置，out 由工作线程设置后交回 Selector 线程。
+ * 协议由连接上的第一个字节决定：是握手的 MAGIC 就用 FrameTransporter 的二进制帧，
+ * 否则按 Transporter 的十六进制文本行处理，旧客户端不需要任何改动。
+ * 握手版本为 2 时帧体带请求 id，客户端可以流水线发送；请求仍然在这个连接上逐条按顺序执行，
+ * 后面的请求先留在读缓冲区中，每条结果带回它的请求 id。
+ *
+ * @author 小子松
+ * @since 2026/10/19
+ */
+class Connection {
+
+    static final int UNKNOWN = 0;
+    static final int HEX = 1;
+    static final int BINARY = 2;
+
+    // nextRequest 的结果
+    static final int NONE = 0;
+    static final int REQUEST = 1;
+    static final int HANDSHAKE = 2;
+    static final int INVALID = 3;
+
+    final SocketChannel channel;
+    final SelectionKey key;
+    final Executor exe;
+    private Encoder encoder;
+    int protocol;
+
+    // 已读到但还没有处理的字节是 in 的 [inPos, inLen)，十六进制协议下 scanned 之前没有换行符
+    private byte[] in;
+    private int inPos;
+    private int inLen;
+    private int scanned;
+
+    private byte[] request;
+    volatile ByteBuffer[] out;
+    // 二进制协议的帧头，同一时刻只有一个结果在写，可以复用
+    private ByteBuffer header;
+
+    // 有一条语句正在执行或等待执行
+    boolean busy;
+    // 执行期间对端关闭了连接，执行完就关闭
+    volatile boolean closing;
+    boolean closed;
+
+    Connection(SocketChannel channel, SelectionKey key, Executor exe) {
+        this.channel = channel;
+        this.key = key;
+        this.exe = exe;
+        this.encoder = new Encoder();
+        this.in = new byte[1024];
+    }
+
+    void append(ByteBuffer buf) {
+        int n = buf.remaining();
+        if(inLen + n > in.length) {
+            // 先把已处理的部分挪走，仍然不够再扩容
+            System.arraycopy(in, inPos, in, 0, inLen - inPos);
+            inLen -= inPos;
+            scanned -= inPos;
+            inPos = 0;
+            if(inLen + n > in.length) {
+                in = Arrays.copyOf(in, Math.max(in.length * 2, inLen + n));
+            }
+        }
+        buf.get(in, inLen, n);
+        inLen += n;
+    }
+
+    /**
+     * 从读缓冲区中取出一条完整的请求放到 request 中。
+     * 第一次调用时确定协议，二进制协议的握手回复放在 out 中，返回 HANDSHAKE
+     */
+    int nextRequest() {
+        if(protocol == UNKNOWN) {
+            if(inLen == inPos) {
+                return NONE;
+            }
+            if(in[inPos] != FrameTransporter.MAGIC[0]) {
+                protocol = HEX;
+            } else {
+                return handshake();
+            }
+        }
+        return protocol == BINARY ? nextFrame() : nextLine();
+    }
+
+    private int handshake() {
+        if(inLen - inPos < FrameTransporter.HANDSHAKE_LENGTH) {
+            return NONE;
+        }
+        for (int i = 0; i < FrameTransporter.MAGIC.length; i++) {
+            if(in[inPos + i] != FrameTransporter.MAGIC[i]) {
+                return INVALID;
+            }
+        }
+        byte version = in[inPos + FrameTransporter.MAGIC.length];
+        if(version != FrameTransporter.VERSION_PLAIN && version != FrameTransporter.VERSION_TAGGED) {
+            return INVALID;
+        }
+        encoder = new Encoder(version == FrameTransporter.VERSION_TAGGED);
+        inPos += FrameTransporter.HANDSHAKE_LENGTH;
+        scanned = inPos;
+        protocol = BINARY;
+        exe.setTypedRows(true);
+        header = ByteBuffer.allocateDirect(FrameTransporter.HEADER_LENGTH + 4 + 1);
+        ByteBuffer reply = ByteBuffer.allocate(FrameTransporter.HANDSHAKE_LENGTH);
+        reply.put(FrameTransporter.MAGIC).put(version).flip();
+        out = new ByteBuffer[]{reply};
+        return HANDSHAKE;
+    }
+
+    private int nextFrame() {
+        if(inLen - inPos < FrameTransporter.HEADER_LENGTH) {
+            return NONE;
+        }
+        int length = Parser.parseInt(in, inPos);
+        if(length < 1 || length > FrameTransporter.MAX_FRAME_LENGTH) {
+            return INVALID;
+        }
+        if(inLen - inPos - FrameTransporter.HEADER_LENGTH < length) {
+            return NONE;
+        }
+        int start = inPos + FrameTransporter.HEADER_LENGTH;
+        request = Arrays.copyOfRange(in, start, start + length);
+        inPos = start + length;
+        return REQUEST;
+    }
+
+    private int nextLine() {
+        for (int i = Math.max(scanned, inPos); i < inLen; i++) {
+            if(in[i] == '\n') {
+                try {
+                    request = Hex.decodeHex(new String(in, inPos, i - inPos));
+                } catch (Exception e) {
+                    return INVALID;
+                }
+                inPos = i + 1;
+                scanned = inPos;
+                return REQUEST;
+            }
+        }
+        scanned = inLen;
+        return NONE;
+    }
+
+    Runnable task(final Server server) {
+        final byte[] req = request;
+        return new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer[] res = null;
+                try {
+                    res = handle(req);
+                } finally {
+                    // 执行中抛出 Error（比如内存不足）时也要交回连接，否则它永远停在 busy 状态
+                    if(res == null) {
+                        closing = true;
+                        res = new ByteBuffer[0];
+                    }
+                    out = res;
+                    server.complete(Connection.this);
+                }
+            }
+        };
+    }
+
+    /**
+     * 在这个连接的会话中依次执行一批语句，合并成一个结果。第一条出错的语句之后不再执行，
+     * 会话状态（比如打开的事务）保持原样，由客户端决定提交还是回滚
+     */
+    private byte[] executeBatch(byte[][] stats) {
+        List<Package> results = new ArrayList<>(stats.length);
+        for (byte[] stat : stats) {
+            try {
+                byte[] res = exe.execute(stat);
+                results.add(new Package(exe.isRowResult() ? Package.ROWS : Package.STATEMENT, res, null));
+            } catch (Exception e) {
+                results.add(new Package(null, e));
+                break;
+            }
+        }
+        return encoder.encodeBatchResult(results);
+    }
+
+    /**
+     * 执行一条请求，返回按本连接的协议编码好的结果。请求无法解码时返回 null，连接随后关闭
+     */
+    private ByteBuffer[] handle(byte[] req) {
+        Package pkg;
+        try {
+            pkg = encoder.decode(req);
+        } catch (Exception e) {
+            return null;
+        }
+        byte[] data = pkg.getData();
+        byte[] result = null;
+        Exception e = null;
+        try {
+            switch(pkg.getType()) {
+                case Package.PREPARE:
+                    result = Parser.int2Byte(exe.prepare(data));
+                    break;
+                case Package.EXECUTE:
+                    result = exe.execute(Encoder.decodeStatementId(data), Encoder.decodeParams(data));
+                    break;
+                case Package.DEALLOCATE:
+                    result = exe.deallocate(Encoder.decodeStatementId(data));
+                    break;
+                case Package.BATCH:
+                    result = executeBatch(Encoder.decodeBatch(data));
+                    break;
+                default:
+                    result = exe.execute(data);
+            }
+        } catch (Exception e1) {
+            e = e1;
+            e.printStackTrace();
+        }
+        byte type = Package.STATEMENT;
+        if(e == null && pkg.getType() == Package.BATCH) {
+            type = Package.BATCH;
+        } else if(e == null && exe.isRowResult()) {
+            type = Package.ROWS;
+        }
+        Package res = new Package(pkg.getRequestId(), type, result, e);
+        if(protocol == HEX) {
+            return new ByteBuffer[]{ByteBuffer.wrap((Hex.encodeHexString(encoder.encode(res), true) + "\n").getBytes())};
+        }
+        // 帧头和数据分开，由 Selector 线程一次 gathering write 写出
+        byte[] payload = encoder.payload(res);
+        header.clear();
+        if(encoder.isTagged()) {
+            header.putInt(payload.length + 4 + 1).putInt(res.getRequestId());
+        } else {
+            header.putInt(payload.length + 1);
+        }
+        header.put(encoder.flag(res)).flip();
+        return new ByteBuffer[]{header, ByteBuffer.wrap(payload)};
+    }
+}
@@ -3,9 +3,16 @@ package top.philsongzi.mydb.backend.server;
 import top.philsongzi.mydb.backend.parser.Parser;
 import top.philsongzi.mydb.backend.parser.statement.*;
 import top.philsongzi.mydb.backend.tbm.BeginRes;
+import top.philsongzi.mydb.backend.tbm.Cursor;
+import top.philsongzi.mydb.backend.tbm.Prepared;
 import top.philsongzi.mydb.backend.tbm.TableManager;
 import top.philsongzi.mydb.common.Error;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * 处理的核心类。Executor 调用 Parser 获取到对应语句的结构化信息对象，并根据对象的类型，调用 TBM 的不同方法进行处理。
  * @author 小子松
@@ -13,35 +20,86 @@ import top.philsongzi.mydb.common.Error;
  */
 public class Executor {
 
+    // 每个连接最多保留的预编译语句数，超过时淘汰最久没有用过的
+    public static final int MAX_PREPARED = 256;
+
     private long xid;
     TableManager tbm;
 
+    // 本连接上打开的游标。在事务外 declare 的游标自带一个只读事务，关闭游标时提交
+    private Map<String, Cursor> cursors;
+    private Map<String, Long> ownXids;
+
+    // 本连接上的预编译语句，相同的语句文本只解析一次。按访问顺序排列，超过 MAX_PREPARED 时淘汰最久没用的，
+    // 客户端也可以用 deallocate 主动释放
+    private Map<Integer, Prepared> prepared;
+    private Map<String, Integer> preparedIds;
+    private int nextStatementId;
+
+    // 会话变量 synchronous_commit：关闭后本连接上的事务都异步提交
+    private boolean synchronousCommit;
+
+    // 二进制协议的连接上，select 和 fetch 返回带类型的结果行，rowResult 表示上一条语句的结果是不是这种格式
+    private boolean typedRows;
+    private boolean rowResult;
+
     public Executor(TableManager tbm) {
         this.tbm = tbm;
         this.xid = 0;
+        this.cursors = new HashMap<>();
+        this.ownXids = new HashMap<>();
+        this.preparedIds = new HashMap<>();
+        this.prepared = new LinkedHashMap<Integer, Prepared>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Prepared> eldest) {
+                if(size() <= MAX_PREPARED) {
+                    return false;
+                }
+                preparedIds.values().remove(eldest.getKey());
+                return true;
+            }
+        };
+        this.synchronousCommit = true;
     }
 
     public void close() {
+        for(long ownXid : ownXids.values()) {
+            tbm.abort(ownXid);
+        }
+        ownXids.clear();
+        cursors.clear();
         if(xid != 0) {
             System.out.println("Abnormal Abort: " + xid);
             tbm.abort(xid);
         }
     }
 
+    public void setTypedRows(boolean typedRows) {
+        this.typedRows = typedRows;
+    }
+
+    public boolean isRowResult() {
+        return rowResult;
+    }
+
     public byte[] execute(byte[] sql) throws Exception {
         System.out.println("Execute: " + new String(sql));
+        rowResult = false;
         Object stat = Parser.Parse(sql);
         if(Begin.class.isInstance(stat)) {
             if(xid != 0) {
                 throw Error.NestedTransactionException;
             }
-            BeginRes r = tbm.begin((Begin)stat);
+            Begin begin = (Begin)stat;
+            begin.isAsync |= !synchronousCommit;
+            BeginRes r = tbm.begin(begin);
             xid = r.xid;
             return r.result;
         } else if(Commit.class.isInstance(stat)) {
             if(xid == 0) {
                 throw Error.NoTransactionException;
             }
+            closeCursors(xid);
             byte[] res = tbm.commit(xid);
             xid = 0;
             return res;
@@ -49,20 +107,162 @@ public class Executor {
             if(xid == 0) {
                 throw Error.NoTransactionException;
             }
+            closeCursors(xid);
             byte[] res = tbm.abort(xid);
             xid = 0;
             return res;
+        } else if(SetVariable.class.isInstance(stat)) {
+            return set((SetVariable)stat);
+        } else if(Declare.class.isInstance(stat)) {
+            return declare((Declare)stat);
+        } else if(Fetch.class.isInstance(stat)) {
+            Fetch fetch = (Fetch)stat;
+            Cursor cursor = cursors.get(fetch.cursorName);
+            if(cursor == null) {
+                throw Error.CursorNotFoundException;
+            }
+            if(typedRows) {
+                rowResult = true;
+                return cursor.fetchRows(fetch.count);
+            }
+            return cursor.fetch(fetch.count).getBytes();
+        } else if(Close.class.isInstance(stat)) {
+            String name = ((Close)stat).cursorName;
+            if(cursors.remove(name) == null) {
+                throw Error.CursorNotFoundException;
+            }
+            Long ownXid = ownXids.remove(name);
+            if(ownXid != null) {
+                tbm.commit(ownXid);
+            }
+            return "close".getBytes();
         } else {
             return execute2(stat);
         }
     }
 
+    /**
+     * 预编译语句，返回语句 id。同一连接上重复预编译相同的文本会得到同一个 id
+     */
+    public int prepare(byte[] sql) throws Exception {
+        String text = new String(sql);
+        Integer id = preparedIds.get(text);
+        if(id != null) {
+            prepared.get(id);
+            return id;
+        }
+        Prepared p = tbm.prepare(Parser.Parse(sql));
+        id = ++ nextStatementId;
+        prepared.put(id, p);
+        preparedIds.put(text, id);
+        return id;
+    }
+
+    /**
+     * 释放预编译语句，之后这个 id 不能再执行
+     */
+    public byte[] deallocate(int statementId) throws Exception {
+        if(prepared.remove(statementId) == null) {
+            throw Error.StatementNotFoundException;
+        }
+        preparedIds.values().remove(statementId);
+        return "deallocate".getBytes();
+    }
+
+    public byte[] execute(int statementId, String[] params) throws Exception {
+        rowResult = false;
+        Prepared p = prepared.get(statementId);
+        if(p == null) {
+            throw Error.StatementNotFoundException;
+        }
+        boolean tmpTransaction = false;
+        Exception e = null;
+        if(xid == 0) {
+            tmpTransaction = true;
+            BeginRes r = tbm.begin(newBegin());
+            xid = r.xid;
+        }
+        try {
+            return p.execute(xid, params);
+        } catch(Exception e1) {
+            e = e1;
+            throw e;
+        } finally {
+            if(tmpTransaction) {
+                if(e != null) {
+                    tbm.abort(xid);
+                } else {
+                    tbm.commit(xid);
+                }
+                xid = 0;
+            }
+        }
+    }
+
+    private byte[] set(SetVariable set) throws Exception {
+        if(!"synchronous_commit".equals(set.name)) {
+            throw Error.InvalidVariableException;
+        }
+        if("on".equals(set.value)) {
+            synchronousCommit = true;
+        } else if("off".equals(set.value)) {
+            synchronousCommit = false;
+        } else {
+            throw Error.InvalidVariableException;
+        }
+        return ("set " + set.name + " " + set.value).getBytes();
+    }
+
+    // 语句自带的临时事务，按会话的 synchronous_commit 决定是否异步提交
+    private Begin newBegin() {
+        Begin begin = new Begin();
+        begin.isAsync = !synchronousCommit;
+        return begin;
+    }
+
+    private byte[] declare(Declare declare) throws Exception {
+        if(cursors.containsKey(declare.cursorName)) {
+            throw Error.DuplicatedCursorException;
+        }
+        long cursorXid = xid;
+        if(cursorXid == 0) {
+            cursorXid = tbm.begin(newBegin()).xid;
+        }
+        Cursor cursor;
+        try {
+            cursor = tbm.openCursor(cursorXid, declare.select);
+        } catch(Exception e) {
+            if(xid == 0) {
+                tbm.abort(cursorXid);
+            }
+            throw e;
+        }
+        cursors.put(declare.cursorName, cursor);
+        if(xid == 0) {
+            ownXids.put(declare.cursorName, cursorXid);
+        }
+        return "declare".getBytes();
+    }
+
+    /**
+     * 事务结束时，在该事务内打开的游标随之关闭
+     */
+    private void closeCursors(long xid) {
+        Iterator<Map.Entry<String, Cursor>> it = cursors.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<String, Cursor> e = it.next();
+            if(e.getValue().getXid() == xid && !ownXids.containsKey(e.getKey())) {
+                it.remove();
+            }
+        }
+    }
+
     private byte[] execute2(Object stat) throws Exception {
         boolean tmpTransaction = false;
         Exception e = null;
         if(xid == 0) {
             tmpTransaction = true;
-            BeginRes r = tbm.begin(new Begin());
+            BeginRes r = tbm.begin(newBegin());
             xid = r.xid;
         }
         try {
@@ -71,6 +271,9 @@ public class Executor {
                 res = tbm.show(xid);
             } else if(Create.class.isInstance(stat)) {
                 res = tbm.create(xid, (Create)stat);
+            } else if(Select.class.isInstance(stat) && typedRows) {
+                res = tbm.openCursor(xid, (Select)stat).fetchRows(Integer.MAX_VALUE);
+                rowResult = true;
             } else if(Select.class.isInstance(stat)) {
                 res = tbm.read(xid, (Select)stat);
             } else if(Insert.class.isInstance(stat)) {
@@ -79,6 +282,14 @@ public class Executor {
                 res = tbm.delete(xid, (Delete)stat);
             } else if(Update.class.isInstance(stat)) {
                 res = tbm.update(xid, (Update)stat);
+            } else if(Load.class.isInstance(stat)) {
+                res = tbm.load(xid, (Load)stat);
+            } else if(Analyze.class.isInstance(stat)) {
+                res = tbm.analyze(xid, (Analyze)stat);
+            } else if(Vacuum.class.isInstance(stat)) {
+                res = tbm.vacuum(xid, (Vacuum)stat);
+            } else if(Explain.class.isInstance(stat)) {
+                res = tbm.explain(xid, (Explain)stat);
             }
             return res;
         } catch(Exception e1) {
@@ -1,128 +1,330 @@
 package top.philsongzi.mydb.backend.server;
 
 import top.philsongzi.mydb.backend.tbm.TableManager;
-import top.philsongzi.mydb.transport.Encoder;
-import top.philsongzi.mydb.transport.Packager;
-import top.philsongzi.mydb.transport.Transporter;
-import top.philsongzi.mydb.transport.Package;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Server 启动一个 ServerSocket 监听端口，当有请求到来时直接把请求丢给一个新线程处理。
+ * Server 用一个 Selector 线程管理所有连接：接受连接、读取请求、写回结果都在这个线程里以非阻塞的方式完成，
+ * 只有语句的执行交给有界的工作线程池。
+ * 每个连接同一时刻最多有一条语句在执行（Executor 不是线程安全的），执行期间不再读取这个连接，
+ * 结果写完之后才读下一条。
+ * 工作线程池的队列满了时，请求留在 deferred 中稍后重新提交，这些连接也暂停读取，
+ * 客户端的请求积压在 TCP 缓冲区里，形成背压，而不是无限堆积在服务端。
  * @author 小子松
  * @since 2023/8/16
  */
 public class Server {
 
+    public static final int DEFAULT_WORKERS = 32;
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+    // 有请求等待重新提交时，Selector 最多阻塞这么久
+    private static final long RETRY_INTERVAL = 10;
+    // 队列满的提示最多这么久打印一次，持续过载时不刷屏
+    private static final long OVERLOAD_REPORT_INTERVAL = 10000;
+
     private int port;
     TableManager tbm;
+    private int workers;
+    private int queueSize;
+
+    private volatile Selector selector;
+    private volatile boolean stopped;
+    private ThreadPoolExecutor pool;
+    // 执行完成、等待写回结果的连接，由工作线程放入，Selector 线程取出
+    private Queue<Connection> completed;
+    // 因为队列满而没有提交成功的连接，只在 Selector 线程中访问
+    private Deque<Connection> deferred;
+    // 上一次打印队列满的提示的时间，以及之后被推迟的请求数，只在 Selector 线程中访问
+    private long lastOverloadReport;
+    private long deferrals;
+    private volatile int connections;
 
     public Server(int port, TableManager tbm) {
+        this(port, tbm, DEFAULT_WORKERS, DEFAULT_QUEUE_SIZE);
+    }
+
+    public Server(int port, TableManager tbm, int workers, int queueSize) {
         this.port = port;
         this.tbm = tbm;
+        this.workers = workers;
+        this.queueSize = queueSize;
+        this.completed = new ConcurrentLinkedQueue<>();
+        this.deferred = new ArrayDeque<>();
     }
 
     public void start() {
-        ServerSocket ss = null;
+        ServerSocketChannel ssc = null;
         try {
-            ss = new ServerSocket(port);
+            selector = Selector.open();
+            ssc = ServerSocketChannel.open();
+            ssc.bind(new InetSocketAddress(port));
+            ssc.configureBlocking(false);
+            ssc.register(selector, SelectionKey.OP_ACCEPT);
         } catch (IOException e) {
             e.printStackTrace();
             return;
         }
         System.out.println("Server listen to port: " + port);
-        ThreadPoolExecutor tpe = new ThreadPoolExecutor(
-                10, 20, 1L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(100),
-                new ThreadPoolExecutor.CallerRunsPolicy());
+        pool = new ThreadPoolExecutor(
+                workers, workers, 1L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadPoolExecutor.AbortPolicy());
+        ByteBuffer readBuf = ByteBuffer.allocate(1 << 16);
         try {
-            while(true) {
-                // 一旦有请求到来，就把请求丢给一个新线程处理
-                Socket socket = ss.accept();
-                Runnable worker = new HandleSocket(socket, tbm);
-                // tpe.execute(new HandleSocket(ss.accept(), tbm));  前面两条合一起
+            while(!stopped) {
+                selector.select(deferred.isEmpty() ? 0 : RETRY_INTERVAL);
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while(it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if(!key.isValid()) {
+                        continue;
+                    }
+                    if(key.isAcceptable()) {
+                        accept(ssc);
+                        continue;
+                    }
+                    Connection conn = (Connection) key.attachment();
+                    if(key.isReadable()) {
+                        read(conn, readBuf);
+                    }
+                    if(key.isValid() && key.isWritable()) {
+                        write(conn);
+                    }
+                }
+                drainCompleted();
+                retryDeferred();
+            }
+        } catch(IOException | ClosedSelectorException e) {
+            if(!stopped) {
+                e.printStackTrace();
             }
-        } catch(IOException e) {
-            e.printStackTrace();
         } finally {
-            try {
-                ss.close();
-            } catch (IOException ignored) {}
+            shutdown(ssc);
+        }
+    }
+
+    /**
+     * 停止 Selector 线程，关闭所有连接，回滚它们未完成的事务
+     */
+    public void stop() {
+        stopped = true;
+        Selector s = selector;
+        if(s != null) {
+            s.wakeup();
         }
     }
-}
 
+    /**
+     * 工作线程池中排队等待执行的语句数
+     */
+    public int queueDepth() {
+        ThreadPoolExecutor p = pool;
+        return p == null ? 0 : p.getQueue().size();
+    }
 
-/**
- * HandleSocket 类实现了 Runnable 接口，在建立连接后初始化 Packager，随后就循环接收来自客户端的数据并处理
- */
-class HandleSocket implements Runnable {
+    /**
+     * 因为队列满而暂停读取、等待重新提交的连接数
+     */
+    public int deferredCount() {
+        return deferred.size();
+    }
 
-    private Socket socket;
-    private TableManager tbm;
+    public int connectionCount() {
+        return connections;
+    }
 
-    public HandleSocket(Socket socket, TableManager tbm) {
-        this.socket = socket;
-        this.tbm = tbm;
+    private void accept(ServerSocketChannel ssc) throws IOException {
+        SocketChannel sc = ssc.accept();
+        if(sc == null) {
+            return;
+        }
+        sc.configureBlocking(false);
+        SelectionKey key = sc.register(selector, SelectionKey.OP_READ);
+        Connection conn = new Connection(sc, key, new Executor(tbm));
+        key.attach(conn);
+        connections ++;
+        InetSocketAddress address = (InetSocketAddress) sc.getRemoteAddress();
+        System.out.println("Establish connection: " + address.getAddress().getHostAddress()+":"+address.getPort());
+    }
+
+    private void read(Connection conn, ByteBuffer readBuf) {
+        int n;
+        try {
+            readBuf.clear();
+            n = conn.channel.read(readBuf);
+        } catch (IOException e) {
+            n = -1;
+        }
+        if(n < 0) {
+            close(conn);
+            return;
+        }
+        readBuf.flip();
+        conn.append(readBuf);
+        dispatch(conn);
     }
 
     /**
-     * 用于处理客户端请求的 Packager
+     * 连接空闲且缓冲区里有一条完整的请求时，把它交给工作线程
      */
-    @Override
-    public void run() {
-        InetSocketAddress address = (InetSocketAddress)socket.getRemoteSocketAddress();
-        System.out.println("Establish connection: " + address.getAddress().getHostAddress()+":"+address.getPort());
-        Packager packager = null;
+    private void dispatch(Connection conn) {
+        if(conn.busy) {
+            return;
+        }
+        int res = conn.nextRequest();
+        if(res == Connection.NONE) {
+            return;
+        }
+        if(res == Connection.INVALID) {
+            close(conn);
+            return;
+        }
+        conn.busy = true;
+        if(res == Connection.HANDSHAKE) {
+            // 握手回复不需要工作线程，直接写
+            write(conn);
+            return;
+        }
+        conn.key.interestOps(0);
+        submit(conn);
+    }
+
+    private void submit(Connection conn) {
         try {
-            Transporter t = new Transporter(socket);
-            Encoder e = new Encoder();
-            packager = new Packager(t, e);
-        } catch(IOException e) {
-            e.printStackTrace();
+            pool.execute(conn.task(this));
+        } catch (RejectedExecutionException e) {
+            deferrals ++;
+            long now = System.currentTimeMillis();
+            if(now - lastOverloadReport >= OVERLOAD_REPORT_INTERVAL) {
+                System.out.println("Worker queue full (depth " + queueDepth() + "), " + deferrals + " requests deferred");
+                lastOverloadReport = now;
+                deferrals = 0;
+            }
+            deferred.addLast(conn);
+        }
+    }
+
+    private void retryDeferred() {
+        int n = deferred.size();
+        for (int i = 0; i < n; i++) {
+            Connection conn = deferred.pollFirst();
+            if(conn.closed) {
+                continue;
+            }
             try {
-                socket.close();
-            } catch (IOException e1) {
-                e1.printStackTrace();
+                pool.execute(conn.task(this));
+            } catch (RejectedExecutionException e) {
+                deferred.addFirst(conn);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 由工作线程调用，结果已经放在 conn.out 中
+     */
+    void complete(Connection conn) {
+        completed.add(conn);
+        selector.wakeup();
+    }
+
+    private void drainCompleted() {
+        Connection conn;
+        while((conn = completed.poll()) != null) {
+            if(conn.closed) {
+                continue;
+            }
+            if(conn.closing) {
+                close(conn);
+                continue;
             }
+            write(conn);
+        }
+    }
+
+    private void write(Connection conn) {
+        try {
+            conn.channel.write(conn.out);
+        } catch (IOException e) {
+            close(conn);
             return;
         }
-        Executor exe = new Executor(tbm);
-        while(true) {
-            Package pkg = null;
+        if(conn.out.length > 0 && conn.out[conn.out.length - 1].hasRemaining()) {
+            conn.key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+        // 写完一条结果，继续读下一条请求；缓冲区里可能已经有了
+        conn.out = null;
+        conn.busy = false;
+        conn.key.interestOps(SelectionKey.OP_READ);
+        dispatch(conn);
+    }
+
+    /**
+     * 语句执行中的连接等执行完再关闭，Executor 只在没有语句执行时关闭
+     */
+    private void close(Connection conn) {
+        if(conn.closed) {
+            return;
+        }
+        conn.key.cancel();
+        try {
+            conn.channel.close();
+        } catch (IOException ignored) {}
+        if(conn.busy && conn.out == null && !deferred.contains(conn)) {
+            conn.closing = true;
+            return;
+        }
+        conn.closed = true;
+        connections --;
+        conn.exe.close();
+    }
+
+    private void shutdown(ServerSocketChannel ssc) {
+        if(pool != null) {
+            pool.shutdown();
             try {
-                pkg = packager.receive();
-            } catch(Exception e) {
-                break;
+                pool.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {}
+        }
+        Selector s = selector;
+        if(s != null && s.isOpen()) {
+            for (SelectionKey key : s.keys()) {
+                if(key.attachment() instanceof Connection) {
+                    Connection conn = (Connection) key.attachment();
+                    conn.busy = false;
+                    close(conn);
+                }
             }
-            byte[] sql = pkg.getData();
-            byte[] result = null;
-            Exception e = null;
-            try {
-                result = exe.execute(sql);
-            } catch (Exception e1) {
-                e = e1;
-                e.printStackTrace();
+            for (Connection conn : completed) {
+                conn.busy = false;
+                close(conn);
             }
-            pkg = new Package(result, e);
             try {
-                packager.send(pkg);
-            } catch (Exception e1) {
-                e1.printStackTrace();
-                break;
-            }
+                s.close();
+            } catch (IOException ignored) {}
         }
-        exe.close();
         try {
-            packager.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+            if(ssc != null) {
+                ssc.close();
+            }
+        } catch (IOException ignored) {}
     }
 }
@@ -0,0 +1,99 @@
+package top.philsongzi.mydb.backend.tbm;
+
+import java.util.Arrays;
+
+/**
+ * 单个字段的统计信息，由 analyze 命令收集。
+ * 统计都在索引使用的 key 空间（Field.value2Uid）上进行，这样才能直接估算索引区间扫描会命中多少行。
+ * 直方图为等深直方图：bounds 有 BUCKETS+1 个边界，每个桶内的行数大致相同。
+ *
+ * @author 小子松
+ * @since 2026/10/19
+ */
+public class ColumnStats {
+
+    static final int BUCKETS = 16;
+
+    long rowCount;
+    long distinct;
+    long min;
+    long max;
+    long[] bounds;
+
+    /**
+     * 根据字段所有行的 key 构建统计信息
+     * @param keys 每一行该字段对应的 key，会被原地排序
+     * @return 统计信息
+     */
+    static ColumnStats build(long[] keys) {
+        ColumnStats cs = new ColumnStats();
+        cs.rowCount = keys.length;
+        if(keys.length == 0) {
+            cs.bounds = new long[0];
+            return cs;
+        }
+        Arrays.sort(keys);
+        long distinct = 1;
+        for(int i = 1; i < keys.length; i ++) {
+            if(keys[i] != keys[i-1]) {
+                distinct ++;
+            }
+        }
+        cs.distinct = distinct;
+        cs.min = keys[0];
+        cs.max = keys[keys.length-1];
+
+        // 等深划分：第 i 个边界取第 i*(n-1)/BUCKETS 小的 key
+        int buckets = Math.min(BUCKETS, keys.length);
+        cs.bounds = new long[buckets+1];
+        for(int i = 0; i <= buckets; i ++) {
+            cs.bounds[i] = keys[(int)((long)i * (keys.length-1) / buckets)];
+        }
+        return cs;
+    }
+
+    /**
+     * 估算 key 落在 [left, right] 内的行占比
+     */
+    double selectivity(long left, long right) {
+        if(rowCount == 0 || left > right || right < min || left > max) {
+            return 0;
+        }
+        if(left == right) {
+            return 1.0 / distinct;
+        }
+        int buckets = bounds.length - 1;
+        if(buckets == 0) {
+            return 1.0;
+        }
+        double sel = 0;
+        for(int i = 0; i < buckets; i ++) {
+            sel += overlap(bounds[i], bounds[i+1], left, right) / buckets;
+        }
+        // 至少会命中一个不同值
+        return Math.max(sel, 1.0 / distinct);
+    }
+
+    // 区间 [left, right] 覆盖桶 [lo, hi] 的比例，桶内按均匀分布线性插值
+    private static double overlap(long lo, long hi, long left, long right) {
+        if(right < lo || left > hi) {
+            return 0;
+        }
+        if(lo == hi) {
+            return 1;
+        }
+        double l = Math.max((double)left, (double)lo);
+        double r = Math.min((double)right, (double)hi);
+        return Math.min(1, (r - l + 1) / ((double)hi - (double)lo + 1));
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("rows=").append(rowCount)
+                .append(", distinct=").append(distinct)
+                .append(", min=").append(min)
+                .append(", max=").append(max)
+                .append(", buckets=").append(Math.max(bounds.length-1, 0))
+                .toString();
+    }
+}
@@ -0,0 +1,168 @@
+package top.philsongzi.mydb.backend.tbm;
+
+import top.philsongzi.mydb.backend.utils.Parser;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * 列向量：一个批次中某一列的全部值，按字段类型存放在原生数组里。
+ * 行数据是直接在页面上读取的视图，解码完这一行页面就会被释放，所以 string 列的字节要拷贝出来：
+ * 拷到这一列自己的缓冲区里，只记录位置（byte slice），直到输出时才转成 String。缓冲区在批次之间复用。
+ *
+ * @author 小子松
+ * @since 2026/10/19
+ */
+public class ColumnVector {
+
+    static final int INT32 = 0;
+    static final int INT64 = 1;
+    static final int STRING = 2;
+
+    int type;
+    int[] ints;
+    long[] longs;
+    byte[][] bufs;
+    int[] starts;
+    int[] lengths;
+    private byte[] heap;
+    private int heapPos;
+
+    ColumnVector(String fieldType, int capacity) {
+        switch(fieldType) {
+            case "int32":
+                type = INT32;
+                ints = new int[capacity];
+                break;
+            case "int64":
+                type = INT64;
+                longs = new long[capacity];
+                break;
+            case "string":
+                type = STRING;
+                bufs = new byte[capacity][];
+                starts = new int[capacity];
+                lengths = new int[capacity];
+                heap = new byte[capacity * 16];
+                break;
+        }
+    }
+
+    /**
+     * 从 raw 的 pos 处解码第 row 行的值，返回该值在行中占用的字节数
+     */
+    int decode(int row, byte[] raw, int pos) {
+        switch(type) {
+            case INT32:
+                ints[row] = Parser.parseInt(raw, pos);
+                return 4;
+            case INT64:
+                longs[row] = Parser.parseLong(raw, pos);
+                return 8;
+            default:
+                int length = Parser.parseInt(raw, pos);
+                copy(row, raw, pos + 4, length);
+                return length + 4;
+        }
+    }
+
+    /**
+     * 解码 raw 中 [start, end) 处第 row 行的值，用于带偏移头的行格式，string 没有长度前缀
+     */
+    void decode(int row, byte[] raw, int start, int end) {
+        switch(type) {
+            case INT32:
+                ints[row] = Parser.parseInt(raw, start);
+                break;
+            case INT64:
+                longs[row] = Parser.parseLong(raw, start);
+                break;
+            default:
+                copy(row, raw, start, end - start);
+                break;
+        }
+    }
+
+    private void copy(int row, byte[] raw, int start, int length) {
+        if(heapPos + length > heap.length) {
+            // 之前的行仍然引用旧的缓冲区，不需要搬过来
+            heap = new byte[Math.max(heap.length * 2, length)];
+            heapPos = 0;
+        }
+        System.arraycopy(raw, start, heap, heapPos, length);
+        bufs[row] = heap;
+        starts[row] = heapPos;
+        lengths[row] = length;
+        heapPos += length;
+    }
+
+    /**
+     * 不解码，只计算 raw 的 pos 处这一列的值占用的字节数
+     */
+    static int skip(String fieldType, byte[] raw, int pos) {
+        switch(fieldType) {
+            case "int32":
+                return 4;
+            case "int64":
+                return 8;
+            default:
+                return Parser.parseInt(raw, pos) + 4;
+        }
+    }
+
+    /**
+     * 第 row 行的值在索引 key 空间上的映射，与 Field.value2Uid 一致
+     */
+    long key(int row) {
+        switch(type) {
+            case INT32:
+                return ints[row];
+            case INT64:
+                return longs[row];
+            default:
+                return Parser.str2Uid(bufs[row], starts[row], lengths[row]);
+        }
+    }
+
+    void print(StringBuilder sb, int row) {
+        switch(type) {
+            case INT32:
+                sb.append(ints[row]);
+                break;
+            case INT64:
+                sb.append(longs[row]);
+                break;
+            default:
+                sb.append(new String(bufs[row], starts[row], lengths[row]));
+                break;
+        }
+    }
+
+    /**
+     * 按二进制协议的结果行格式写出第 row 行的值，string 直接写出缓冲区中的字节
+     */
+    void write(DataOutputStream out, int row) throws IOException {
+        switch(type) {
+            case INT32:
+                out.writeInt(ints[row]);
+                break;
+            case INT64:
+                out.writeLong(longs[row]);
+                break;
+            default:
+                out.writeInt(lengths[row]);
+                out.write(bufs[row], starts[row], lengths[row]);
+                break;
+        }
+    }
+
+    void clear(int size) {
+        if(type == STRING) {
+            // 释放对旧缓冲区的引用
+            for(int i = 0; i < size; i ++) {
+                bufs[i] = null;
+            }
+            heapPos = 0;
+        }
+    }
+}
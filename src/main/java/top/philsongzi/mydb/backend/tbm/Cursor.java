@@ -0,0 +1,174 @@
+package top.philsongzi.mydb.backend.tbm;
+
+import top.philsongzi.mydb.backend.common.SubArray;
+import top.philsongzi.mydb.backend.im.RangeIterator;
+import top.philsongzi.mydb.backend.vm.Entry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.List;
+
+/**
+ * 服务端游标：按 Plan 逐叶子扫描索引，逐批解码、过滤，每次 fetch 只格式化调用方要求的行数。
+ * 游标只持有一个叶子的 uid 和一个 RowBatch，内存占用与结果集大小无关。
+ * 多区间扫描时不再用 uid 集合去重，而是丢弃落在之前某个区间内的行（那些行已经被之前的区间返回过）。
+ * 每取到一个叶子的 uid，就把它们作为预读提示交给 DM，读行时页面大多已经在内存中。
+ *
+ * @author 小子松
+ * @since 2026/10/19
+ */
+public class Cursor {
+
+    private Table tb;
+    private long xid;
+    private Plan plan;
+    private int[] projection;
+    private int[] scanColumns;
+    private RowBatch batch;
+
+    private int scanNo;
+    private RangeIterator iter;
+    private List<Long> pending;
+    private int pendingPos;
+
+    Cursor(Table tb, long xid, Plan plan, int[] projection) throws Exception {
+        this.tb = tb;
+        this.xid = xid;
+        this.plan = plan;
+        this.projection = projection;
+
+        boolean[] needed = new boolean[tb.fields.size()];
+        for (int column : projection) {
+            needed[column] = true;
+        }
+        if(plan.filter != null) {
+            for (int column : plan.filterColumns) {
+                needed[column] = true;
+            }
+        }
+        scanColumns = new int[plan.scans.size()];
+        if(plan.scans.size() > 1) {
+            for (int i = 0; i < scanColumns.length; i++) {
+                scanColumns[i] = tb.fields.indexOf(plan.scans.get(i).field);
+                needed[scanColumns[i]] = true;
+            }
+        }
+        this.batch = new RowBatch(tb.layout, tb.fields, needed);
+        this.scanNo = -1;
+        advanceScan();
+    }
+
+    public long getXid() {
+        return xid;
+    }
+
+    /**
+     * 取出最多 n 行
+     * @return 格式化后的行，没有更多行时返回空串
+     */
+    public String fetch(int n) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        int rows = 0;
+        while(rows < n) {
+            if(batch.drained() && !fill()) {
+                break;
+            }
+            rows += batch.print(sb, projection, n - rows);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 取出最多 n 行，编码成二进制协议的结果行：先是列名和类型，然后是行数和每一行的值
+     */
+    public byte[] fetchRows(int n) throws Exception {
+        ByteArrayOutputStream rowBytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(rowBytes);
+        int rows = 0;
+        while(rows < n) {
+            if(batch.drained() && !fill()) {
+                break;
+            }
+            rows += batch.write(out, projection, n - rows);
+        }
+        ByteArrayOutputStream res = new ByteArrayOutputStream(rowBytes.size() + 64);
+        DataOutputStream head = new DataOutputStream(res);
+        head.writeShort(projection.length);
+        for (int column : projection) {
+            Field field = tb.fields.get(column);
+            byte[] name = field.fieldName.getBytes();
+            head.writeByte(batch.columns[column].type);
+            head.writeShort(name.length);
+            head.write(name);
+        }
+        head.writeInt(rows);
+        rowBytes.writeTo(res);
+        return res.toByteArray();
+    }
+
+    /**
+     * 填充并过滤下一个批次，一个批次里的行都来自同一个区间
+     * @return 扫描已经结束时返回 false
+     */
+    private boolean fill() throws Exception {
+        batch.reset();
+        while(!batch.isFull()) {
+            Long uid = nextUid();
+            if(uid == null) {
+                if(batch.size > 0) {
+                    break;
+                }
+                if(!advanceScan()) {
+                    return false;
+                }
+                continue;
+            }
+            // 直接在页面上解码，只拷贝用到的 string 列
+            Entry entry = tb.storage.vm.readEntry(xid, uid);
+            if(entry == null) {continue;}
+            try {
+                SubArray row = entry.view();
+                batch.add(row.raw, row.start, row.end);
+            } finally {
+                entry.release();
+            }
+        }
+        plan.filter(batch);
+        for (int j = 0; j < scanNo; j++) {
+            Plan.Scan s = plan.scans.get(j);
+            batch.filterOutRange(scanColumns[j], s.left, s.right);
+        }
+        return true;
+    }
+
+    private Long nextUid() throws Exception {
+        while(true) {
+            if(pending != null && pendingPos < pending.size()) {
+                return pending.get(pendingPos ++);
+            }
+            if(iter == null) {
+                return null;
+            }
+            pending = iter.next();
+            pendingPos = 0;
+            if(pending == null) {
+                iter = null;
+                return null;
+            }
+            // 这一叶子上的行接下来会被逐个读取，先让页面缓存在后台读入它们所在的页
+            tb.storage.dm.prefetch(pending);
+        }
+    }
+
+    private boolean advanceScan() throws Exception {
+        scanNo ++;
+        if(scanNo >= plan.scans.size()) {
+            scanNo = plan.scans.size() - 1;
+            return false;
+        }
+        Plan.Scan s = plan.scans.get(scanNo);
+        iter = s.left > s.right ? null : s.field.iterator(s.left, s.right);
+        pending = null;
+        return true;
+    }
+}
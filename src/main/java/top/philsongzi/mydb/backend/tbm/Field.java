@@ -3,6 +3,7 @@ package top.philsongzi.mydb.backend.tbm;
 import com.google.common.primitives.Bytes;
 
 import top.philsongzi.mydb.backend.im.BPlusTree;
+import top.philsongzi.mydb.backend.im.RangeIterator;
 import top.philsongzi.mydb.backend.parser.statement.SingleExpression;
 import top.philsongzi.mydb.backend.tm.TransactionManagerImpl;
 import top.philsongzi.mydb.backend.utils.Panic;
@@ -12,6 +13,7 @@ import top.philsongzi.mydb.common.Error;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
 
 /**
  * field 表示字段信息
@@ -65,7 +67,7 @@ public class Field {
         this.index = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
         if(index != 0) {
             try {
-                bt = BPlusTree.load(index, ((TableManagerImpl)tb.tbm).dm);
+                bt = BPlusTree.load(index, ((TableManagerImpl)tb.tbm).dm, tb.storage.dm);
             } catch(Exception e) {
                 Panic.panic(e);
             }
@@ -77,8 +79,9 @@ public class Field {
         typeCheck(fieldType);
         Field f = new Field(tb, fieldName, fieldType, 0);
         if(indexed) {
-            long index = BPlusTree.create(((TableManagerImpl)tb.tbm).dm);
-            BPlusTree bt = BPlusTree.load(index, ((TableManagerImpl)tb.tbm).dm);
+            // 启动项在主存储中，节点在表所在的存储中
+            long index = BPlusTree.create(((TableManagerImpl)tb.tbm).dm, tb.storage.dm);
+            BPlusTree bt = BPlusTree.load(index, ((TableManagerImpl)tb.tbm).dm, tb.storage.dm);
             f.index = index;
             f.bt = bt;
         }
@@ -108,10 +111,95 @@ public class Field {
         bt.insert(uKey, uid);
     }
 
+    /**
+     * 批量插入索引：先按 key 排序，相邻的插入落在同一条路径、同一个叶子上，页面缓存命中率更高
+     */
+    public void insertBatch(Object[] keys, long[] uids) throws Exception {
+        long[] uKeys = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            uKeys[i] = value2Uid(keys[i]);
+        }
+        uids = Arrays.copyOf(uids, uids.length);
+        sort(uKeys, uids, 0, uKeys.length - 1);
+        for (int i = 0; i < uKeys.length; i++) {
+            bt.insert(uKeys[i], uids[i]);
+        }
+    }
+
+    /**
+     * 批量导入结束后建立索引：索引为空时自底向上建树，否则退化为排序后逐个插入。
+     * 判空和建树在 B+ 树内部原子地完成，导入期间并发的普通插入不会丢失。
+     * keys 是已经映射到 key 空间的值，会和 uids 一起被原地排序
+     */
+    public void buildIndex(long[] keys, long[] uids, int n) throws Exception {
+        sort(keys, uids, 0, n - 1);
+        if(bt.buildIfEmpty(keys, uids, n)) {
+            return;
+        }
+        for (int i = 0; i < n; i++) {
+            bt.insert(keys[i], uids[i]);
+        }
+    }
+
+    /**
+     * 按 keys 对 keys[lo, hi] 和 uids[lo, hi] 一起做快速排序
+     */
+    private static void sort(long[] keys, long[] uids, int lo, int hi) {
+        while(lo < hi) {
+            if(hi - lo < 16) {
+                for (int i = lo + 1; i <= hi; i++) {
+                    for (int j = i; j > lo && keys[j-1] > keys[j]; j--) {
+                        swap(keys, uids, j, j-1);
+                    }
+                }
+                return;
+            }
+            long pivot = keys[(lo + hi) >>> 1];
+            int i = lo, j = hi;
+            while(i <= j) {
+                while(keys[i] < pivot) i ++;
+                while(keys[j] > pivot) j --;
+                if(i <= j) {
+                    swap(keys, uids, i ++, j --);
+                }
+            }
+            // 先递归较短的一边，栈深度不超过 log n
+            if(j - lo < hi - i) {
+                sort(keys, uids, lo, j);
+                lo = i;
+            } else {
+                sort(keys, uids, i, hi);
+                hi = j;
+            }
+        }
+    }
+
+    private static void swap(long[] keys, long[] uids, int i, int j) {
+        long k = keys[i]; keys[i] = keys[j]; keys[j] = k;
+        long u = uids[i]; uids[i] = uids[j]; uids[j] = u;
+    }
+
+    /**
+     * 从索引中删除指向 uids 的项，返回删除的项数
+     */
+    int unindex(Set<Long> uids) throws Exception {
+        return bt.remove(uids);
+    }
+
+    void resetIndex() throws Exception {
+        if(bt != null) {
+            bt.reset();
+        }
+    }
+
     public List<Long> search(long left, long right) throws Exception {
         return bt.searchRange(left, right);
     }
 
+    public RangeIterator iterator(long left, long right) throws Exception {
+        return bt.iterator(left, right);
+    }
+
     public Object string2Value(String str) {
         switch(fieldType) {
             case "int32":
@@ -0,0 +1,159 @@
+package top.philsongzi.mydb.backend.tbm;
+
+import top.philsongzi.mydb.backend.parser.statement.SingleExpression;
+import top.philsongzi.mydb.backend.parser.statement.Where;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Planner 选出的访问路径。
+ * 三种类型：
+ * FULL_SCAN：沿某个索引的全部叶子扫描整张表，再用 filter 过滤；
+ * INDEX_RANGE：在单个索引上做一次区间扫描；
+ * MULTI_RANGE：在一个或多个索引上做多次区间扫描，去掉之前的区间已经返回过的行后合并。
+ * 如果 filter 不为空，扫描出的行还需要再判断一次谓词。
+ *
+ * @author 小子松
+ * @since 2026/10/19
+ */
+public class Plan {
+
+    static final int FULL_SCAN = 0;
+    static final int INDEX_RANGE = 1;
+    static final int MULTI_RANGE = 2;
+
+    int type;
+    String tableName;
+    List<Scan> scans = new ArrayList<>();
+    double rows;
+    double cost;
+
+    // 残余谓词，为 null 时表示扫描结果已经精确满足 where
+    Where filter;
+    String filterOp;
+    Field[] filterFields;
+    int[] filterColumns;
+    FieldCalRes[] filterRanges;
+
+    static class Scan {
+        Field field;
+        long left, right;
+
+        Scan(Field field, long left, long right) {
+            this.field = field;
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    /**
+     * 设置残余谓词，同时预先算好每个表达式在 key 空间上的区间，避免每一行都重新解析常量
+     */
+    void setFilter(Table tb, Where where) throws Exception {
+        filter = where;
+        filterOp = where.logicOp;
+        if("".equals(where.logicOp)) {
+            filterFields = new Field[]{tb.findField(where.singleExp1.field)};
+            filterRanges = new FieldCalRes[]{filterFields[0].calExp(where.singleExp1)};
+        } else {
+            filterFields = new Field[]{tb.findField(where.singleExp1.field), tb.findField(where.singleExp2.field)};
+            filterRanges = new FieldCalRes[]{filterFields[0].calExp(where.singleExp1), filterFields[1].calExp(where.singleExp2)};
+        }
+        filterColumns = new int[filterFields.length];
+        for(int i = 0; i < filterFields.length; i ++) {
+            filterColumns[i] = tb.fields.indexOf(filterFields[i]);
+        }
+    }
+
+    /**
+     * 在整个批次上判断残余谓词，更新批次的选择向量
+     */
+    void filter(RowBatch batch) {
+        if(filter == null) {
+            return;
+        }
+        switch(filterOp) {
+            case "and":
+                batch.filterRange(filterColumns[0], filterRanges[0].left, filterRanges[0].right);
+                batch.filterRange(filterColumns[1], filterRanges[1].left, filterRanges[1].right);
+                break;
+            case "or":
+                batch.filterEither(filterColumns[0], filterRanges[0].left, filterRanges[0].right,
+                        filterColumns[1], filterRanges[1].left, filterRanges[1].right);
+                break;
+            default:
+                batch.filterRange(filterColumns[0], filterRanges[0].left, filterRanges[0].right);
+        }
+    }
+
+    /**
+     * 判断一行是否满足残余谓词。与索引一致，比较在 key 空间上进行，直接在行数据上只解码谓词涉及的列。
+     */
+    boolean test(RowLayout layout, byte[] raw) {
+        return test(layout, raw, 0, raw.length);
+    }
+
+    /**
+     * 行数据是 buf 的 [base, end) 时判断，不拷贝行数据
+     */
+    boolean test(RowLayout layout, byte[] buf, int base, int end) {
+        if(filter == null) {
+            return true;
+        }
+        boolean r0 = test(0, layout, buf, base, end);
+        switch(filterOp) {
+            case "and":
+                return r0 && test(1, layout, buf, base, end);
+            case "or":
+                return r0 || test(1, layout, buf, base, end);
+            default:
+                return r0;
+        }
+    }
+
+    private boolean test(int i, RowLayout layout, byte[] buf, int base, int end) {
+        long key = layout.key(buf, base, end, filterColumns[i]);
+        return key >= filterRanges[i].left && key <= filterRanges[i].right;
+    }
+
+    private static String expString(SingleExpression exp) {
+        return exp.field + " " + exp.compareOp + " " + exp.value;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        switch(type) {
+            case FULL_SCAN:
+                sb.append("FullScan on ").append(tableName)
+                        .append(" via index ").append(scans.get(0).field.fieldName);
+                break;
+            case INDEX_RANGE:
+                Scan s = scans.get(0);
+                sb.append("IndexRangeScan on ").append(tableName)
+                        .append(" using ").append(s.field.fieldName)
+                        .append(" [").append(s.left).append(", ").append(s.right).append("]");
+                break;
+            case MULTI_RANGE:
+                sb.append("MultiRangeUnion on ").append(tableName).append(" using ");
+                for(int i = 0; i < scans.size(); i ++) {
+                    Scan sc = scans.get(i);
+                    if(i > 0) {
+                        sb.append(" + ");
+                    }
+                    sb.append(sc.field.fieldName).append(" [").append(sc.left).append(", ").append(sc.right).append("]");
+                }
+                sb.append(" dedup");
+                break;
+        }
+        sb.append(String.format(" (rows=%.0f, cost=%.2f)", rows, cost));
+        if(filter != null) {
+            sb.append("\n    Filter: ").append(expString(filter.singleExp1));
+            if(!"".equals(filter.logicOp)) {
+                sb.append(" ").append(filter.logicOp).append(" ").append(expString(filter.singleExp2));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,181 @@
+package top.philsongzi.mydb.backend.tbm;
+
+import top.philsongzi.mydb.backend.parser.statement.Where;
+import top.philsongzi.mydb.common.Error;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 基于代价的访问路径选择。
+ * 对 where 枚举所有可行的访问路径（全表扫描、单索引区间扫描、多区间去重合并），
+ * 用 analyze 收集的统计信息估算每条路径会读取的行数和代价，选出代价最小的一条。
+ * 代价模型很粗糙：每次索引下探的代价为 INDEX_PROBE_COST，每读取一行的代价为 ROW_COST，
+ * 需要再判断残余谓词或去重的行各自额外加一点代价。
+ *
+ * @author 小子松
+ * @since 2026/10/19
+ */
+public class Planner {
+
+    static final double INDEX_PROBE_COST = 4.0;
+    static final double ROW_COST = 1.0;
+    static final double FILTER_ROW_COST = 0.1;
+    static final double DEDUP_ROW_COST = 0.05;
+
+    // 没有统计信息时的默认估计
+    static final double DEFAULT_ROWS = 1000;
+    static final double DEFAULT_EQ_SEL = 0.005;
+    static final double DEFAULT_RANGE_SEL = 1.0 / 3;
+
+    /**
+     * 为 where 选出代价最小的访问路径
+     */
+    public static Plan plan(Table tb, Where where) throws Exception {
+        List<Plan> plans = candidates(tb, where);
+        Plan best = plans.get(0);
+        for(Plan p : plans) {
+            if(p.cost < best.cost) {
+                best = p;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * explain 输出：第一行是选中的路径，随后列出其余被比较过的路径
+     */
+    public static String explain(Table tb, Where where) throws Exception {
+        List<Plan> plans = candidates(tb, where);
+        Plan best = plan(tb, where);
+        StringBuilder sb = new StringBuilder();
+        sb.append("-> ").append(best.toString()).append("\n");
+        if(tb.stats == null) {
+            sb.append("(no statistics, run analyze ").append(tb.name).append(")\n");
+        }
+        for(Plan p : plans) {
+            if(p != best) {
+                sb.append("   rejected: ").append(p.toString()).append("\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    static List<Plan> candidates(Table tb, Where where) throws Exception {
+        TableStats stats = tb.stats;
+        double total = stats == null ? DEFAULT_ROWS : stats.rowCount;
+
+        List<Plan> plans = new ArrayList<>();
+        plans.add(fullScan(tb, where, total));
+        if(where == null) {
+            return plans;
+        }
+
+        Field f1 = tb.findField(where.singleExp1.field);
+        FieldCalRes r1 = f1.calExp(where.singleExp1);
+        switch(where.logicOp) {
+            case "":
+                if(f1.isIndexed()) {
+                    plans.add(indexRange(tb, f1, r1.left, r1.right, null, total));
+                }
+                break;
+            case "and": {
+                Field f2 = tb.findField(where.singleExp2.field);
+                FieldCalRes r2 = f2.calExp(where.singleExp2);
+                if(f1 == f2) {
+                    // 同一字段上的 and 直接求区间交集
+                    if(f1.isIndexed()) {
+                        plans.add(indexRange(tb, f1, Math.max(r1.left, r2.left), Math.min(r1.right, r2.right), null, total));
+                    }
+                } else {
+                    // 不同字段：在任一有索引的字段上扫描，另一个条件作为残余谓词
+                    if(f1.isIndexed()) {
+                        plans.add(indexRange(tb, f1, r1.left, r1.right, where, total));
+                    }
+                    if(f2.isIndexed()) {
+                        plans.add(indexRange(tb, f2, r2.left, r2.right, where, total));
+                    }
+                }
+                break;
+            }
+            case "or": {
+                Field f2 = tb.findField(where.singleExp2.field);
+                FieldCalRes r2 = f2.calExp(where.singleExp2);
+                if(f1 == f2 && f1.isIndexed()) {
+                    if(r1.left > r2.left) {
+                        FieldCalRes tmp = r1; r1 = r2; r2 = tmp;
+                    }
+                    if(r2.left <= r1.right || (r1.right != Long.MAX_VALUE && r2.left == r1.right + 1)) {
+                        // 两个区间重叠或相邻，合并成一个区间
+                        plans.add(indexRange(tb, f1, r1.left, Math.max(r1.right, r2.right), null, total));
+                    } else {
+                        plans.add(multiRange(tb, new Field[]{f1, f1}, new FieldCalRes[]{r1, r2}, total));
+                    }
+                } else if(f1 != f2 && f1.isIndexed() && f2.isIndexed()) {
+                    plans.add(multiRange(tb, new Field[]{f1, f2}, new FieldCalRes[]{r1, r2}, total));
+                }
+                break;
+            }
+            default:
+                throw Error.InvalidLogOpException;
+        }
+        return plans;
+    }
+
+    private static Plan fullScan(Table tb, Where where, double total) throws Exception {
+        Plan p = new Plan();
+        p.type = Plan.FULL_SCAN;
+        p.tableName = tb.name;
+        p.scans.add(new Plan.Scan(tb.firstIndexedField(), Long.MIN_VALUE, Long.MAX_VALUE));
+        p.rows = total;
+        p.cost = INDEX_PROBE_COST + total * ROW_COST;
+        if(where != null) {
+            p.setFilter(tb, where);
+            p.cost += total * FILTER_ROW_COST;
+        }
+        return p;
+    }
+
+    private static Plan indexRange(Table tb, Field fd, long left, long right, Where filter, double total) throws Exception {
+        Plan p = new Plan();
+        p.type = Plan.INDEX_RANGE;
+        p.tableName = tb.name;
+        p.scans.add(new Plan.Scan(fd, left, right));
+        p.rows = total * selectivity(tb, fd, left, right);
+        p.cost = INDEX_PROBE_COST + p.rows * ROW_COST;
+        if(filter != null) {
+            p.setFilter(tb, filter);
+            p.cost += p.rows * FILTER_ROW_COST;
+        }
+        return p;
+    }
+
+    private static Plan multiRange(Table tb, Field[] fds, FieldCalRes[] ranges, double total) {
+        Plan p = new Plan();
+        p.type = Plan.MULTI_RANGE;
+        p.tableName = tb.name;
+        double rows = 0;
+        for(int i = 0; i < fds.length; i ++) {
+            p.scans.add(new Plan.Scan(fds[i], ranges[i].left, ranges[i].right));
+            rows += total * selectivity(tb, fds[i], ranges[i].left, ranges[i].right);
+        }
+        p.rows = Math.min(rows, total);
+        p.cost = fds.length * INDEX_PROBE_COST + rows * (ROW_COST + DEDUP_ROW_COST);
+        return p;
+    }
+
+    private static double selectivity(Table tb, Field fd, long left, long right) {
+        if(left > right) {
+            return 0;
+        }
+        TableStats stats = tb.stats;
+        ColumnStats cs = stats == null ? null : stats.get(fd.fieldName);
+        if(cs == null) {
+            if(left == Long.MIN_VALUE && right == Long.MAX_VALUE) {
+                return 1;
+            }
+            return left == right ? DEFAULT_EQ_SEL : DEFAULT_RANGE_SEL;
+        }
+        return cs.selectivity(left, right);
+    }
+}
@@ -0,0 +1,128 @@
+package top.philsongzi.mydb.backend.tbm;
+
+import top.philsongzi.mydb.backend.parser.statement.*;
+import top.philsongzi.mydb.common.Error;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 预编译语句：保存解析好的语句和它引用的 Table，执行时只需把参数填进占位符 ? 所在的位置，
+ * 不再经过 Tokenizer/Parser，也不再查表缓存。
+ * 访问路径仍在每次执行时由 Planner 选择，因为区间和选择率都取决于参数值。
+ * 绑定参数会改写语句对象，所以一个 Prepared 只能在一个会话内使用。
+ *
+ * @author 小子松
+ * @since 2026/10/19
+ */
+public class Prepared {
+
+    static final int SELECT = 0;
+    static final int INSERT = 1;
+    static final int UPDATE = 2;
+    static final int DELETE = 3;
+
+    static final String PLACEHOLDER = "?";
+
+    private Table table;
+    private int type;
+    private Object statement;
+    private List<Slot> slots = new ArrayList<>();
+
+    /**
+     * 一个占位符在语句对象中的位置
+     */
+    private static class Slot {
+        String[] values;
+        int index;
+        SingleExpression exp;
+        Update update;
+
+        void bind(String param) {
+            if(values != null) {
+                values[index] = param;
+            } else if(exp != null) {
+                exp.value = param;
+            } else {
+                update.value = param;
+            }
+        }
+    }
+
+    Prepared(Table table, Object statement) throws Exception {
+        this.table = table;
+        this.statement = statement;
+        if(statement instanceof Select) {
+            type = SELECT;
+            collect(((Select)statement).where);
+        } else if(statement instanceof Insert) {
+            type = INSERT;
+            for (String[] values : ((Insert)statement).rows) {
+                for (int i = 0; i < values.length; i++) {
+                    if(PLACEHOLDER.equals(values[i])) {
+                        Slot slot = new Slot();
+                        slot.values = values;
+                        slot.index = i;
+                        slots.add(slot);
+                    }
+                }
+            }
+        } else if(statement instanceof Update) {
+            type = UPDATE;
+            Update update = (Update)statement;
+            if(PLACEHOLDER.equals(update.value)) {
+                Slot slot = new Slot();
+                slot.update = update;
+                slots.add(slot);
+            }
+            collect(update.where);
+        } else if(statement instanceof Delete) {
+            type = DELETE;
+            collect(((Delete)statement).where);
+        } else {
+            throw Error.InvalidCommandException;
+        }
+    }
+
+    private void collect(Where where) {
+        if(where == null) {
+            return;
+        }
+        collect(where.singleExp1);
+        if(!"".equals(where.logicOp)) {
+            collect(where.singleExp2);
+        }
+    }
+
+    private void collect(SingleExpression exp) {
+        if(PLACEHOLDER.equals(exp.value)) {
+            Slot slot = new Slot();
+            slot.exp = exp;
+            slots.add(slot);
+        }
+    }
+
+    public int paramCount() {
+        return slots.size();
+    }
+
+    public byte[] execute(long xid, String[] params) throws Exception {
+        if(params.length != slots.size()) {
+            throw Error.InvalidParamsException;
+        }
+        for (int i = 0; i < params.length; i++) {
+            slots.get(i).bind(params[i]);
+        }
+        switch(type) {
+            case SELECT:
+                return table.read(xid, (Select)statement).getBytes();
+            case INSERT:
+                table.insert(xid, (Insert)statement);
+                return "insert".getBytes();
+            case UPDATE:
+                return ("update " + table.update(xid, (Update)statement)).getBytes();
+            default:
+                return ("delete " + table.delete(xid, (Delete)statement)).getBytes();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package top.philsongzi.mydb.backend.tbm;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * 向量化执行的行批次：最多 BATCH_SIZE 行，每个字段一个 ColumnVector。
+ * 只有 needed 为 true 的字段会被解码：V1 行格式按偏移直接定位，LEGACY 行格式在行内跳过其余字段。
+ * 放在行外的值也只有在 needed 时才会去读取。
+ * sel 是选择向量，保存通过过滤的行号，过滤和投影都在整个批次上进行，只在输出时格式化。
+ *
+ * @author 小子松
+ * @since 2026/10/19
+ */
+public class RowBatch {
+
+    static final int BATCH_SIZE = 1024;
+
+    private RowLayout layout;
+    private List<Field> fields;
+    boolean[] needed;
+    ColumnVector[] columns;
+    int size;
+    int[] sel;
+    int selSize;
+    // 选择向量中下一个要输出的位置，一个批次可以分多次输出
+    int out;
+
+    RowBatch(RowLayout layout, List<Field> fields, boolean[] needed) {
+        this.layout = layout;
+        this.fields = fields;
+        this.needed = needed;
+        this.columns = new ColumnVector[fields.size()];
+        for (int i = 0; i < fields.size(); i++) {
+            if(needed[i]) {
+                columns[i] = new ColumnVector(fields.get(i).fieldType, BATCH_SIZE);
+            }
+        }
+        this.sel = new int[BATCH_SIZE];
+    }
+
+    boolean isFull() {
+        return size == BATCH_SIZE;
+    }
+
+    boolean drained() {
+        return out >= selSize;
+    }
+
+    /**
+     * 把一行解码进批次。行数据是 buf 的 [base, end)，通常是页面上的视图，只拷贝需要的 string 字节
+     */
+    void add(byte[] buf, int base, int end) {
+        if(layout.format == RowLayout.V1) {
+            for (int i = 0; i < columns.length; i++) {
+                if(columns[i] == null) {
+                    continue;
+                }
+                if(layout.isToasted(buf, base, i)) {
+                    // 放在行外的值只在这一列被用到时才读取
+                    byte[] value = layout.detoast(buf, base, i);
+                    columns[i].decode(size, value, 0, value.length);
+                } else {
+                    columns[i].decode(size, buf, layout.start(buf, base, i), layout.end(buf, base, end, i));
+                }
+            }
+        } else {
+            int pos = base;
+            for (int i = 0; i < columns.length; i++) {
+                if(columns[i] != null) {
+                    pos += columns[i].decode(size, buf, pos);
+                } else {
+                    pos += ColumnVector.skip(fields.get(i).fieldType, buf, pos);
+                }
+            }
+        }
+        sel[size] = size;
+        size ++;
+        selSize = size;
+    }
+
+    void reset() {
+        for (ColumnVector cv : columns) {
+            if(cv != null) {
+                cv.clear(size);
+            }
+        }
+        size = 0;
+        selSize = 0;
+        out = 0;
+    }
+
+    /**
+     * 只保留 [left, right] 内的行（key 空间），结果写回选择向量
+     */
+    void filterRange(int column, long left, long right) {
+        ColumnVector cv = columns[column];
+        int n = 0;
+        for (int i = 0; i < selSize; i++) {
+            long key = cv.key(sel[i]);
+            if(key >= left && key <= right) {
+                sel[n ++] = sel[i];
+            }
+        }
+        selSize = n;
+    }
+
+    /**
+     * 去掉 [left, right] 内的行，多区间扫描时用来跳过之前的区间已经返回过的行
+     */
+    void filterOutRange(int column, long left, long right) {
+        ColumnVector cv = columns[column];
+        int n = 0;
+        for (int i = 0; i < selSize; i++) {
+            long key = cv.key(sel[i]);
+            if(key < left || key > right) {
+                sel[n ++] = sel[i];
+            }
+        }
+        selSize = n;
+    }
+
+    /**
+     * 只保留落在任一区间内的行，用于 or 条件
+     */
+    void filterEither(int column0, long left0, long right0, int column1, long left1, long right1) {
+        ColumnVector cv0 = columns[column0];
+        ColumnVector cv1 = columns[column1];
+        int n = 0;
+        for (int i = 0; i < selSize; i++) {
+            long key0 = cv0.key(sel[i]);
+            if(key0 >= left0 && key0 <= right0) {
+                sel[n ++] = sel[i];
+                continue;
+            }
+            long key1 = cv1.key(sel[i]);
+            if(key1 >= left1 && key1 <= right1) {
+                sel[n ++] = sel[i];
+            }
+        }
+        selSize = n;
+    }
+
+    /**
+     * 把选中的行按 projection 的列顺序格式化输出，最多输出 limit 行
+     * @return 实际输出的行数
+     */
+    int print(StringBuilder sb, int[] projection, int limit) {
+        int printed = 0;
+        while(out < selSize && printed < limit) {
+            int row = sel[out ++];
+            sb.append("[");
+            for (int j = 0; j < projection.length; j++) {
+                columns[projection[j]].print(sb, row);
+                if(j == projection.length-1) {
+                    sb.append("]");
+                } else {
+                    sb.append(", ");
+                }
+            }
+            sb.append("\n");
+            printed ++;
+        }
+        return printed;
+    }
+
+    /**
+     * 与 print 相同，但按类型写出二进制的值
+     */
+    int write(DataOutputStream out, int[] projection, int limit) throws IOException {
+        int written = 0;
+        while(this.out < selSize && written < limit) {
+            int row = sel[this.out ++];
+            for (int column : projection) {
+                columns[column].write(out, row);
+            }
+            written ++;
+        }
+        return written;
+    }
+}
@@ -0,0 +1,292 @@
+package top.philsongzi.mydb.backend.tbm;
+
+import top.philsongzi.mydb.backend.utils.Parser;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 行格式，负责一行数据的编码，以及按列定位、解码。
+ * LEGACY：各字段直接拼接，string 为 [Length][Bytes]，要读取某一列必须先跳过它前面的所有列；
+ * V1：[Version][NullBitmap][Offset0]...[OffsetN-1][Field0]...[FieldN-1]
+ *     Version 1 字节；NullBitmap 每个字段 1 位；Offset 为每个字段相对行首的 2 字节偏移，
+ *     字段 i 的结尾就是字段 i+1 的偏移（最后一个字段到行尾），因此 string 不再需要长度前缀。
+ *     任意一列都可以按偏移直接定位解码，不需要解码它前面的列。
+ *     目前语句中还不能写 NULL，NullBitmap 总是为 0，只是为以后支持 NULL 预留，避免再改一次格式。
+ *     行不会超过一页，偏移用不到最高位：最高位为 1 表示这个 string 值放在了行外（见 Toast），
+ *     行内存的是指向行外数据的指针，解码这一列时才去读取。LEGACY 格式不支持行外存储。
+ * 表使用哪种格式记录在表的元数据中：旧表继续使用 LEGACY，新建的表使用 V1。
+ *
+ * @author 小子松
+ * @since 2026/10/19
+ */
+public class RowLayout {
+
+    static final byte LEGACY = 0;
+    static final byte V1 = 1;
+
+    final byte format;
+    private final List<Field> fields;
+    private final int bitmapSize;
+    private final int headerSize;
+    private final Toast toast;
+
+    private static final int TOASTED = 0x8000;
+
+    RowLayout(byte format, List<Field> fields) {
+        this(format, fields, null);
+    }
+
+    RowLayout(byte format, List<Field> fields, Toast toast) {
+        this.format = format;
+        this.fields = fields;
+        this.toast = toast;
+        this.bitmapSize = (fields.size() + 7) / 8;
+        this.headerSize = format == V1 ? 1 + bitmapSize + 2 * fields.size() : 0;
+    }
+
+    byte[] encode(long xid, Map<String, Object> entry) throws Exception {
+        return encode(xid, entry, null);
+    }
+
+    /**
+     * 先算出整行的大小，再在一个预先分配好的数组中依次写入各字段。
+     * 过长的 string 值先由 xid 写到行外，行内只放指针。
+     * entry 中没有的 string 列在 old 中放在行外（见 decodeInline），直接拷贝 old 中的指针，不再重新写一遍
+     */
+    byte[] encode(long xid, Map<String, Object> entry, byte[] old) throws Exception {
+        int n = fields.size();
+        byte[][] strings = new byte[n][];
+        boolean[] toasted = new boolean[n];
+        int size = headerSize;
+        for (int i = 0; i < n; i++) {
+            Field f = fields.get(i);
+            switch(f.fieldType) {
+                case "int32":
+                    size += 4;
+                    break;
+                case "int64":
+                    size += 8;
+                    break;
+                case "string":
+                    if(old != null && !entry.containsKey(f.fieldName)) {
+                        int start = start(old, i);
+                        strings[i] = Arrays.copyOfRange(old, start, start + Toast.POINTER_SIZE);
+                        toasted[i] = true;
+                        size += strings[i].length;
+                        break;
+                    }
+                    strings[i] = ((String)entry.get(f.fieldName)).getBytes();
+                    if(format == V1 && toast != null && Toast.needed(strings[i])) {
+                        strings[i] = toast.store(xid, strings[i]);
+                        toasted[i] = true;
+                    }
+                    size += strings[i].length + (format == LEGACY ? 4 : 0);
+                    break;
+            }
+        }
+
+        byte[] raw = new byte[size];
+        int pos = headerSize;
+        if(format == V1) {
+            raw[0] = V1;
+        }
+        for (int i = 0; i < n; i++) {
+            Field f = fields.get(i);
+            if(format == V1) {
+                Parser.putShort(raw, 1 + bitmapSize + 2 * i, (short)(toasted[i] ? pos | TOASTED : pos));
+            }
+            switch(f.fieldType) {
+                case "int32":
+                    Parser.putInt(raw, pos, (int)entry.get(f.fieldName));
+                    pos += 4;
+                    break;
+                case "int64":
+                    Parser.putLong(raw, pos, (long)entry.get(f.fieldName));
+                    pos += 8;
+                    break;
+                case "string":
+                    if(format == LEGACY) {
+                        Parser.putInt(raw, pos, strings[i].length);
+                        pos += 4;
+                    }
+                    System.arraycopy(strings[i], 0, raw, pos, strings[i].length);
+                    pos += strings[i].length;
+                    break;
+            }
+        }
+        return raw;
+    }
+
+    /**
+     * 第 column 列的数据在 raw 中的起始位置，string 在 LEGACY 格式下包含长度前缀
+     */
+    int start(byte[] raw, int column) {
+        return start(raw, 0, column);
+    }
+
+    /**
+     * 行数据是 buf 中从 base 开始的一段（例如直接在页面上读取）时，第 column 列的起始位置
+     */
+    int start(byte[] buf, int base, int column) {
+        if(format == V1) {
+            return base + (Parser.parseShort(buf, base + 1 + bitmapSize + 2 * column) & (TOASTED - 1));
+        }
+        int pos = base;
+        for (int i = 0; i < column; i++) {
+            pos += ColumnVector.skip(fields.get(i).fieldType, buf, pos);
+        }
+        return pos;
+    }
+
+    /**
+     * 只在 V1 格式下有意义：第 column 列数据的结束位置（不含）
+     */
+    int end(byte[] raw, int column) {
+        return end(raw, 0, raw.length, column);
+    }
+
+    int end(byte[] buf, int base, int rowEnd, int column) {
+        return column + 1 < fields.size() ? start(buf, base, column + 1) : rowEnd;
+    }
+
+    boolean isToasted(byte[] raw, int column) {
+        return isToasted(raw, 0, column);
+    }
+
+    boolean isToasted(byte[] buf, int base, int column) {
+        return format == V1 && (Parser.parseShort(buf, base + 1 + bitmapSize + 2 * column) & TOASTED) != 0;
+    }
+
+    /**
+     * 读回放在行外的第 column 列
+     */
+    byte[] detoast(byte[] raw, int column) {
+        return detoast(raw, 0, column);
+    }
+
+    byte[] detoast(byte[] buf, int base, int column) {
+        return toast.fetch(buf, start(buf, base, column));
+    }
+
+    /**
+     * 这种格式的行是否可能有放在行外的列
+     */
+    boolean mayToast() {
+        if(format != V1 || toast == null) {
+            return false;
+        }
+        for (Field f : fields) {
+            if("string".equals(f.fieldType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 把 raw 中放在行外的列的链（第一块的 uid）加入 chains
+     */
+    void toastChains(byte[] raw, Collection<Long> chains) {
+        for (int i = 0; i < fields.size(); i++) {
+            if(isToasted(raw, i)) {
+                chains.add(Toast.firstUid(raw, start(raw, i)));
+            }
+        }
+    }
+
+    boolean isNull(byte[] raw, int column) {
+        return format == V1 && (raw[1 + column / 8] & (1 << (column % 8))) != 0;
+    }
+
+    /**
+     * 只解码第 column 列，返回它在索引 key 空间上的映射
+     */
+    long key(byte[] raw, int column) {
+        return key(raw, 0, raw.length, column);
+    }
+
+    /**
+     * 行数据是 buf 的 [base, rowEnd) 时，只解码第 column 列，不拷贝行数据
+     */
+    long key(byte[] buf, int base, int rowEnd, int column) {
+        int start = start(buf, base, column);
+        switch(fields.get(column).fieldType) {
+            case "int32":
+                return Parser.parseInt(buf, start);
+            case "int64":
+                return Parser.parseLong(buf, start);
+            default:
+                if(format == LEGACY) {
+                    return Parser.str2Uid(buf, start + 4, Parser.parseInt(buf, start));
+                }
+                if(isToasted(buf, base, column)) {
+                    byte[] value = detoast(buf, base, column);
+                    return Parser.str2Uid(value, 0, value.length);
+                }
+                return Parser.str2Uid(buf, start, end(buf, base, rowEnd, column) - start);
+        }
+    }
+
+    /**
+     * 只解码第 column 列
+     */
+    Object value(byte[] raw, int column) {
+        return value(raw, column, start(raw, column));
+    }
+
+    private Object value(byte[] raw, int column, int start) {
+        if(isNull(raw, column)) {
+            return null;
+        }
+        switch(fields.get(column).fieldType) {
+            case "int32":
+                return Parser.parseInt(raw, start);
+            case "int64":
+                return Parser.parseLong(raw, start);
+            default:
+                if(format == LEGACY) {
+                    return new String(raw, start + 4, Parser.parseInt(raw, start));
+                }
+                if(isToasted(raw, column)) {
+                    return new String(detoast(raw, column));
+                }
+                return new String(raw, start, end(raw, column) - start);
+        }
+    }
+
+    /**
+     * 和 decode 相同，但是不读取放在行外的列，entry 中没有这些列。用于 update 把没有改动的列原样写回
+     */
+    Map<String, Object> decodeInline(byte[] raw) {
+        if(format != V1) {
+            return decode(raw);
+        }
+        Map<String, Object> entry = new HashMap<>();
+        for (int i = 0; i < fields.size(); i++) {
+            if(!isToasted(raw, i)) {
+                entry.put(fields.get(i).fieldName, value(raw, i));
+            }
+        }
+        return entry;
+    }
+
+    Map<String, Object> decode(byte[] raw) {
+        Map<String, Object> entry = new HashMap<>();
+        int pos = 0;
+        for (int i = 0; i < fields.size(); i++) {
+            Field f = fields.get(i);
+            if(format == V1) {
+                entry.put(f.fieldName, value(raw, i));
+            } else {
+                // LEGACY 顺序解码，顺便推进位置，避免每一列都从头扫描
+                entry.put(f.fieldName, value(raw, i, pos));
+                pos += ColumnVector.skip(f.fieldType, raw, pos);
+            }
+        }
+        return entry;
+    }
+}
@@ -0,0 +1,45 @@
+package top.philsongzi.mydb.backend.tbm;
+
+import top.philsongzi.mydb.backend.dm.DataManager;
+import top.philsongzi.mydb.backend.vm.VersionManager;
+
+/**
+ * 表的存储：表的行和索引节点放在哪个 DM 中。
+ * LOGGED 是主存储，写日志，崩溃后恢复；
+ * UNLOGGED 是 path.unlogged.db，不写日志，崩溃后整个清空；
+ * MEMORY 只在内存中，每次启动都是空的。
+ * 表和字段的元数据、索引的启动项总是在主存储中，表的定义不会丢。
+ * 三种存储共用同一组事务（同一个 TM 和活跃事务表），MVCC 和锁对它们是一样的。
+ *
+ * @author 小子松
+ * @since 2026/10/19
+ */
+class Storage {
+
+    static final byte LOGGED = 0;
+    static final byte UNLOGGED = 1;
+    static final byte MEMORY = 2;
+
+    final byte kind;
+    final VersionManager vm;
+    final DataManager dm;
+    final Toast toast;
+
+    Storage(byte kind, VersionManager vm, DataManager dm) {
+        this.kind = kind;
+        this.vm = vm;
+        this.dm = dm;
+        this.toast = new Toast(dm);
+    }
+
+    static String name(byte kind) {
+        switch(kind) {
+            case UNLOGGED:
+                return "unlogged";
+            case MEMORY:
+                return "memory";
+            default:
+                return "logged";
+        }
+    }
+}
@@ -1,32 +1,79 @@
 package top.philsongzi.mydb.backend.tbm;
 
 import com.google.common.primitives.Bytes;
+import top.philsongzi.mydb.backend.common.SubArray;
 import top.philsongzi.mydb.backend.parser.statement.*;
 import top.philsongzi.mydb.backend.tm.TransactionManagerImpl;
 import top.philsongzi.mydb.backend.utils.Panic;
 import top.philsongzi.mydb.backend.utils.ParseStringRes;
 import top.philsongzi.mydb.backend.utils.Parser;
+import top.philsongzi.mydb.backend.vm.Entry;
+import top.philsongzi.mydb.backend.vm.VersionManager;
 import top.philsongzi.mydb.common.Error;
 
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Table 维护了表结构
  * 二进制结构如下：
  * [TableName][NextTable]
- * [Field1Uid][Field2Uid]...[FieldNUid]
+ * [Field1Uid][Field2Uid]...[FieldNUid][RowFormat]
+ * RowFormat 为 1 字节的行格式版本，旧版本创建的表没有这个字节，使用 LEGACY 行格式。
  *
  * @author 小子松
  * @since 2023/8/15
  */
 public class Table {
 
+    // 批量导入时每次交给 DM 的行数
+    static final int LOAD_BATCH = 4096;
+
     TableManager tbm;
     long uid;
     String name;
     byte status;
     long nextUid;
     List<Field> fields = new ArrayList<>();
+    RowLayout layout;
+    // 行和索引节点所在的存储，元数据总是在主存储中
+    Storage storage;
+    // analyze 收集的统计信息，整体替换，不在原对象上修改
+    volatile TableStats stats;
+    // vacuum 已经从索引中删除、还没有释放的死版本和只被它们引用的行外数据链，以及删除时最新的活跃事务
+    private List<Long> unindexed = new ArrayList<>();
+    private List<Long> unindexedChains = new ArrayList<>();
+    private long unindexedEpoch;
+    private Lock vacuumLock = new ReentrantLock();
+
+    /**
+     * 只解析表名和下一张表的 uid，启动时用来建立表目录，不加载字段和索引
+     */
+    static Table loadHeader(TableManager tbm, long uid) {
+        byte[] raw = null;
+        try {
+            raw = ((TableManagerImpl)tbm).vm.read(TransactionManagerImpl.SUPER_XID, uid);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        assert raw != null;
+        ParseStringRes res = Parser.parseString(raw);
+        Table tb = new Table(tbm, res.str, Parser.parseLong(Arrays.copyOfRange(raw, res.next, res.next+8)));
+        tb.storage = ((TableManagerImpl)tbm).storage(storageKind(raw, res.next + 8));
+        return tb;
+    }
+
+    /**
+     * 元数据的格式：[TableName][NextTable][Field1Uid]...[FieldNUid][Format][Storage]，
+     * 字段 uid 之后剩下的字节数除以 8 余 1 时只有行格式版本，余 2 时还有存储类型，都没有的是最早的表
+     */
+    private static byte storageKind(byte[] raw, int fieldsStart) {
+        return (raw.length - fieldsStart) % 8 == 2 ? raw[raw.length-1] : Storage.LOGGED;
+    }
 
     public static Table loadTable(TableManager tbm, long uid) {
         byte[] raw = null;
@@ -40,8 +87,13 @@ public class Table {
         return tb.parseSelf(raw);
     }
 
-    public static Table createTable(TableManager tbm, long nextUid, long xid, Create create) throws Exception {
-        Table tb = new Table(tbm, create.tableName, nextUid);
+    /**
+     * 先创建字段（包括索引的 B+ 树），最后才把表的元数据挂到表链表上，只有这一步需要全局锁
+     */
+    public static Table createTable(TableManager tbm, long xid, Create create) throws Exception {
+        Table tb = new Table(tbm, create.tableName, 0);
+        byte kind = create.isUnlogged ? Storage.UNLOGGED : create.isMemory ? Storage.MEMORY : Storage.LOGGED;
+        tb.storage = ((TableManagerImpl)tbm).storage(kind);
         for(int i = 0; i < create.fieldName.length; i ++) {
             String fieldName = create.fieldName[i];
             String fieldType = create.fieldType[i];
@@ -55,7 +107,8 @@ public class Table {
             tb.fields.add(Field.createField(tb, xid, fieldName, fieldType, indexed));
         }
 
-        return tb.persistSelf(xid);
+        ((TableManagerImpl)tbm).linkTable(xid, tb);
+        return tb;
     }
 
     public Table(TableManager tbm, long uid) {
@@ -77,30 +130,51 @@ public class Table {
         nextUid = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
         position += 8;
 
-        while(position < raw.length) {
+        // 字段 uid 之后如果还剩一个字节，就是行格式版本，剩两个字节时第二个是存储类型
+        int tail = (raw.length - position) % 8;
+        int end = raw.length - tail;
+        byte format = tail == 0 ? RowLayout.LEGACY : raw[end];
+        storage = ((TableManagerImpl)tbm).storage(storageKind(raw, position));
+        while(position + 8 <= end) {
             long uid = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
             position += 8;
             fields.add(Field.loadField(this, uid));
         }
+        layout = new RowLayout(format, fields, storage.toast);
         return this;
     }
 
-    private Table persistSelf(long xid) throws Exception {
+    Table persistSelf(long xid) throws Exception {
+        layout = new RowLayout(RowLayout.V1, fields, storage.toast);
         byte[] nameRaw = Parser.string2Byte(name);
         byte[] nextRaw = Parser.long2Byte(nextUid);
         byte[] fieldRaw = new byte[0];
         for(Field field : fields) {
             fieldRaw = Bytes.concat(fieldRaw, Parser.long2Byte(field.uid));
         }
-        uid = ((TableManagerImpl)tbm).vm.insert(xid, Bytes.concat(nameRaw, nextRaw, fieldRaw));
+        uid = ((TableManagerImpl)tbm).vm.insert(xid, Bytes.concat(nameRaw, nextRaw, fieldRaw, new byte[]{layout.format, storage.kind}));
         return this;
     }
 
     public int delete(long xid, Delete delete) throws Exception {
-        List<Long> uids = parseWhere(delete.where);
+        Plan plan = Planner.plan(this, delete.where);
+        List<Long> uids = scan(plan);
+        storage.dm.prefetch(uids);
         int count = 0;
         for (Long uid : uids) {
-            if(((TableManagerImpl)tbm).vm.delete(xid, uid)) {
+            if(plan.filter != null) {
+                Entry entry = storage.vm.readEntry(xid, uid);
+                if(entry == null) {continue;}
+                boolean matched;
+                try {
+                    SubArray row = entry.view();
+                    matched = plan.test(layout, row.raw, row.start, row.end);
+                } finally {
+                    entry.release();
+                }
+                if(!matched) {continue;}
+            }
+            if(storage.vm.delete(xid, uid)) {
                 count ++;
             }
         }
@@ -108,62 +182,199 @@ public class Table {
     }
 
     public int update(long xid, Update update) throws Exception {
-        List<Long> uids = parseWhere(update.where);
-        Field fd = null;
-        for (Field f : fields) {
-            if(f.fieldName.equals(update.fieldName)) {
-                fd = f;
-                break;
-            }
-        }
-        if(fd == null) {
-            throw Error.FieldNotFoundException;
-        }
+        Plan plan = Planner.plan(this, update.where);
+        List<Long> uids = scan(plan);
+        Field fd = findField(update.fieldName);
         Object value = fd.string2Value(update.value);
+        storage.dm.prefetch(uids);
         int count = 0;
         for (Long uid : uids) {
-            byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
+            byte[] raw = storage.vm.read(xid, uid);
             if(raw == null) {continue;}
 
-            ((TableManagerImpl)tbm).vm.delete(xid, uid);
+            if(!plan.test(layout, raw)) {continue;}
+            // 放在行外的列不读取，新版本直接拷贝旧版本的指针
+            Map<String, Object> entry = layout.decodeInline(raw);
+
+            storage.vm.delete(xid, uid);
 
-            Map<String, Object> entry = parseEntry(raw);
             entry.put(fd.fieldName, value);
-            raw = entry2Raw(entry);
-            long uuid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
+            byte[] newRaw = layout.encode(xid, entry, raw);
+            long uuid = storage.vm.insert(xid, newRaw);
 
             count ++;
 
-            for (Field field : fields) {
+            for (int i = 0; i < fields.size(); i++) {
+                Field field = fields.get(i);
                 if(field.isIndexed()) {
-                    field.insert(entry.get(field.fieldName), uuid);
+                    Object key = entry.containsKey(field.fieldName) ? entry.get(field.fieldName) : layout.value(raw, i);
+                    field.insert(key, uuid);
                 }
             }
         }
         return count;
     }
 
+    /**
+     * 读取走向量化路径：由 Cursor 按批次取出行，解码进列向量，在整个批次上做过滤和投影，最后才格式化成字符串
+     */
     public String read(long xid, Select read) throws Exception {
-        List<Long> uids = parseWhere(read.where);
-        StringBuilder sb = new StringBuilder();
-        for (Long uid : uids) {
-            byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
-            if(raw == null) {continue;}
-            Map<String, Object> entry = parseEntry(raw);
-            sb.append(printEntry(entry)).append("\n");
+        return openCursor(xid, read).fetch(Integer.MAX_VALUE);
+    }
+
+    public Cursor openCursor(long xid, Select read) throws Exception {
+        Plan plan = Planner.plan(this, read.where);
+        return new Cursor(this, xid, plan, projection(read.fields));
+    }
+
+    /**
+     * select 的字段列表转换成列下标，* 表示所有字段
+     */
+    private int[] projection(String[] names) throws Exception {
+        if(names == null || (names.length == 1 && "*".equals(names[0]))) {
+            int[] all = new int[fields.size()];
+            for (int i = 0; i < all.length; i++) {
+                all[i] = i;
+            }
+            return all;
         }
-        return sb.toString();
+        int[] projection = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            projection[i] = fields.indexOf(findField(names[i]));
+        }
+        return projection;
     }
 
     public void insert(long xid, Insert insert) throws Exception {
-        Map<String, Object> entry = string2Entry(insert.values);
-        byte[] raw = entry2Raw(entry);
-        long uid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
+        if(insert.rows.length == 1) {
+            Map<String, Object> entry = string2Entry(insert.rows[0]);
+            byte[] raw = entry2Raw(xid, entry);
+            long uid = storage.vm.insert(xid, raw);
+            for (Field field : fields) {
+                if(field.isIndexed()) {
+                    field.insert(entry.get(field.fieldName), uid);
+                }
+            }
+            return;
+        }
+
+        // 多行插入：先把所有行转换好，整批交给 DM 装页，再按字段批量插入索引
+        List<Map<String, Object>> entries = new ArrayList<>(insert.rows.length);
+        List<byte[]> raws = new ArrayList<>(insert.rows.length);
+        for (String[] values : insert.rows) {
+            Map<String, Object> entry = string2Entry(values);
+            entries.add(entry);
+            raws.add(entry2Raw(xid, entry));
+        }
+        long[] uids = storage.vm.insertBatch(xid, raws);
+        for (Field field : fields) {
+            if(field.isIndexed()) {
+                Object[] keys = new Object[entries.size()];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = entries.get(i).get(field.fieldName);
+                }
+                field.insertBatch(keys, uids);
+            }
+        }
+    }
+
+    /**
+     * 批量导入 CSV 文件：逐行读取，每 LOAD_BATCH 行交给 DM 写入新分配的页；
+     * 导入过程中只记录每个索引字段的 (key, uid)，全部写完后再排序、建索引。
+     * @return 导入的行数、耗时和每秒行数
+     */
+    public String load(long xid, Load load) throws Exception {
+        long start = System.nanoTime();
+        List<Field> indexed = new ArrayList<>();
         for (Field field : fields) {
             if(field.isIndexed()) {
-                field.insert(entry.get(field.fieldName), uid);
+                indexed.add(field);
+            }
+        }
+        long[][] keys = new long[indexed.size()][1024];
+        long[] uids = new long[1024];
+        int count = 0;
+
+        List<Map<String, Object>> entries = new ArrayList<>(LOAD_BATCH);
+        List<byte[]> raws = new ArrayList<>(LOAD_BATCH);
+        try(BufferedReader reader = new BufferedReader(new FileReader(load.path))) {
+            String line;
+            while(true) {
+                line = reader.readLine();
+                if(line != null && !line.isEmpty()) {
+                    Map<String, Object> entry = string2Entry(splitCsvLine(line));
+                    entries.add(entry);
+                    raws.add(entry2Raw(xid, entry));
+                }
+                if(raws.size() < LOAD_BATCH && line != null) {
+                    continue;
+                }
+
+                long[] batchUids = storage.vm.load(xid, raws);
+                if(count + batchUids.length > uids.length) {
+                    int capacity = Math.max(uids.length * 2, count + batchUids.length);
+                    uids = Arrays.copyOf(uids, capacity);
+                    for (int f = 0; f < keys.length; f++) {
+                        keys[f] = Arrays.copyOf(keys[f], capacity);
+                    }
+                }
+                for (int i = 0; i < batchUids.length; i++) {
+                    uids[count + i] = batchUids[i];
+                    for (int f = 0; f < keys.length; f++) {
+                        Field field = indexed.get(f);
+                        keys[f][count + i] = field.value2Uid(entries.get(i).get(field.fieldName));
+                    }
+                }
+                count += batchUids.length;
+                entries.clear();
+                raws.clear();
+                if(line == null) {
+                    break;
+                }
             }
+        } catch(FileNotFoundException e) {
+            throw Error.FileNotExistsException;
+        }
+
+        for (int f = 0; f < keys.length; f++) {
+            indexed.get(f).buildIndex(keys[f], f == keys.length - 1 ? uids : Arrays.copyOf(uids, count), count);
         }
+
+        long ms = Math.max((System.nanoTime() - start) / 1000000, 1);
+        return String.format("load %d rows in %d ms (%d rows/s)", count, ms, count * 1000L / ms);
+    }
+
+    /**
+     * 按逗号拆分一行 CSV，双引号括起的值中可以包含逗号，两个连续的双引号表示一个双引号
+     */
+    private static String[] splitCsvLine(String line) {
+        List<String> values = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if(quoted) {
+                if(c == '"') {
+                    if(i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        sb.append('"');
+                        i ++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    sb.append(c);
+                }
+            } else if(c == '"') {
+                quoted = true;
+            } else if(c == ',') {
+                values.add(sb.toString().trim());
+                sb.setLength(0);
+            } else {
+                sb.append(c);
+            }
+        }
+        values.add(sb.toString().trim());
+        return values.toArray(new String[values.size()]);
     }
 
     private Map<String, Object> string2Entry(String[] values) throws Exception {
@@ -179,79 +390,195 @@ public class Table {
         return entry;
     }
 
-    private List<Long> parseWhere(Where where) throws Exception {
-        long l0=0, r0=0, l1=0, r1=0;
-        boolean single = false;
-        Field fd = null;
-        if(where == null) {
-            for (Field field : fields) {
-                if(field.isIndexed()) {
-                    fd = field;
-                    break;
+    /**
+     * 按照 Planner 选出的访问路径扫描索引，返回候选行的 uid。
+     * 多区间扫描时按 uid 去重，保证同一行不会被返回两次。
+     */
+    private List<Long> scan(Plan plan) throws Exception {
+        if(plan.scans.size() == 1) {
+            Plan.Scan s = plan.scans.get(0);
+            if(s.left > s.right) {
+                return new ArrayList<>();
+            }
+            return s.field.search(s.left, s.right);
+        }
+        Set<Long> seen = new HashSet<>();
+        List<Long> uids = new ArrayList<>();
+        for (Plan.Scan s : plan.scans) {
+            if(s.left > s.right) {
+                continue;
+            }
+            for (Long uid : s.field.search(s.left, s.right)) {
+                if(seen.add(uid)) {
+                    uids.add(uid);
+                }
+            }
+        }
+        return uids;
+    }
+
+    /**
+     * analyze：扫描表中对当前事务可见的所有行，收集行数、每个字段的不同值个数和等深直方图
+     */
+    public String analyze(long xid) throws Exception {
+        List<Long> uids = firstIndexedField().search(Long.MIN_VALUE, Long.MAX_VALUE);
+        long[][] keys = new long[fields.size()][uids.size()];
+        int n = 0;
+        for (Long uid : uids) {
+            Entry entry = storage.vm.readEntry(xid, uid);
+            if(entry == null) {continue;}
+            try {
+                SubArray row = entry.view();
+                for (int i = 0; i < fields.size(); i++) {
+                    keys[i][n] = layout.key(row.raw, row.start, row.end, i);
+                }
+            } finally {
+                entry.release();
+            }
+            n ++;
+        }
+        TableStats st = new TableStats();
+        st.rowCount = n;
+        StringBuilder sb = new StringBuilder();
+        sb.append("analyze ").append(name).append(": ").append(n).append(" rows\n");
+        for (int i = 0; i < fields.size(); i++) {
+            ColumnStats cs = ColumnStats.build(Arrays.copyOf(keys[i], n));
+            st.columns.put(fields.get(i).fieldName, cs);
+            sb.append("  ").append(fields.get(i).fieldName).append(": ").append(cs.toString()).append("\n");
+        }
+        stats = st;
+        return sb.toString();
+    }
+
+    static class VacuumRes {
+        int frozen;
+        int unindexed;
+        int freed;
+        int chainsFreed;
+    }
+
+    /**
+     * vacuum 分三步：
+     * 1. 释放上一次 vacuum 从索引中删除的死版本。删除索引项时活跃的事务可能已经从索引中拿到了它们的 uid，
+     *    释放之后槽被复用就会读到别的行，所以要等 horizon 超过删除时最新的活跃事务，也就是这些事务都结束了才释放；
+     * 2. 冻结表中所有版本（包括已删除、已中止的版本，它们都还在索引中）以及表和字段的元数据，找出其中的死版本；
+     * 3. 把死版本从所有索引中删除，留给下一次 vacuum 或者关闭时释放。
+     * update 会让新旧版本共用行外数据的链，死版本的链只有不被任何活着的版本引用时才一起释放。
+     * 活着的版本都还在索引中：拷贝了指针的新版本由删除旧版本的事务插入，旧版本死亡时这个事务已经提交，索引也已经插入。
+     * 删除了索引项、还没来得及释放就崩溃的死版本不再回收
+     */
+    VacuumRes vacuum(long horizon) throws Exception {
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
+        VacuumRes res = new VacuumRes();
+        vacuumLock.lock();
+        try {
+            freeUnindexed(horizon, res);
+            List<Long> uids = firstIndexedField().search(Long.MIN_VALUE, Long.MAX_VALUE);
+            storage.dm.prefetch(uids);
+            boolean toasts = layout.mayToast();
+            Set<Long> dead = new HashSet<>();
+            Set<Long> deadChains = new HashSet<>();
+            Set<Long> liveChains = new HashSet<>();
+            List<Long> chains = new ArrayList<>();
+            for (Long uid : uids) {
+                // 中止事务插入的版本冻结后就无效了，要在冻结之前读出它引用的链
+                chains.clear();
+                if(toasts) {
+                    byte[] data = storage.vm.readData(uid);
+                    if(data != null) {
+                        layout.toastChains(data, chains);
+                    }
+                }
+                if(storage.vm.freeze(uid, horizon)) {
+                    res.frozen ++;
+                }
+                if(storage.vm.isDead(uid, horizon)) {
+                    dead.add(uid);
+                    deadChains.addAll(chains);
+                } else {
+                    liveChains.addAll(chains);
                 }
             }
-            l0 = 0;
-            r0 = Long.MAX_VALUE;
-            single = true;
-        } else {
+            deadChains.removeAll(liveChains);
+            if(vm.freeze(uid, horizon)) {
+                res.frozen ++;
+            }
             for (Field field : fields) {
-                if(field.fieldName.equals(where.singleExp1.field)) {
-                    if(!field.isIndexed()) {
-                        throw Error.FieldNotIndexedException;
+                if(vm.freeze(field.uid, horizon)) {
+                    res.frozen ++;
+                }
+            }
+            if(!dead.isEmpty()) {
+                for (Field field : fields) {
+                    if(field.isIndexed()) {
+                        field.unindex(dead);
                     }
-                    fd = field;
-                    break;
                 }
+                unindexed.addAll(dead);
+                unindexedChains.addAll(deadChains);
+                unindexedEpoch = vm.newestActive();
+                res.unindexed = dead.size();
+            }
+            return res;
+        } finally {
+            vacuumLock.unlock();
+        }
+    }
+
+    /**
+     * 释放已经从索引中删除的死版本和它们的链，删除索引项时活跃的事务还没有全部结束（horizon 没有超过 unindexedEpoch）时什么也不做。
+     * 释放的数量累加到 res 中
+     */
+    void freeUnindexed(long horizon, VacuumRes res) throws Exception {
+        vacuumLock.lock();
+        try {
+            if(unindexed.isEmpty() || horizon <= unindexedEpoch) {
+                return;
+            }
+            for (Long uid : unindexed) {
+                storage.dm.free(uid);
             }
-            if(fd == null) {
-                throw Error.FieldNotFoundException;
+            for (Long chain : unindexedChains) {
+                storage.toast.free(chain);
             }
-            CalWhereRes res = calWhere(fd, where);
-            l0 = res.l0; r0 = res.r0;
-            l1 = res.l1; r1 = res.r1;
-            single = res.single;
+            res.freed += unindexed.size();
+            res.chainsFreed += unindexedChains.size();
+            unindexed.clear();
+            unindexedChains.clear();
+        } finally {
+            vacuumLock.unlock();
         }
-        List<Long> uids = fd.search(l0, r0);
-        if(!single) {
-            List<Long> tmp = fd.search(l1, r1);
-            uids.addAll(tmp);
+    }
+
+    /**
+     * 存储被清空后，给每个索引换上一个空的根
+     */
+    void resetIndexes() throws Exception {
+        for (Field field : fields) {
+            field.resetIndex();
         }
-        return uids;
     }
 
-    class CalWhereRes {
-        long l0, r0, l1, r1;
-        boolean single;
+    public String explain(Where where) throws Exception {
+        return Planner.explain(this, where);
     }
 
-    private CalWhereRes calWhere(Field fd, Where where) throws Exception {
-        CalWhereRes res = new CalWhereRes();
-        switch(where.logicOp) {
-            case "":
-                res.single = true;
-                FieldCalRes r = fd.calExp(where.singleExp1);
-                res.l0 = r.left; res.r0 = r.right;
-                break;
-            case "or":
-                res.single = false;
-                r = fd.calExp(where.singleExp1);
-                res.l0 = r.left; res.r0 = r.right;
-                r = fd.calExp(where.singleExp2);
-                res.l1 = r.left; res.r1 = r.right;
-                break;
-            case "and":
-                res.single = true;
-                r = fd.calExp(where.singleExp1);
-                res.l0 = r.left; res.r0 = r.right;
-                r = fd.calExp(where.singleExp2);
-                res.l1 = r.left; res.r1 = r.right;
-                if(res.l1 > res.l0) {res.l0 = res.l1;}
-                if(res.r1 < res.r0) {res.r0 = res.r1;}
-                break;
-            default:
-                throw Error.InvalidLogOpException;
+    Field findField(String fieldName) throws Exception {
+        for (Field field : fields) {
+            if(field.fieldName.equals(fieldName)) {
+                return field;
+            }
         }
-        return res;
+        throw Error.FieldNotFoundException;
+    }
+
+    Field firstIndexedField() throws Exception {
+        for (Field field : fields) {
+            if(field.isIndexed()) {
+                return field;
+            }
+        }
+        throw Error.TableNoIndexException;
     }
 
     private String printEntry(Map<String, Object> entry) {
@@ -268,29 +595,18 @@ public class Table {
         return sb.toString();
     }
 
-    private Map<String, Object> parseEntry(byte[] raw) {
-        int pos = 0;
-        Map<String, Object> entry = new HashMap<>();
-        for (Field field : fields) {
-            Field.ParseValueRes r = field.parserValue(Arrays.copyOfRange(raw, pos, raw.length));
-            entry.put(field.fieldName, r.v);
-            pos += r.shift;
-        }
-        return entry;
-    }
-
-    private byte[] entry2Raw(Map<String, Object> entry) {
-        byte[] raw = new byte[0];
-        for (Field field : fields) {
-            raw = Bytes.concat(raw, field.value2Raw(entry.get(field.fieldName)));
-        }
-        return raw;
+    private byte[] entry2Raw(long xid, Map<String, Object> entry) throws Exception {
+        return layout.encode(xid, entry);
     }
 
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder("{");
-        sb.append(name).append(": ");
+        sb.append(name);
+        if(storage.kind != Storage.LOGGED) {
+            sb.append(" (").append(Storage.name(storage.kind)).append(")");
+        }
+        sb.append(": ");
         for(Field field : fields) {
             sb.append(field.toString());
             if(field == fields.get(fields.size()-1)) {
@@ -20,17 +20,43 @@ public interface TableManager {
 
     byte[] insert(long xid, Insert insert) throws Exception;
     byte[] read(long xid, Select select) throws Exception;
+    Cursor openCursor(long xid, Select select) throws Exception;
     byte[] update(long xid, Update update) throws Exception;
     byte[] delete(long xid, Delete delete) throws Exception;
+    byte[] load(long xid, Load load) throws Exception;
+
+    Prepared prepare(Object statement) throws Exception;
+
+    byte[] analyze(long xid, Analyze analyze) throws Exception;
+    byte[] explain(long xid, Explain explain) throws Exception;
+    byte[] vacuum(long xid, Vacuum vacuum) throws Exception;
+
+    /**
+     * 关闭非日志表和内存表的存储。非日志表只有正常关闭后才能在下次启动时保留
+     */
+    void close();
 
     public static TableManager create(String path, VersionManager vm, DataManager dm) {
+        return create(path, vm, dm, DEFAULT_STORAGE_MEM);
+    }
+
+    public static TableManager create(String path, VersionManager vm, DataManager dm, long mem) {
         Booter booter = Booter.create(path);
         booter.update(Parser.long2Byte(0));
-        return new TableManagerImpl(vm, dm, booter);
+        return new TableManagerImpl(vm, dm, booter, path, mem);
     }
 
     public static TableManager open(String path, VersionManager vm, DataManager dm) {
+        return open(path, vm, dm, DEFAULT_STORAGE_MEM);
+    }
+
+    /**
+     * @param mem 非日志表和内存表各自可用的内存
+     */
+    public static TableManager open(String path, VersionManager vm, DataManager dm, long mem) {
         Booter booter = Booter.open(path);
-        return new TableManagerImpl(vm, dm, booter);
+        return new TableManagerImpl(vm, dm, booter, path, mem);
     }
+
+    long DEFAULT_STORAGE_MEM = (1 << 20) * 64;
 }
@@ -2,18 +2,25 @@ package top.philsongzi.mydb.backend.tbm;
 
 import top.philsongzi.mydb.backend.dm.DataManager;
 import top.philsongzi.mydb.backend.parser.statement.*;
+import top.philsongzi.mydb.backend.utils.Panic;
 import top.philsongzi.mydb.backend.utils.Parser;
 import top.philsongzi.mydb.backend.vm.VersionManager;
 import top.philsongzi.mydb.common.Error;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
+ * 表管理。表缓存是一个并发 Map，语句执行时查表不加锁。
+ * DDL 只锁住它涉及的表名（metaLocks），不同表上的 DDL 和所有 DML 互不阻塞；
+ * 表在元数据链表中是头插的，只有读取并更新链表头（Booter）的那一小段需要全局的 catalogLock。
+ * 启动时只沿着链表读出每张表的表名和 uid（tableUids），表的字段和索引在第一次被访问时才加载。
+ * 建表失败时，表名对应的锁在持有期间从 metaLocks 中移除，拿到旧锁的线程重新获取，不会留下不存在的表名。
+ *
  * @author 小子松
  * @since 2023/8/15
  */
@@ -22,26 +29,140 @@ public class TableManagerImpl implements TableManager{
     VersionManager vm;
     DataManager dm;
     private Booter booter;
-    private Map<String, Table> tableCache;
+    private String path;
+    private long mem;
+    // 按存储类型下标，非日志表和内存表的存储在第一次用到时才打开
+    private Storage[] storages;
+    private Lock storageLock;
+    Map<String, Long> tableUids;
+    Map<String, Table> tableCache;
     private Map<Long, List<Table>> xidTableCache;
-    private Lock lock;
+    Map<String, Lock> metaLocks;
+    private Lock catalogLock;
 
-    TableManagerImpl(VersionManager vm, DataManager dm, Booter booter) {
+    TableManagerImpl(VersionManager vm, DataManager dm, Booter booter, String path, long mem) {
         this.vm = vm;
         this.dm = dm;
         this.booter = booter;
-        this.tableCache = new HashMap<>();
-        this.xidTableCache = new HashMap<>();
-        lock = new ReentrantLock();
+        this.path = path;
+        this.mem = mem;
+        this.storages = new Storage[Storage.MEMORY + 1];
+        this.storages[Storage.LOGGED] = new Storage(Storage.LOGGED, vm, dm);
+        this.storageLock = new ReentrantLock();
+        this.tableUids = new ConcurrentHashMap<>();
+        this.tableCache = new ConcurrentHashMap<>();
+        this.xidTableCache = new ConcurrentHashMap<>();
+        this.metaLocks = new ConcurrentHashMap<>();
+        catalogLock = new ReentrantLock();
         loadTables();
     }
 
+    private Table getTable(String tableName) throws Exception {
+        Table table = tableCache.get(tableName);
+        if(table != null) {
+            return table;
+        }
+        Long uid = tableUids.get(tableName);
+        if(uid == null) {
+            throw Error.TableNotFoundException;
+        }
+        // 第一次访问，加载字段和索引，同一张表只加载一次
+        Lock metaLock = lockMeta(tableName);
+        try {
+            table = tableCache.get(tableName);
+            if(table == null) {
+                table = Table.loadTable(this, uid);
+                tableCache.put(tableName, table);
+            }
+            return table;
+        } finally {
+            metaLock.unlock();
+        }
+    }
+
+    /**
+     * 获取并锁住表名对应的元数据锁。等待期间这把锁可能已经被移除，此时换新的锁重试
+     */
+    private Lock lockMeta(String tableName) {
+        while(true) {
+            Lock metaLock = metaLocks.get(tableName);
+            if(metaLock == null) {
+                metaLock = new ReentrantLock();
+                Lock old = metaLocks.putIfAbsent(tableName, metaLock);
+                if(old != null) {
+                    metaLock = old;
+                }
+            }
+            metaLock.lock();
+            if(metaLocks.get(tableName) == metaLock) {
+                return metaLock;
+            }
+            metaLock.unlock();
+        }
+    }
+
+    /**
+     * 建立表目录。存储被清空过（非日志表崩溃、内存表每次启动）的表，索引的根还指向旧的节点，
+     * 这里立即加载这些表并换上空的根
+     */
     private void loadTables() {
+        List<String> resetTables = new ArrayList<>();
         long uid = firstTableUid();
         while(uid != 0) {
-            Table tb = Table.loadTable(this, uid);
+            Table tb = Table.loadHeader(this, uid);
+            tableUids.put(tb.name, uid);
+            if(tb.storage.dm.wasReset()) {
+                resetTables.add(tb.name);
+            }
             uid = tb.nextUid;
-            tableCache.put(tb.name, tb);
+        }
+        try {
+            for (String tableName : resetTables) {
+                getTable(tableName).resetIndexes();
+            }
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+    }
+
+    Storage storage(byte kind) {
+        storageLock.lock();
+        try {
+            Storage storage = storages[kind];
+            if(storage == null) {
+                DataManager sdm = kind == Storage.UNLOGGED ? DataManager.openUnlogged(path, mem) : DataManager.openMemory(mem);
+                storage = new Storage(kind, vm.forStorage(sdm), sdm);
+                storages[kind] = storage;
+            }
+            return storage;
+        } finally {
+            storageLock.unlock();
+        }
+    }
+
+    /**
+     * 关闭之前释放 vacuum 留下的死版本，此时一般已经没有活跃事务
+     */
+    @Override
+    public void close() {
+        long horizon = vm.horizon();
+        for (Table table : tableCache.values()) {
+            try {
+                table.freeUnindexed(horizon, new Table.VacuumRes());
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+        }
+        storageLock.lock();
+        try {
+            for (int i = Storage.UNLOGGED; i < storages.length; i++) {
+                if(storages[i] != null) {
+                    storages[i].dm.close();
+                    storages[i] = null;
+                }
+            }
+        } finally {
+            storageLock.unlock();
         }
     }
 
@@ -59,7 +180,7 @@ public class TableManagerImpl implements TableManager{
     public BeginRes begin(Begin begin) {
         BeginRes res = new BeginRes();
         int level = begin.isRepeatableRead?1:0;
-        res.xid = vm.begin(level);
+        res.xid = vm.begin(level, begin.isAsync);
         res.result = "begin".getBytes();
         return res;
     }
@@ -75,84 +196,160 @@ public class TableManagerImpl implements TableManager{
     }
     @Override
     public byte[] show(long xid) {
-        lock.lock();
-        try {
-            StringBuilder sb = new StringBuilder();
-            for (Table tb : tableCache.values()) {
-                sb.append(tb.toString()).append("\n");
-            }
-            List<Table> t = xidTableCache.get(xid);
-            if(t == null) {
-                return "\n".getBytes();
-            }
-            for (Table tb : t) {
-                sb.append(tb.toString()).append("\n");
+        StringBuilder sb = new StringBuilder();
+        for (String tableName : tableUids.keySet()) {
+            try {
+                sb.append(getTable(tableName).toString()).append("\n");
+            } catch (Exception e) {
+                Panic.panic(e);
             }
-            return sb.toString().getBytes();
-        } finally {
-            lock.unlock();
         }
+        List<Table> t = xidTableCache.get(xid);
+        if(t == null) {
+            return "\n".getBytes();
+        }
+        for (Table tb : t) {
+            sb.append(tb.toString()).append("\n");
+        }
+        return sb.toString().getBytes();
     }
     @Override
     public byte[] create(long xid, Create create) throws Exception {
-        lock.lock();
+        Lock metaLock = lockMeta(create.tableName);
         try {
-            if(tableCache.containsKey(create.tableName)) {
+            if(tableUids.containsKey(create.tableName)) {
                 throw Error.DuplicatedTableException;
             }
-            Table table = Table.createTable(this, firstTableUid(), xid, create);
-            updateFirstTableUid(table.uid);
+            Table table = Table.createTable(this, xid, create);
             tableCache.put(create.tableName, table);
-            if(!xidTableCache.containsKey(xid)) {
-                xidTableCache.put(xid, new ArrayList<>());
+            tableUids.put(create.tableName, table.uid);
+            List<Table> created = xidTableCache.get(xid);
+            if(created == null) {
+                created = new ArrayList<>();
+                xidTableCache.put(xid, created);
             }
-            xidTableCache.get(xid).add(table);
+            created.add(table);
             return ("create " + create.tableName).getBytes();
         } finally {
-            lock.unlock();
+            if(!tableUids.containsKey(create.tableName)) {
+                metaLocks.remove(create.tableName);
+            }
+            metaLock.unlock();
+        }
+    }
+
+    /**
+     * 把新表的元数据插入表链表的头部，返回新表的 uid。只有这一步需要全局锁
+     */
+    long linkTable(long xid, Table table) throws Exception {
+        catalogLock.lock();
+        try {
+            table.nextUid = firstTableUid();
+            long uid = table.persistSelf(xid).uid;
+            updateFirstTableUid(uid);
+            return uid;
+        } finally {
+            catalogLock.unlock();
         }
     }
     @Override
     public byte[] insert(long xid, Insert insert) throws Exception {
-        lock.lock();
-        Table table = tableCache.get(insert.tableName);
-        lock.unlock();
-        if(table == null) {
-            throw Error.TableNotFoundException;
-        }
+        Table table = getTable(insert.tableName);
         table.insert(xid, insert);
         return "insert".getBytes();
     }
     @Override
     public byte[] read(long xid, Select read) throws Exception {
-        lock.lock();
-        Table table = tableCache.get(read.tableName);
-        lock.unlock();
-        if(table == null) {
-            throw Error.TableNotFoundException;
-        }
+        Table table = getTable(read.tableName);
         return table.read(xid, read).getBytes();
     }
     @Override
+    public Cursor openCursor(long xid, Select read) throws Exception {
+        Table table = getTable(read.tableName);
+        return table.openCursor(xid, read);
+    }
+    @Override
     public byte[] update(long xid, Update update) throws Exception {
-        lock.lock();
-        Table table = tableCache.get(update.tableName);
-        lock.unlock();
-        if(table == null) {
-            throw Error.TableNotFoundException;
-        }
+        Table table = getTable(update.tableName);
         int count = table.update(xid, update);
         return ("update " + count).getBytes();
     }
     @Override
     public byte[] delete(long xid, Delete delete) throws Exception {
-        lock.lock();
-        Table table = tableCache.get(delete.tableName);
-        lock.unlock();
-        if(table == null) {
-            throw Error.TableNotFoundException;
-        }
+        Table table = getTable(delete.tableName);
         int count = table.delete(xid, delete);
         return ("delete " + count).getBytes();
     }
+    @Override
+    public byte[] load(long xid, Load load) throws Exception {
+        Table table = getTable(load.tableName);
+        return table.load(xid, load).getBytes();
+    }
+    @Override
+    public Prepared prepare(Object statement) throws Exception {
+        String tableName;
+        if(statement instanceof Select) {
+            tableName = ((Select)statement).tableName;
+        } else if(statement instanceof Insert) {
+            tableName = ((Insert)statement).tableName;
+        } else if(statement instanceof Update) {
+            tableName = ((Update)statement).tableName;
+        } else if(statement instanceof Delete) {
+            tableName = ((Delete)statement).tableName;
+        } else {
+            throw Error.InvalidCommandException;
+        }
+        Table table = getTable(tableName);
+        return new Prepared(table, statement);
+    }
+    @Override
+    public byte[] analyze(long xid, Analyze analyze) throws Exception {
+        Table table = getTable(analyze.tableName);
+        Lock metaLock = lockMeta(analyze.tableName);
+        try {
+            return table.analyze(xid).getBytes();
+        } finally {
+            metaLock.unlock();
+        }
+    }
+    /**
+     * vacuum：冻结所有表中早于冻结线的版本，把死版本从索引中删除、释放上一次删除的死版本，然后截断冻结线之前的事务状态页。
+     * 冻结线不会超过当前事务，冻结期间新写入的版本都晚于冻结线，不需要阻塞 DML
+     */
+    @Override
+    public byte[] vacuum(long xid, Vacuum vacuum) throws Exception {
+        long horizon = vm.horizon();
+        int tables = 0, frozen = 0, unindexed = 0, freed = 0, chainsFreed = 0;
+        for (String tableName : tableUids.keySet()) {
+            Table.VacuumRes res = getTable(tableName).vacuum(horizon);
+            frozen += res.frozen;
+            unindexed += res.unindexed;
+            freed += res.freed;
+            chainsFreed += res.chainsFreed;
+            tables ++;
+        }
+        long truncated = vm.truncateBefore(horizon);
+        return ("vacuum " + tables + " tables: " + frozen + " versions frozen, "
+                + unindexed + " dead versions removed from indexes, " + freed + " versions freed, " + chainsFreed + " toast values freed, "
+                + truncated + " status pages truncated").getBytes();
+    }
+    @Override
+    public byte[] explain(long xid, Explain explain) throws Exception {
+        String tableName;
+        Where where;
+        if(explain.statement instanceof Select) {
+            tableName = ((Select)explain.statement).tableName;
+            where = ((Select)explain.statement).where;
+        } else if(explain.statement instanceof Update) {
+            tableName = ((Update)explain.statement).tableName;
+            where = ((Update)explain.statement).where;
+        } else if(explain.statement instanceof Delete) {
+            tableName = ((Delete)explain.statement).tableName;
+            where = ((Delete)explain.statement).where;
+        } else {
+            throw Error.InvalidCommandException;
+        }
+        Table table = getTable(tableName);
+        return table.explain(where).getBytes();
+    }
 }
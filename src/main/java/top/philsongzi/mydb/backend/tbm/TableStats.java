@@ -0,0 +1,21 @@
+package top.philsongzi.mydb.backend.tbm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 表的统计信息：总行数和每个字段的 ColumnStats。
+ * 统计信息只保存在内存中，重启后需要重新 analyze；未 analyze 的表，Planner 使用默认估计值。
+ *
+ * @author 小子松
+ * @since 2026/10/19
+ */
+public class TableStats {
+
+    long rowCount;
+    Map<String, ColumnStats> columns = new HashMap<>();
+
+    ColumnStats get(String fieldName) {
+        return columns.get(fieldName);
+    }
+}
@@ -0,0 +1,183 @@
+package top.philsongzi.mydb.backend.tbm;
+
+import top.philsongzi.mydb.backend.common.SubArray;
+import top.philsongzi.mydb.backend.dm.DataManager;
+import top.philsongzi.mydb.backend.dm.dataItem.DataItem;
+import top.philsongzi.mydb.backend.dm.page.PageX;
+import top.philsongzi.mydb.backend.utils.Panic;
+import top.philsongzi.mydb.backend.utils.Parser;
+import top.philsongzi.mydb.common.Error;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 行外存储（TOAST）：超过 THRESHOLD 的 string 值不放在行内，而是切成若干块，每块是 DM 中的一个 DataItem，
+ * 块之间用 uid 串成一条链。行内只留下一个定长的指针：
+ * [RawLength 4][StoredLength 4][Flags 1][FirstUid 8]
+ * 每一块的格式为 [NextUid 8][Data]，最后一块的 NextUid 为 0。
+ * 值可以压缩时（压缩后更短），存的是压缩后的数据，Flags 中记录 COMPRESSED。
+ *
+ * 块随插入它的事务一起写日志，事务在崩溃前没有提交的话，恢复时会和行一起被撤销。
+ * update 没有改动的列直接拷贝行内的指针，同一行的多个版本可以共用一条链；
+ * vacuum 释放死版本时，只释放不再被任何活着的版本引用的链。
+ * 读取是懒的：只有真正解码这一列（投影或者过滤用到）时才会沿着链把值读出来。
+ *
+ * @author 小子松
+ * @since 2026/10/19
+ */
+public class Toast {
+
+    // 大于这个长度的 string 值放到行外
+    static final int THRESHOLD = PageX.MAX_FREE_SPACE / 4;
+    static final int POINTER_SIZE = 17;
+    // 每块填满一个空页：DataItem 头 3 字节，NextUid 8 字节
+    static final int CHUNK_SIZE = PageX.MAX_FREE_SPACE - 3 - 8;
+
+    private static final byte COMPRESSED = 1;
+
+    private static final int OF_RAW_LENGTH = 0;
+    private static final int OF_STORED_LENGTH = 4;
+    private static final int OF_FLAGS = 8;
+    private static final int OF_FIRST_UID = 9;
+
+    private final DataManager dm;
+
+    Toast(DataManager dm) {
+        this.dm = dm;
+    }
+
+    /**
+     * 把 value 写到行外，返回行内的指针
+     */
+    byte[] store(long xid, byte[] value) throws Exception {
+        byte flags = 0;
+        byte[] stored = compress(value);
+        if(stored.length < value.length) {
+            flags |= COMPRESSED;
+        } else {
+            stored = value;
+        }
+
+        // 从最后一块往前写，这样每一块写入时都已经知道下一块的 uid
+        long next = 0;
+        int chunks = (stored.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        for (int i = chunks - 1; i >= 0; i--) {
+            int from = i * CHUNK_SIZE;
+            int to = Math.min(from + CHUNK_SIZE, stored.length);
+            byte[] chunk = new byte[8 + to - from];
+            Parser.putLong(chunk, 0, next);
+            System.arraycopy(stored, from, chunk, 8, to - from);
+            next = dm.insert(xid, chunk);
+        }
+
+        byte[] pointer = new byte[POINTER_SIZE];
+        Parser.putInt(pointer, OF_RAW_LENGTH, value.length);
+        Parser.putInt(pointer, OF_STORED_LENGTH, stored.length);
+        pointer[OF_FLAGS] = flags;
+        Parser.putLong(pointer, OF_FIRST_UID, next);
+        return pointer;
+    }
+
+    /**
+     * 按 raw 中 pos 处的指针读回完整的值
+     */
+    byte[] fetch(byte[] raw, int pos) {
+        int rawLength = Parser.parseInt(raw, pos + OF_RAW_LENGTH);
+        int storedLength = Parser.parseInt(raw, pos + OF_STORED_LENGTH);
+        byte flags = raw[pos + OF_FLAGS];
+        long uid = Parser.parseLong(raw, pos + OF_FIRST_UID);
+
+        byte[] stored = new byte[storedLength];
+        int filled = 0;
+        try {
+            while(uid != 0) {
+                DataItem di = dm.read(uid);
+                if(di == null) {
+                    throw Error.BrokenToastException;
+                }
+                SubArray sa = di.data();
+                int length = sa.end - sa.start - 8;
+                System.arraycopy(sa.raw, sa.start + 8, stored, filled, length);
+                filled += length;
+                uid = Parser.parseLong(sa.raw, sa.start);
+                di.release();
+            }
+            if(filled != storedLength) {
+                throw Error.BrokenToastException;
+            }
+            if((flags & COMPRESSED) != 0) {
+                return decompress(stored, rawLength);
+            }
+        } catch(Exception e) {
+            Panic.panic(e);
+        }
+        return stored;
+    }
+
+    /**
+     * raw 中 pos 处的指针指向的第一块
+     */
+    static long firstUid(byte[] raw, int pos) {
+        return Parser.parseLong(raw, pos + OF_FIRST_UID);
+    }
+
+    /**
+     * 释放从 uid 开始的整条链。调用方需要保证已经没有任何版本引用它。
+     * 遇到已经无效的块（比如恢复时被撤销）时停下，之后的块无法再找到
+     */
+    void free(long uid) throws Exception {
+        while(uid != 0) {
+            DataItem di = dm.read(uid);
+            if(di == null) {
+                return;
+            }
+            SubArray sa = di.data();
+            long next = Parser.parseLong(sa.raw, sa.start);
+            di.release();
+            dm.free(uid);
+            uid = next;
+        }
+    }
+
+    static boolean needed(byte[] value) {
+        return value.length > THRESHOLD;
+    }
+
+    private static byte[] compress(byte[] value) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(value);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(value.length / 2 + 64);
+        byte[] buf = new byte[4096];
+        while(!deflater.finished()) {
+            int n = deflater.deflate(buf);
+            out.write(buf, 0, n);
+            // 已经不比原值短，不必再压下去
+            if(out.size() >= value.length) {
+                break;
+            }
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static byte[] decompress(byte[] stored, int rawLength) throws Exception {
+        Inflater inflater = new Inflater();
+        inflater.setInput(stored);
+        byte[] value = new byte[rawLength];
+        int n = 0;
+        try {
+            while(n < rawLength && !inflater.finished() && !inflater.needsInput()) {
+                n += inflater.inflate(value, n, rawLength - n);
+            }
+        } finally {
+            inflater.end();
+        }
+        if(n != rawLength) {
+            throw Error.BrokenToastException;
+        }
+        return value;
+    }
+}
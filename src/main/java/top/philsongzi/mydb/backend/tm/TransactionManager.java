@@ -23,11 +23,33 @@ public interface TransactionManager {
     void commit(long xid);
     void abort(long xid);
 
+    /**
+     * 异步提交：提交状态记在内存中立刻返回，不等刷盘，由后台线程定期先刷日志、再写入并刷盘提交状态。崩溃时可能丢失最近一小段时间内的提交，
+     * 丢失的事务在恢复时被视为未完成而整体撤销，不会破坏原子性
+     */
+    default void commitAsync(long xid) {
+        commit(xid);
+    }
+
+    /**
+     * 设置刷日志的回调。日志只写不刷，提交状态落盘之前先调用它，保证状态不会先于日志落盘
+     */
+    default void setLogFlush(Runnable logFlush) {}
+
     // 查询一个事务的状态：进行中、提交、取消
     boolean isActive(long xid);
     boolean isCommitted(long xid);
     boolean isAborted(long xid);
 
+    /**
+     * 截断 xid 之前的状态页，被截断的事务一律视为已提交。
+     * 调用方要保证这些事务都已结束，并且它们留下的 XMIN、XMAX 都已经被冻结（见 VACUUM）
+     * @return 截断的状态页数
+     */
+    default long truncateBefore(long xid) {
+        return 0;
+    }
+
     // 关闭TM
     void close();
 
@@ -61,16 +83,16 @@ public interface TransactionManager {
         }
 
         // 写空XID文件头
-        ByteBuffer buf = ByteBuffer.wrap(new byte[TransactionManagerImpl.LEN_XID_HEADER_LENGTH]);
+        ByteBuffer buf = ByteBuffer.wrap(TransactionManagerImpl.emptyFile());
         try {
-            // 从零开始XID文件时需要先写入一个空的XID文件头，即设置xidCounter为0，否则后续校验时不合法
+            // 从零开始XID文件时需要先写入一个空的XID文件头和第一个状态页，即设置xidCounter为0，否则后续校验时不合法
             fileChannel.position(0);
             fileChannel.write(buf);
         } catch (IOException e) {
             Panic.panic(e);
         }
 
-        return new TransactionManagerImpl(raf, fileChannel);
+        return new TransactionManagerImpl(file, raf, fileChannel);
     }
 
     static TransactionManagerImpl open(String path) {
@@ -95,6 +117,6 @@ public interface TransactionManager {
             Panic.panic(e);
         }
 
-        return new TransactionManagerImpl(raf, channel);
+        return new TransactionManagerImpl(file, raf, channel);
     }
 }
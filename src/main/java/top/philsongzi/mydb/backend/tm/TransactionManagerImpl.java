@@ -5,16 +5,45 @@ import top.philsongzi.mydb.backend.utils.Parser;
 import top.philsongzi.mydb.common.Error;
 
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * TM 的实例类。TM 的实例类是单例的，通过 create() 或 open() 方法创建。
  *
+ * XID 文件结构：[Magic 4][Version 1][Reserved 3][XidCounter 8][FirstPage 8][StatusPage]...
+ * 每个事务的状态只占 2 bit，按 XID 顺序装进 8KB 的状态页，一页记录 32768 个事务。
+ * 第 p 页记录 [p * XIDS_PER_PAGE, (p+1) * XIDS_PER_PAGE) 的事务，文件中只保存 FirstPage 及之后的页，
+ * FirstPage 之前的页已经被截断（见 truncateBefore），其中的事务一律视为已提交。
+ * 最近访问的状态页缓存在内存中（LRU），查询状态不用每次读文件；修改状态时同时写缓存页和文件。
+ *
+ * 数据的日志写入时不刷盘，提交状态必须在日志之后落盘，否则恢复时会把只有一部分日志的事务当成已提交。
+ * 同步提交先调用 logFlush 刷日志，再写入并刷盘提交状态。
+ * 异步提交的状态先只记在 unflushed 中（查询状态时优先看它），不写文件；后台线程每隔 FLUSH_INTERVAL 毫秒
+ * 刷一次日志，再把这些状态写入 XID 文件并刷盘，同步提交也会顺带写掉它们。
+ * 状态没来得及落盘的事务在恢复时仍是 active，会被整体撤销。
+ *
+ * 旧版本的 XID 文件（[XidCounter 8] + 每个事务 1 字节）在打开时会被转换成新格式。
+ *
  * @author 小子松
  * @since 2023/8/3
  */
@@ -27,10 +56,23 @@ public class TransactionManagerImpl implements TransactionManager{
      * 当一些操作想在没有申请事务的情况下进行，那么可以将操作的 XID 设置为 0。
      * XID 为 0 的事务的状态永远是 committed。
      */
+    private static final int MAGIC = 0x4D594458;
+    private static final byte VERSION = 1;
+    private static final int OF_MAGIC = 0;
+    private static final int OF_VERSION = 4;
+    private static final int OF_COUNTER = 8;
+    private static final int OF_FIRST_PAGE = 16;
     // XID 文件头长度
-    static final int LEN_XID_HEADER_LENGTH = 8;
-    // 每个事务的占用长度
-    private static final int XID_FIELD_SIZE = 1;
+    static final int LEN_XID_HEADER_LENGTH = 24;
+    // 旧格式的文件头只有 XidCounter
+    private static final int LEN_LEGACY_HEADER_LENGTH = 8;
+    // 状态页大小，每个事务的状态占 2 bit
+    static final int STATUS_PAGE_SIZE = 1 << 13;
+    static final int XIDS_PER_PAGE = STATUS_PAGE_SIZE * 4;
+    // 内存中缓存的状态页数
+    private static final int CACHE_PAGES = 16;
+    // 异步提交的刷盘间隔（毫秒），即崩溃时最多丢失的提交时间窗口
+    static final long FLUSH_INTERVAL = 200;
     // 事务的三种状态: 事务正在进行、事务已提交、事务已取消
     private static final byte FIELD_TRAN_ACTIVE   = 0;
     private static final byte FIELD_TRAN_COMMITTED = 1;
@@ -41,26 +83,111 @@ public class TransactionManagerImpl implements TransactionManager{
     static final String XID_SUFFIX = ".xid";
 
     // 读写方式采用NIO的FileChannel
+    private File path;
     private RandomAccessFile file;
     private FileChannel fileChannel;
     private long xidCounter;
+    private long firstPage;
     private Lock counterLock;
+    // 状态页缓存，访问顺序的 LinkedHashMap 即 LRU
+    private Map<Long, byte[]> pages;
+    private Lock cacheLock;
+    // 截断时要替换整个文件，替换期间不能有其他读写
+    private ReadWriteLock fileLock;
+    // 异步提交、还没有写入 XID 文件的事务状态
+    private Map<Long, Byte> unflushed;
+    private volatile Runnable logFlush;
+    // 第一次异步提交时才启动后台刷盘线程
+    private volatile ScheduledExecutorService flusher;
 
     // 构造函数
-    TransactionManagerImpl(RandomAccessFile raf, FileChannel fileChannel) {
+    TransactionManagerImpl(File path, RandomAccessFile raf, FileChannel fileChannel) {
+        this.path = path;
         this.file = raf;
         this.fileChannel = fileChannel;
         counterLock = new ReentrantLock();
+        cacheLock = new ReentrantLock();
+        fileLock = new ReentrantReadWriteLock();
+        unflushed = new ConcurrentHashMap<>();
+        pages = new LinkedHashMap<Long, byte[]>(CACHE_PAGES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                return size() > CACHE_PAGES;
+            }
+        };
+        if(isLegacy()) {
+            convertLegacy();
+        }
         // 检查 XID 文件是否合法
         checkXIDCounter();
     }
 
+    // 新建的 XID 文件：文件头加上第一个空的状态页
+    static byte[] emptyFile() {
+        byte[] raw = new byte[LEN_XID_HEADER_LENGTH + STATUS_PAGE_SIZE];
+        System.arraycopy(header(0, 0), 0, raw, 0, LEN_XID_HEADER_LENGTH);
+        return raw;
+    }
+
+    private static byte[] header(long xidCounter, long firstPage) {
+        byte[] raw = new byte[LEN_XID_HEADER_LENGTH];
+        Parser.putInt(raw, OF_MAGIC, MAGIC);
+        raw[OF_VERSION] = VERSION;
+        Parser.putLong(raw, OF_COUNTER, xidCounter);
+        Parser.putLong(raw, OF_FIRST_PAGE, firstPage);
+        return raw;
+    }
+
+    private boolean isLegacy() {
+        try {
+            if(file.length() < LEN_XID_HEADER_LENGTH) {
+                return true;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(4);
+            fileChannel.read(buf, OF_MAGIC);
+            return Parser.parseInt(buf.array()) != MAGIC;
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return false;
+    }
+
+    /**
+     * 把旧格式（每个事务 1 字节）的 XID 文件转换成状态页，写到临时文件后原子地替换原文件
+     */
+    private void convertLegacy() {
+        byte[] legacy = null;
+        try {
+            long fileLen = file.length();
+            if(fileLen < LEN_LEGACY_HEADER_LENGTH || fileLen - LEN_LEGACY_HEADER_LENGTH > Integer.MAX_VALUE) {
+                Panic.panic(Error.BadXIDFileException);
+            }
+            legacy = new byte[(int) fileLen];
+            readFully(fileChannel, ByteBuffer.wrap(legacy), 0);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        long counter = Parser.parseLong(legacy);
+        if(LEN_LEGACY_HEADER_LENGTH + counter != legacy.length) {
+            Panic.panic(Error.BadXIDFileException);
+        }
+
+        byte[] raw = new byte[LEN_XID_HEADER_LENGTH + (int) (counter / XIDS_PER_PAGE + 1) * STATUS_PAGE_SIZE];
+        System.arraycopy(header(counter, 0), 0, raw, 0, LEN_XID_HEADER_LENGTH);
+        for (long xid = 1; xid <= counter; xid++) {
+            byte status = legacy[LEN_LEGACY_HEADER_LENGTH + (int) (xid - 1)];
+            int pos = LEN_XID_HEADER_LENGTH + (int) (xid / XIDS_PER_PAGE) * STATUS_PAGE_SIZE + slotByte(xid);
+            raw[pos] = setBits(raw[pos], xid, status);
+        }
+        replaceFile(raw, 0, 0);
+    }
+
     private void checkXIDCounter() {
 
         /**
          * 检查 XID 文件是否合法
-         * 读取 XID_FILE_HEADER 中的 xidcounter，根据它计算文件的理论长度，对比实际长度
-         * 通过文件头的 8 字节数字反推文件的理论长度，与文件的实际长度做对比。如果不同则认为 XID 文件不合法。
+         * 读取 XID_FILE_HEADER 中的 xidcounter 和 firstPage，根据它们计算文件的理论长度，对比实际长度
+         * 通过文件头反推文件的理论长度，与文件的实际长度做对比。如果不同则认为 XID 文件不合法。
          */
         long fileLen = 0;
         try {
@@ -74,24 +201,86 @@ public class TransactionManagerImpl implements TransactionManager{
 
         ByteBuffer buf = ByteBuffer.allocate(LEN_XID_HEADER_LENGTH);
         try {
-            // 将读取位置设为0，然后读取8个字节到buf中.
-            fileChannel.position(0);
-            fileChannel.read(buf);
+            readFully(fileChannel, buf, 0);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        this.xidCounter = Parser.parseLong(buf.array());
-        long end = getXidPosition(this.xidCounter + 1);
-        if (end != fileLen) {
+        byte[] raw = buf.array();
+        if(raw[OF_VERSION] != VERSION) {
+            Panic.panic(Error.BadXIDFileException);
+        }
+        this.xidCounter = Parser.parseLong(raw, OF_COUNTER);
+        this.firstPage = Parser.parseLong(raw, OF_FIRST_PAGE);
+        long end = pagePosition(lastPage() + 1);
+        // 追加新页之后、更新 xidCounter 之前崩溃，文件末尾会多出一个空页，截掉即可
+        if (fileLen == end + STATUS_PAGE_SIZE) {
+            try {
+                fileChannel.truncate(end);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            fileLen = end;
+        }
+        if (firstPage > lastPage() || end != fileLen) {
             Panic.panic(Error.BadXIDFileException);
         }
     }
 
-    private long getXidPosition(long xid) {
-        /**
-         * 根据事务 ID 计算出该事务在 XID 文件中的位置
-         */
-        return LEN_XID_HEADER_LENGTH + (xid - 1) * XID_FIELD_SIZE;
+    // 当前最后一个状态页，即 xidCounter 所在的页
+    private long lastPage() {
+        return xidCounter / XIDS_PER_PAGE;
+    }
+
+    private long pagePosition(long pageNo) {
+        return LEN_XID_HEADER_LENGTH + (pageNo - firstPage) * STATUS_PAGE_SIZE;
+    }
+
+    private static int slotByte(long xid) {
+        return (int) (xid % XIDS_PER_PAGE) / 4;
+    }
+
+    private static int slotShift(long xid) {
+        return (int) (xid % 4) * 2;
+    }
+
+    private static byte setBits(byte b, long xid, byte status) {
+        int shift = slotShift(xid);
+        return (byte) ((b & ~(3 << shift)) | (status << shift));
+    }
+
+    // 获取状态页，不在缓存中时从文件读取。需要持有 cacheLock
+    private byte[] page(long pageNo) {
+        byte[] data = pages.get(pageNo);
+        if(data == null) {
+            data = new byte[STATUS_PAGE_SIZE];
+            try {
+                readFully(fileChannel, ByteBuffer.wrap(data), pagePosition(pageNo));
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            pages.put(pageNo, data);
+        }
+        return data;
+    }
+
+    // 修改缓存页中的状态，并把所在的字节写回文件，不 force。需要持有 fileLock 的读锁
+    private void writeStatus(long xid, byte status) {
+        long pageNo = xid / XIDS_PER_PAGE;
+        cacheLock.lock();
+        try {
+            if(pageNo < firstPage) {
+                return;
+            }
+            byte[] data = page(pageNo);
+            int idx = slotByte(xid);
+            data[idx] = setBits(data[idx], xid, status);
+            // 使用带位置的写，不依赖 channel 的共享位置，多个线程同时提交时不会写错位置
+            fileChannel.write(ByteBuffer.wrap(data, idx, 1), pagePosition(pageNo) + idx);
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            cacheLock.unlock();
+        }
     }
 
     private void updateXID(long xid, byte status) {
@@ -100,35 +289,16 @@ public class TransactionManagerImpl implements TransactionManager{
          * @param xid 事务 ID
          * @param status 事务状态：FIELD_TRAN_ACTIVE、FIELD_TRAN_COMMITTED、FIELD_TRAN_ABORTED
          */
-        long position = getXidPosition(xid);
-        ByteBuffer buf = ByteBuffer.wrap(new byte[XID_FIELD_SIZE]);
-        buf.put(status);
-        buf.flip();
-        try {
-            fileChannel.position(position);
-            fileChannel.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        // 强制刷入到文件中:FileChannel 的 force() 方法，强制同步缓存内容到文件中，类似于 BIO 中的 flush() 方法
-        // force 方法的参数是一个布尔，表示是否同步文件的元数据（例如最后修改时间等）。这里我们不需要同步元数据，所以传入 false。
+        fileLock.readLock().lock();
         try {
-            fileChannel.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
+            writeStatus(xid, status);
+            force();
+        } finally {
+            fileLock.readLock().unlock();
         }
     }
 
-    // 递增xid计数器，并更新XID Header
-    private void incrXIDCounter() {
-        xidCounter++;
-        ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(xidCounter));
-        try {
-            fileChannel.position(0);
-            fileChannel.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
+    private void force() {
         // 强制刷入到文件中:FileChannel 的 force() 方法，强制同步缓存内容到文件中，类似于 BIO 中的 flush() 方法
         // force 方法的参数是一个布尔，表示是否同步文件的元数据（例如最后修改时间等）。这里我们不需要同步元数据，所以传入 false。
         try {
@@ -143,22 +313,131 @@ public class TransactionManagerImpl implements TransactionManager{
     public long begin() {
         // 事务 ID 从 1 开始，0 为超级事务
         counterLock.lock();
+        fileLock.readLock().lock();
         try {
-            // 首先设置 xidCounter+1 事务的状态为 committed
             long xid = xidCounter + 1;
-            updateXID(xid, FIELD_TRAN_ACTIVE);
-            // 然后递增 xidCounter，并更新头文件
-            incrXIDCounter();
+            long pageNo = xid / XIDS_PER_PAGE;
+            // 跨过页边界时先在文件末尾追加一个空的状态页
+            if(pageNo > lastPage()) {
+                cacheLock.lock();
+                try {
+                    byte[] data = new byte[STATUS_PAGE_SIZE];
+                    fileChannel.write(ByteBuffer.wrap(data), pagePosition(pageNo));
+                    pages.put(pageNo, data);
+                } catch (IOException e) {
+                    Panic.panic(e);
+                } finally {
+                    cacheLock.unlock();
+                }
+            }
+            // 设置 xidCounter+1 事务的状态为 active，然后递增 xidCounter，并更新头文件，一起刷盘
+            writeStatus(xid, FIELD_TRAN_ACTIVE);
+            try {
+                fileChannel.write(ByteBuffer.wrap(Parser.long2Byte(xid)), OF_COUNTER);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            force();
+            xidCounter = xid;
             return xid;
         } finally {
+            fileLock.readLock().unlock();
             counterLock.unlock();
         }
     }
 
-    // 提交一个XID事务，借助updateXID()方法实现
+    // 提交一个XID事务：先刷日志，再写入状态，和还没写入的异步提交一起刷盘
     @Override
     public void commit(long xid) {
-        updateXID(xid, FIELD_TRAN_COMMITTED);
+        List<Long> pending = pendingAsync();
+        flushLog();
+        fileLock.readLock().lock();
+        try {
+            writeUnflushed(pending);
+            writeStatus(xid, FIELD_TRAN_COMMITTED);
+            force();
+            unflushed.keySet().removeAll(pending);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void commitAsync(long xid) {
+        startFlusher();
+        unflushed.put(xid, FIELD_TRAN_COMMITTED);
+    }
+
+    @Override
+    public void setLogFlush(Runnable logFlush) {
+        this.logFlush = logFlush;
+    }
+
+    private void flushLog() {
+        Runnable r = logFlush;
+        if(r != null) {
+            r.run();
+        }
+    }
+
+    // 刷日志之前取出已有的异步提交，它们的日志一定在这次刷盘之内；之后才来的留到下一次
+    private List<Long> pendingAsync() {
+        return new ArrayList<>(unflushed.keySet());
+    }
+
+    // 把 pendingAsync 取出的异步提交的状态写入文件，不 force。需要持有 fileLock 的锁，调用前日志已经刷盘
+    private void writeUnflushed(List<Long> pending) {
+        for (Long xid : pending) {
+            Byte status = unflushed.get(xid);
+            if(status != null) {
+                writeStatus(xid, status);
+            }
+        }
+    }
+
+    private void startFlusher() {
+        if(flusher != null) {
+            return;
+        }
+        counterLock.lock();
+        try {
+            if(flusher == null) {
+                ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "xid-flusher");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+                executor.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushAsync();
+                    }
+                }, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+                flusher = executor;
+            }
+        } finally {
+            counterLock.unlock();
+        }
+    }
+
+    // 把异步提交的状态刷盘：先刷日志，再写状态并 force。写状态期间新来的异步提交留到下一轮
+    private void flushAsync() {
+        if(unflushed.isEmpty()) {
+            return;
+        }
+        List<Long> pending = pendingAsync();
+        flushLog();
+        fileLock.readLock().lock();
+        try {
+            writeUnflushed(pending);
+            force();
+            unflushed.keySet().removeAll(pending);
+        } finally {
+            fileLock.readLock().unlock();
+        }
     }
 
     // 取消一个XID事务 借助updateXID()方法实现
@@ -199,20 +478,118 @@ public class TransactionManagerImpl implements TransactionManager{
 
     // 检测XID事务是否处于status状态
     private boolean checkXID(long xid, byte status) {
-        long offset = getXidPosition(xid);
-        ByteBuffer buf = ByteBuffer.wrap(new byte[XID_FIELD_SIZE]);
+        Byte pending = unflushed.get(xid);
+        if(pending != null) {
+            return pending == status;
+        }
+        long pageNo = xid / XIDS_PER_PAGE;
+        fileLock.readLock().lock();
+        cacheLock.lock();
+        try {
+            // 已经截断的页中的事务都视为已提交
+            if(pageNo < firstPage) {
+                return status == FIELD_TRAN_COMMITTED;
+            }
+            byte[] data = page(pageNo);
+            return ((data[slotByte(xid)] >> slotShift(xid)) & 3) == status;
+        } finally {
+            cacheLock.unlock();
+            fileLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 截断之后这些页中的事务都读作已提交，所以截断之前先刷日志（vacuum 冻结时写的日志，中止事务的记录由它标记为无效），
+     * 再把异步提交的状态写入文件刷盘。之后才到的异步提交还只在内存中，不截断它们所在的页
+     */
+    @Override
+    public long truncateBefore(long xid) {
+        List<Long> pending = pendingAsync();
+        flushLog();
+        counterLock.lock();
+        fileLock.writeLock().lock();
         try {
-            fileChannel.position(offset);
-            fileChannel.read(buf);
+            writeUnflushed(pending);
+            force();
+            unflushed.keySet().removeAll(pending);
+            long limit = Math.min(xid, xidCounter + 1);
+            for (Long async : unflushed.keySet()) {
+                limit = Math.min(limit, async);
+            }
+            // 至少保留 xidCounter 所在的页
+            long newFirstPage = Math.min(limit / XIDS_PER_PAGE, lastPage());
+            if(newFirstPage <= firstPage) {
+                return 0;
+            }
+            long dropped = newFirstPage - firstPage;
+            replaceFile(header(xidCounter, newFirstPage), pagePosition(newFirstPage), pagePosition(lastPage() + 1));
+            firstPage = newFirstPage;
+            cacheLock.lock();
+            try {
+                Iterator<Long> it = pages.keySet().iterator();
+                while(it.hasNext()) {
+                    if(it.next() < newFirstPage) {
+                        it.remove();
+                    }
+                }
+            } finally {
+                cacheLock.unlock();
+            }
+            return dropped;
+        } finally {
+            fileLock.writeLock().unlock();
+            counterLock.unlock();
+        }
+    }
+
+    /**
+     * 写一个临时文件：head 之后接上当前文件 [from, to) 的内容，刷盘后原子地替换当前文件并重新打开
+     */
+    private void replaceFile(byte[] head, long from, long to) {
+        File tmp = new File(path.getPath() + ".tmp");
+        try {
+            try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+                FileChannel fc = out.getChannel();
+                fc.truncate(0);
+                fc.write(ByteBuffer.wrap(head), 0);
+                long pos = from;
+                while(pos < to) {
+                    pos += fileChannel.transferTo(pos, to - pos, fc.position(head.length + pos - from));
+                }
+                fc.force(true);
+            }
+            Files.move(tmp.toPath(), path.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            fileChannel.close();
+            file.close();
+            file = new RandomAccessFile(path, "rw");
+            fileChannel = file.getChannel();
         } catch (IOException e) {
             Panic.panic(e);
         }
-        return buf.array()[0] == status;
+    }
+
+    private static void readFully(FileChannel fc, ByteBuffer buf, long position) throws IOException {
+        while(buf.hasRemaining()) {
+            int n = fc.read(buf, position);
+            if(n < 0) {
+                break;
+            }
+            position += n;
+        }
     }
 
     // 关闭TM
     @Override
     public void close() {
+        if(flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(FLUSH_INTERVAL * 10, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
+        flushAsync();
         try {
             fileChannel.close();
             file.close();
@@ -34,6 +34,38 @@ public class Parser {
             return buffer.getLong();
         }
 
+        // 直接从 buf 的 offset 处解析，不需要先 copyOfRange 出一个新数组
+        public static short parseShort(byte[] buf, int offset) {
+            return (short)(((buf[offset] & 0xFF) << 8) | (buf[offset+1] & 0xFF));
+        }
+
+        public static int parseInt(byte[] buf, int offset) {
+            return ((buf[offset] & 0xFF) << 24) | ((buf[offset+1] & 0xFF) << 16)
+                    | ((buf[offset+2] & 0xFF) << 8) | (buf[offset+3] & 0xFF);
+        }
+
+        public static long parseLong(byte[] buf, int offset) {
+            return ((long)parseInt(buf, offset) << 32) | (parseInt(buf, offset+4) & 0xFFFFFFFFL);
+        }
+
+        // 直接写入 buf 的 offset 处，与 short2Byte / int2Byte / long2Byte 的字节序一致
+        public static void putShort(byte[] buf, int offset, short value) {
+            buf[offset] = (byte)(value >>> 8);
+            buf[offset+1] = (byte)value;
+        }
+
+        public static void putInt(byte[] buf, int offset, int value) {
+            buf[offset] = (byte)(value >>> 24);
+            buf[offset+1] = (byte)(value >>> 16);
+            buf[offset+2] = (byte)(value >>> 8);
+            buf[offset+3] = (byte)value;
+        }
+
+        public static void putLong(byte[] buf, int offset, long value) {
+            putInt(buf, offset, (int)(value >>> 32));
+            putInt(buf, offset+4, (int)value);
+        }
+
         public static byte[] long2Byte(long value) {
             return ByteBuffer.allocate(Long.SIZE / Byte.SIZE).putLong(value).array();
         }
@@ -50,10 +82,15 @@ public class Parser {
         }
 
         public static long str2Uid(String key) {
+            byte[] raw = key.getBytes();
+            return str2Uid(raw, 0, raw.length);
+        }
+
+        public static long str2Uid(byte[] raw, int start, int length) {
             long seed = 13331;
             long res = 0;
-            for(byte b : key.getBytes()) {
-                res = res * seed + (long)b;
+            for(int i = start; i < start + length; i ++) {
+                res = res * seed + (long)raw[i];
             }
             return res;
         }
@@ -4,10 +4,10 @@ import com.google.common.primitives.Bytes;
 
 import top.philsongzi.mydb.backend.common.SubArray;
 import top.philsongzi.mydb.backend.dm.dataItem.DataItem;
+import top.philsongzi.mydb.backend.tm.TransactionManager;
+import top.philsongzi.mydb.backend.tm.TransactionManagerImpl;
 import top.philsongzi.mydb.backend.utils.Parser;
 
-import java.util.Arrays;
-
 /**
  * Entry：记录——DM 层向上层提供了数据项（Data Item）的概念，VM 通过管理所有的数据项，向上层提供了记录（Entry）的概念。
  * 上层模块通过 VM 操作数据的最小单位，就是记录。
@@ -42,6 +42,10 @@ public class Entry {
 
     public static Entry loadEntry(VersionManager vm, long uid) throws Exception {
         DataItem di = ((VersionManagerImpl) vm).dm.read(uid);
+        // DataItem 已经无效（恢复时撤销的插入、VACUUM 清理掉的中止版本），记录不存在
+        if(di == null) {
+            return null;
+        }
         return newEntry(vm, di, uid);
     }
 
@@ -82,6 +86,15 @@ public class Entry {
         }
     }
 
+    /**
+     * 记录数据在页面上的视图，不拷贝。只有持有这个 Entry（未 release）时视图才有效；
+     * 记录的数据在插入后不会再被修改（只有 XMIN、XMAX 会变），读取视图不需要加锁
+     */
+    public SubArray view() {
+        SubArray sa = dataItem.data();
+        return new SubArray(sa.raw, sa.start + OF_DATA, sa.end);
+    }
+
     /**
      * 修改 XMAX
      * @param xid
@@ -107,11 +120,61 @@ public class Entry {
         }
     }
 
+    /**
+     * 冻结记录，早于 horizon 的事务都已结束：
+     * 1. XMIN 已提交，改成 SUPER_XID，它永远是已提交的，可见性不变；
+     * 2. XMIN 已中止，这条记录对谁都不可见，直接把 DataItem 标记为无效。同时把 XMAX 设成 XMIN，
+     *    这样即使 XMIN 的状态页被截断（视为已提交），还被持有的 Entry 也仍然不可见；
+     * 3. XMAX 已中止，删除没有生效，改回 0。
+     * XMAX 已提交的记录对谁都不可见，保持原样即可。整个修改在一次 before/after 中完成，以 SUPER_XID 落日志
+     * @return 是否修改了记录
+     */
+    public boolean freeze(TransactionManager tm, long horizon) {
+        dataItem.before();
+        boolean changed = false;
+        try {
+            SubArray sa = dataItem.data();
+            long xmin = Parser.parseLong(sa.raw, sa.start+OF_XMIN);
+            long xmax = Parser.parseLong(sa.raw, sa.start+OF_XMAX);
+            boolean oldXmin = xmin != TransactionManagerImpl.SUPER_XID && xmin < horizon;
+            if(oldXmin && tm.isAborted(xmin)) {
+                DataItem.setDataItemInvalid(dataItem.getRaw());
+                Parser.putLong(sa.raw, sa.start+OF_XMAX, xmin);
+                changed = true;
+            } else {
+                if(oldXmin) {
+                    Parser.putLong(sa.raw, sa.start+OF_XMIN, TransactionManagerImpl.SUPER_XID);
+                    changed = true;
+                }
+                if(xmax != 0 && xmax < horizon && tm.isAborted(xmax)) {
+                    Parser.putLong(sa.raw, sa.start+OF_XMAX, 0);
+                    changed = true;
+                }
+            }
+            return changed;
+        } finally {
+            if(changed) {
+                dataItem.after(TransactionManagerImpl.SUPER_XID);
+            } else {
+                dataItem.unBefore();
+            }
+        }
+    }
+
+    /**
+     * 记录是否已经死亡：XMAX 早于 horizon 且已提交，删除对所有活跃事务都已生效，之后开始的事务也看不到它。
+     * 中止事务插入的记录由 freeze 标记为无效，不会走到这里
+     */
+    public boolean isDead(TransactionManager tm, long horizon) {
+        long xmax = getXmax();
+        return xmax != TransactionManagerImpl.SUPER_XID && xmax < horizon && tm.isCommitted(xmax);
+    }
+
     public long getXmin() {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMIN, sa.start+OF_XMAX));
+            return Parser.parseLong(sa.raw, sa.start+OF_XMIN);
         } finally {
             dataItem.rUnLock();
         }
@@ -121,7 +184,7 @@ public class Entry {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMAX, sa.start+OF_DATA));
+            return Parser.parseLong(sa.raw, sa.start+OF_XMAX);
         } finally {
             dataItem.rUnLock();
         }
@@ -19,6 +19,8 @@ public class Transaction {
     public Map<Long, Boolean> snapshot;
     public Exception err;
     public boolean autoAborted;
+    // 异步提交
+    public boolean async;
 
     /**
      * 事务的构造方法
@@ -3,6 +3,8 @@ package top.philsongzi.mydb.backend.vm;
 import top.philsongzi.mydb.backend.dm.DataManager;
 import top.philsongzi.mydb.backend.tm.TransactionManager;
 
+import java.util.List;
+
 /**
  * VersionManager 接口定义。向上层提供功能
  *
@@ -12,13 +14,67 @@ import top.philsongzi.mydb.backend.tm.TransactionManager;
 public interface VersionManager {
 
     byte[] read(long xid, long uid) throws Exception;
+
+    /**
+     * 不拷贝数据的读取：返回对 xid 可见的记录，记录不存在或者不可见时返回 null。
+     * 返回的 Entry 仍然被持有，通过 Entry.view() 直接读取页面上的数据，用完之后必须 release
+     */
+    Entry readEntry(long xid, long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    long[] insertBatch(long xid, List<byte[]> datas) throws Exception;
+    long[] load(long xid, List<byte[]> datas) throws Exception;
     boolean delete(long xid, long uid) throws Exception;
 
-    long begin(int level);
+    /**
+     * 不检查可见性，读取记录的数据，记录已经无效时返回 null。vacuum 用它找出版本引用的行外数据
+     */
+    byte[] readData(long uid) throws Exception;
+
+    /**
+     * 冻结线：所有活跃事务都能看到的最老的事务之前。小于它的事务都已结束，并且对所有活跃事务的可见性都相同
+     */
+    long horizon();
+
+    /**
+     * 冻结一条记录：把早于 horizon 的已提交 XMIN 改成 SUPER_XID，早于 horizon 的事务中止留下的痕迹清理掉，
+     * 之后这条记录的可见性不再依赖这些事务的状态
+     * @return 记录是否被修改
+     */
+    boolean freeze(long uid, long horizon) throws Exception;
+
+    /**
+     * 记录是否对所有事务都不可见：已经无效（中止事务插入后被冻结、恢复时撤销），或者在 horizon 之前被删除且删除已提交。
+     * 应在 freeze 之后调用
+     */
+    boolean isDead(long uid, long horizon) throws Exception;
+
+    /**
+     * 最新开始的活跃事务，没有活跃事务时返回 SUPER_XID。之后 horizon() 超过它时，现在活跃的事务都已结束
+     */
+    long newestActive();
+
+    /**
+     * 所有记录都冻结到 horizon 之后，截断 horizon 之前的事务状态页
+     * @return 截断的状态页数
+     */
+    long truncateBefore(long horizon);
+
+    default long begin(int level) {
+        return begin(level, false);
+    }
+
+    /**
+     * @param async 是否异步提交：提交时不等事务状态刷盘，见 TransactionManager.commitAsync
+     */
+    long begin(int level, boolean async);
     void commit(long xid) throws Exception;
     void abort(long xid);
 
+    /**
+     * 在同一组事务上为另一个存储创建 VM：共用 TM、活跃事务表和锁表，记录从 dm 中读写
+     */
+    VersionManager forStorage(DataManager dm);
+
     static VersionManager newVersionManager(TransactionManager tm, DataManager dm) {
         return new VersionManagerImpl(tm, dm);
     }
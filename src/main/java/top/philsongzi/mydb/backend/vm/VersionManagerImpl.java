@@ -7,7 +7,9 @@ import top.philsongzi.mydb.backend.tm.TransactionManagerImpl;
 import top.philsongzi.mydb.backend.utils.Panic;
 import top.philsongzi.mydb.common.Error;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -37,9 +39,36 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         this.lt = new LockTable();
     }
 
+    private VersionManagerImpl(VersionManagerImpl main, DataManager dm) {
+        super(0);
+        this.tm = main.tm;
+        this.dm = dm;
+        this.activeTransaction = main.activeTransaction;
+        this.lock = main.lock;
+        this.lt = main.lt;
+    }
+
+    @Override
+    public VersionManager forStorage(DataManager dm) {
+        return new VersionManagerImpl(this, dm);
+    }
+
     // read() 方法读取一个 entry，注意判断下可见性
     @Override
     public byte[] read(long xid, long uid) throws Exception {
+        Entry entry = readEntry(xid, uid);
+        if(entry == null) {
+            return null;
+        }
+        try {
+            return entry.data();
+        } finally {
+            entry.release();
+        }
+    }
+
+    @Override
+    public Entry readEntry(long xid, long uid) throws Exception {
         lock.lock();
         // 从 activeTransaction 中获取当前事务
         Transaction t = activeTransaction.get(xid);
@@ -60,16 +89,16 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
                 throw e;
             }
         }
-        // 判断可见性
+        // 判断可见性，可见时不释放，交给调用方
+        boolean visible = false;
         try {
-            if(Visibility.isVisible(tm, t, entry)) {
-                return entry.data();
-            } else {
-                return null;
-            }
+            visible = Visibility.isVisible(tm, t, entry);
         } finally {
-            entry.release();
+            if(!visible) {
+                entry.release();
+            }
         }
+        return visible ? entry : null;
     }
 
     // insert() 则是将数据包裹成 Entry，交给 DM 插入
@@ -87,6 +116,32 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         return dm.insert(xid, raw);
     }
 
+    @Override
+    public long[] insertBatch(long xid, List<byte[]> datas) throws Exception {
+        return dm.insertBatch(xid, wrapEntryRaws(xid, datas));
+    }
+
+    @Override
+    public long[] load(long xid, List<byte[]> datas) throws Exception {
+        return dm.load(xid, wrapEntryRaws(xid, datas));
+    }
+
+    private List<byte[]> wrapEntryRaws(long xid, List<byte[]> datas) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if(t.err != null) {
+            throw t.err;
+        }
+
+        List<byte[]> raws = new ArrayList<>(datas.size());
+        for (byte[] data : datas) {
+            raws.add(Entry.wrapEntryRaw(xid, data));
+        }
+        return raws;
+    }
+
     // delete 方法，实际上主要是前置的三件事：一是可见性判断，二是获取资源的锁，三是版本跳跃判断。删除的操作只有一个设置 XMAX。
     @Override
     public boolean delete(long xid, long uid) throws Exception {
@@ -148,13 +203,115 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         }
     }
 
+    // 冻结线取所有活跃事务的 xid 以及它们快照中的 xid 的最小值，没有活跃事务时所有事务都已结束
+    @Override
+    public long horizon() {
+        lock.lock();
+        try {
+            long horizon = Long.MAX_VALUE;
+            for (Transaction t : activeTransaction.values()) {
+                if(t.xid == TransactionManagerImpl.SUPER_XID) {
+                    continue;
+                }
+                horizon = Math.min(horizon, t.xid);
+                if(t.snapshot != null) {
+                    for (Long x : t.snapshot.keySet()) {
+                        if(x != TransactionManagerImpl.SUPER_XID) {
+                            horizon = Math.min(horizon, x);
+                        }
+                    }
+                }
+            }
+            return horizon;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean freeze(long uid, long horizon) throws Exception {
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+        } catch(Exception e) {
+            if(e == Error.NullEntryException) {
+                return false;
+            } else {
+                throw e;
+            }
+        }
+        try {
+            return entry.freeze(tm, horizon);
+        } finally {
+            entry.release();
+        }
+    }
+
+    @Override
+    public byte[] readData(long uid) throws Exception {
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+        } catch(Exception e) {
+            if(e == Error.NullEntryException) {
+                return null;
+            } else {
+                throw e;
+            }
+        }
+        try {
+            return entry.data();
+        } finally {
+            entry.release();
+        }
+    }
+
+    @Override
+    public boolean isDead(long uid, long horizon) throws Exception {
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+        } catch(Exception e) {
+            if(e == Error.NullEntryException) {
+                return true;
+            } else {
+                throw e;
+            }
+        }
+        try {
+            return entry.isDead(tm, horizon);
+        } finally {
+            entry.release();
+        }
+    }
+
+    @Override
+    public long newestActive() {
+        lock.lock();
+        try {
+            long newest = TransactionManagerImpl.SUPER_XID;
+            for (Long xid : activeTransaction.keySet()) {
+                newest = Math.max(newest, xid);
+            }
+            return newest;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long truncateBefore(long horizon) {
+        return tm.truncateBefore(horizon);
+    }
+
     // begin() 开启一个事务，并初始化事务的结构，将其存放在 activeTransaction 中，用于检查和快照使用
     @Override
-    public long begin(int level) {
+    public long begin(int level, boolean async) {
         lock.lock();
         try {
             long xid = tm.begin();
             Transaction t = Transaction.newTransaction(xid, level, activeTransaction);
+            t.async = async;
             activeTransaction.put(xid, t);
             return xid;
         } finally {
@@ -184,7 +341,11 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         lock.unlock();
 
         lt.remove(xid);
-        tm.commit(xid);
+        if(t.async) {
+            tm.commitAsync(xid);
+        } else {
+            tm.commit(xid);
+        }
     }
 
     // abort 事务的方法则有两种，手动和自动。
@@ -0,0 +1,207 @@
+package top.philsongzi.mydb.client;
+
+import top.philsongzi.mydb.common.Error;
+import top.philsongzi.mydb.transport.Encoder;
+import top.philsongzi.mydb.transport.FrameTransporter;
+import top.philsongzi.mydb.transport.Package;
+import top.philsongzi.mydb.transport.ResultRows;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * 流水线客户端：使用带请求 id 的二进制协议，发送请求后不等待结果，立即返回一个 CompletableFuture。
+ * 同一个连接上可以同时有任意多个未完成的请求，服务端按发送顺序逐条执行；
+ * 后台的读线程按结果中的请求 id 找到对应的 future 并完成它。
+ * 多个线程可以同时发送，帧不会交错；TCP 缓冲区满时发送会阻塞，这就是对客户端的背压。
+ *
+ * @author 小子松
+ * @since 2026/10/19
+ */
+public class AsyncClient {
+
+    private FrameTransporter transport;
+    private Encoder encoder;
+    private AtomicInteger nextRequestId;
+    private Map<Integer, CompletableFuture<Package>> pending;
+    private Lock sendLock;
+    private Thread reader;
+    private volatile Exception failure;
+
+    public AsyncClient(String host, int port) throws IOException {
+        this(SocketChannel.open(new InetSocketAddress(host, port)));
+    }
+
+    public AsyncClient(SocketChannel channel) throws IOException {
+        this.transport = new FrameTransporter(channel, FrameTransporter.VERSION_TAGGED);
+        this.encoder = new Encoder(true);
+        this.nextRequestId = new AtomicInteger();
+        this.pending = new ConcurrentHashMap<>();
+        this.sendLock = new ReentrantLock();
+        this.reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        }, "mydb-client-reader");
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    public CompletableFuture<byte[]> execute(byte[] stat) {
+        return send(Package.STATEMENT, stat).thenApply(new Function<Package, byte[]>() {
+            @Override
+            public byte[] apply(Package pkg) {
+                if(pkg.getType() == Package.ROWS) {
+                    return decodeRows(pkg).format().getBytes();
+                }
+                return pkg.getData();
+            }
+        });
+    }
+
+    /**
+     * 执行 select，结果是带类型的行
+     */
+    public CompletableFuture<ResultRows> select(byte[] stat) {
+        return send(Package.STATEMENT, stat).thenApply(new Function<Package, ResultRows>() {
+            @Override
+            public ResultRows apply(Package pkg) {
+                if(pkg.getType() != Package.ROWS) {
+                    throw new CompletionException(Error.InvalidPkgDataException);
+                }
+                return decodeRows(pkg);
+            }
+        });
+    }
+
+    public CompletableFuture<Integer> prepare(byte[] stat) {
+        return send(Package.PREPARE, stat).thenApply(new Function<Package, Integer>() {
+            @Override
+            public Integer apply(Package pkg) {
+                return ByteBuffer.wrap(pkg.getData()).getInt();
+            }
+        });
+    }
+
+    /**
+     * 执行预编译语句。statementId 可以是还没有返回的 prepare 的结果，只要 prepare 先于它发送
+     */
+    public CompletableFuture<byte[]> execute(int statementId, String... params) {
+        return send(Package.EXECUTE, Encoder.encodeExecute(statementId, params)).thenApply(new Function<Package, byte[]>() {
+            @Override
+            public byte[] apply(Package pkg) {
+                return pkg.getData();
+            }
+        });
+    }
+
+    public CompletableFuture<byte[]> deallocate(int statementId) {
+        return send(Package.DEALLOCATE, Encoder.encodeExecute(statementId, new String[0])).thenApply(new Function<Package, byte[]>() {
+            @Override
+            public byte[] apply(Package pkg) {
+                return pkg.getData();
+            }
+        });
+    }
+
+    /**
+     * 一个请求中执行多条语句，结果见 Client.executeBatch
+     */
+    public CompletableFuture<List<Package>> executeBatch(byte[]... stats) {
+        return send(Package.BATCH, Encoder.encodeBatch(stats)).thenApply(new Function<Package, List<Package>>() {
+            @Override
+            public List<Package> apply(Package pkg) {
+                try {
+                    return Encoder.decodeBatchResult(pkg.getData());
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 当前已发送、还没有收到结果的请求数
+     */
+    public int inFlight() {
+        return pending.size();
+    }
+
+    private CompletableFuture<Package> send(byte type, byte[] data) {
+        CompletableFuture<Package> future = new CompletableFuture<>();
+        int requestId = nextRequestId.incrementAndGet();
+        pending.put(requestId, future);
+        sendLock.lock();
+        try {
+            // 读线程已经退出时，它不会再完成任何 future
+            if(failure != null) {
+                throw failure;
+            }
+            transport.send(encoder.encode(new Package(requestId, type, data, null)));
+        } catch (Exception e) {
+            pending.remove(requestId);
+            future.completeExceptionally(e);
+        } finally {
+            sendLock.unlock();
+        }
+        return future;
+    }
+
+    private void readLoop() {
+        try {
+            while(true) {
+                Package pkg = encoder.decode(transport.receive());
+                CompletableFuture<Package> future = pending.remove(pkg.getRequestId());
+                if(future == null) {
+                    continue;
+                }
+                if(pkg.getErr() != null) {
+                    future.completeExceptionally(pkg.getErr());
+                } else {
+                    future.complete(pkg);
+                }
+            }
+        } catch (Exception e) {
+            sendLock.lock();
+            try {
+                failure = new IOException("Connection closed", e);
+            } finally {
+                sendLock.unlock();
+            }
+            for (Integer requestId : pending.keySet()) {
+                CompletableFuture<Package> future = pending.remove(requestId);
+                if(future != null) {
+                    future.completeExceptionally(failure);
+                }
+            }
+        }
+    }
+
+    private static ResultRows decodeRows(Package pkg) {
+        try {
+            return ResultRows.decode(pkg.getData());
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    public void close() {
+        try {
+            transport.close();
+            reader.join();
+        } catch (Exception e) {
+        }
+    }
+}
@@ -1,7 +1,14 @@
 package top.philsongzi.mydb.client;
 
+import top.philsongzi.mydb.common.Error;
+import top.philsongzi.mydb.transport.Encoder;
 import top.philsongzi.mydb.transport.Packager;
 import top.philsongzi.mydb.transport.Package;
+import top.philsongzi.mydb.transport.ResultRows;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * 客户端。
@@ -11,20 +18,124 @@ import top.philsongzi.mydb.transport.Package;
 public class Client {
 
     private RoundTripper rt;
+    private int cursorId;
 
     public Client(Packager packager) {
         this.rt = new RoundTripper(packager);
     }
 
     public byte[] execute(byte[] stat) throws Exception {
-        Package pkg = new Package(stat, null);
+        return roundTrip(new Package(stat, null));
+    }
+
+    /**
+     * 预编译语句，参数用 ? 占位，返回服务端的语句 id
+     */
+    public int prepare(byte[] stat) throws Exception {
+        byte[] id = roundTrip(new Package(Package.PREPARE, stat, null));
+        return ByteBuffer.wrap(id).getInt();
+    }
+
+    /**
+     * 按位置绑定参数并执行预编译语句，服务端跳过解析和查表
+     */
+    public byte[] execute(int statementId, String... params) throws Exception {
+        return roundTrip(new Package(Package.EXECUTE, Encoder.encodeExecute(statementId, params), null));
+    }
+
+    /**
+     * 释放服务端的预编译语句
+     */
+    public void deallocate(int statementId) throws Exception {
+        roundTrip(new Package(Package.DEALLOCATE, Encoder.encodeExecute(statementId, new String[0]), null));
+    }
+
+    /**
+     * 执行 select，取回带类型的结果行。只有二进制协议的连接上服务端才返回这种结果
+     */
+    public ResultRows select(byte[] stat) throws Exception {
+        Package resPkg = rt.roundTrip(new Package(stat, null));
+        if(resPkg.getErr() != null) {
+            throw resPkg.getErr();
+        }
+        if(resPkg.getType() != Package.ROWS) {
+            throw Error.InvalidPkgDataException;
+        }
+        return ResultRows.decode(resPkg.getData());
+    }
+
+    /**
+     * 一次往返执行多条语句，服务端在本连接的会话中依次执行。
+     * 返回每条已执行语句的结果，出错的语句 getErr() 不为空，它之后的语句没有执行，不在结果中
+     */
+    public List<Package> executeBatch(byte[]... stats) throws Exception {
+        Package resPkg = rt.roundTrip(new Package(Package.BATCH, Encoder.encodeBatch(stats), null));
+        if(resPkg.getErr() != null) {
+            throw resPkg.getErr();
+        }
+        return Encoder.decodeBatchResult(resPkg.getData());
+    }
+
+    /**
+     * 执行以分号分隔的脚本，见 splitScript
+     */
+    public List<Package> executeScript(String script) throws Exception {
+        List<String> stats = splitScript(script);
+        byte[][] raws = new byte[stats.size()][];
+        for (int i = 0; i < raws.length; i++) {
+            raws[i] = stats.get(i).getBytes();
+        }
+        return executeBatch(raws);
+    }
+
+    /**
+     * 按分号把脚本切分成语句，引号内的分号不算，空语句被忽略
+     */
+    public static List<String> splitScript(String script) {
+        List<String> stats = new ArrayList<>();
+        char quote = 0;
+        int start = 0;
+        for (int i = 0; i <= script.length(); i++) {
+            char c = i < script.length() ? script.charAt(i) : ';';
+            if(quote != 0) {
+                if(c == quote) {
+                    quote = 0;
+                }
+            } else if(c == '"' || c == '\'') {
+                quote = c;
+            } else if(c == ';') {
+                String stat = script.substring(start, Math.min(i, script.length())).trim();
+                if(!stat.isEmpty()) {
+                    stats.add(stat);
+                }
+                start = i + 1;
+            }
+        }
+        return stats;
+    }
+
+    private byte[] roundTrip(Package pkg) throws Exception {
         Package resPkg = rt.roundTrip(pkg);
         if(resPkg.getErr() != null) {
             throw resPkg.getErr();
         }
+        if(resPkg.getType() == Package.ROWS) {
+            // 带类型的结果行格式化成和文本协议相同的结果
+            return ResultRows.decode(resPkg.getData()).format().getBytes();
+        }
         return resPkg.getData();
     }
 
+    /**
+     * 以游标方式执行 select，结果按 fetchSize 行一批流式取回
+     */
+    public ResultStream query(byte[] select, int fetchSize) throws Exception {
+        String cursorName = "cursor_" + (++ cursorId);
+        byte[] declare = ("declare " + cursorName + " cursor for " + new String(select)).getBytes();
+        execute(declare);
+        return new ResultStream(this, cursorName, fetchSize);
+    }
+
     public void close() {
         try {
             rt.close();
@@ -1,23 +1,31 @@
 package top.philsongzi.mydb.client;
 
 import top.philsongzi.mydb.transport.Encoder;
+import top.philsongzi.mydb.transport.FrameTransporter;
 import top.philsongzi.mydb.transport.Packager;
+import top.philsongzi.mydb.transport.Transport;
 import top.philsongzi.mydb.transport.Transporter;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 
 /**
- * 客户端的启动入口。
+ * 客户端的启动入口。默认使用二进制协议，参数为 -hex 时使用十六进制文本行的旧协议。
  * @author 小子松
  * @since 2023/8/3
  */
 public class Launcher {
     public static void main(String[] args) throws UnknownHostException, IOException {
-        Socket socket = new Socket("127.0.0.1", 9999);
+        Transport t;
+        if(args.length > 0 && "-hex".equals(args[0])) {
+            t = new Transporter(new Socket("127.0.0.1", 9999));
+        } else {
+            t = new FrameTransporter(SocketChannel.open(new InetSocketAddress("127.0.0.1", 9999)));
+        }
         Encoder e = new Encoder();
-        Transporter t = new Transporter(socket);
         Packager packager = new Packager(t, e);
 
         Client client = new Client(packager);
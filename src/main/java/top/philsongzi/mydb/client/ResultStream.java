@@ -0,0 +1,45 @@
+package top.philsongzi.mydb.client;
+
+/**
+ * 流式结果集：背后是一个服务端游标，每次 next 取回最多 fetchSize 行。
+ * 取完或者调用 close 后游标在服务端关闭。
+ *
+ * @author 小子松
+ * @since 2026/10/19
+ */
+public class ResultStream {
+
+    private Client client;
+    private String cursorName;
+    private int fetchSize;
+    private boolean closed;
+
+    ResultStream(Client client, String cursorName, int fetchSize) {
+        this.client = client;
+        this.cursorName = cursorName;
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * 取回下一批行
+     * @return 格式化后的行，没有更多行时返回 null
+     */
+    public byte[] next() throws Exception {
+        if(closed) {
+            return null;
+        }
+        byte[] chunk = client.execute(("fetch " + fetchSize + " from " + cursorName).getBytes());
+        if(chunk.length == 0) {
+            close();
+            return null;
+        }
+        return chunk;
+    }
+
+    public void close() throws Exception {
+        if(!closed) {
+            closed = true;
+            client.execute(("close " + cursorName).getBytes());
+        }
+    }
+}
@@ -1,14 +1,23 @@
 package top.philsongzi.mydb.client;
 
+import top.philsongzi.mydb.transport.Package;
+import top.philsongzi.mydb.transport.ResultRows;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
 import java.util.Scanner;
 
 /**
+ * 交互式命令行。包含分号的输入按脚本处理，所有语句一次发给服务端批量执行；source 文件名 执行脚本文件。
  * @author 小子松
  * @since 2023/8/16
  */
 public class Shell {
 
     private Client client;
+    // select 以游标方式执行，每次取回的行数，可以用 fetchsize n 修改
+    private int fetchSize = 1000;
 
     public Shell(Client client) {
         this.client = client;
@@ -23,7 +32,33 @@ public class Shell {
                 if("exit".equals(statStr) || "quit".equals(statStr)) {
                     break;
                 }
+                if(statStr.startsWith("fetchsize ")) {
+                    try {
+                        fetchSize = Integer.parseInt(statStr.substring("fetchsize ".length()).trim());
+                    } catch(NumberFormatException e) {
+                        System.out.println("Invalid fetch size!");
+                    }
+                    continue;
+                }
                 try {
+                    if(statStr.startsWith("source ")) {
+                        runScript(new String(Files.readAllBytes(Paths.get(statStr.substring("source ".length()).trim()))));
+                        continue;
+                    }
+                    if(statStr.indexOf(';') >= 0) {
+                        runScript(statStr);
+                        continue;
+                    }
+                    if(statStr.trim().startsWith("select ")) {
+                        // 边取边打印，大结果集不会一次性堆在客户端内存里
+                        ResultStream rs = client.query(statStr.getBytes(), fetchSize);
+                        byte[] chunk;
+                        while((chunk = rs.next()) != null) {
+                            System.out.print(new String(chunk));
+                        }
+                        System.out.println();
+                        continue;
+                    }
                     byte[] res = client.execute(statStr.getBytes());
                     System.out.println(new String(res));
                 } catch(Exception e) {
@@ -36,4 +71,26 @@ public class Shell {
             client.close();
         }
     }
+
+    /**
+     * 一次往返执行整个脚本，依次打印每条语句的结果；出错的语句之后的语句没有执行
+     */
+    private void runScript(String script) throws Exception {
+        List<String> stats = Client.splitScript(script);
+        List<Package> results = client.executeScript(script);
+        for (int i = 0; i < stats.size(); i++) {
+            if(i >= results.size()) {
+                System.out.println("Skipped: " + stats.get(i));
+                continue;
+            }
+            Package res = results.get(i);
+            if(res.getErr() != null) {
+                System.out.println(res.getErr().getMessage());
+            } else if(res.getType() == Package.ROWS) {
+                System.out.println(ResultRows.decode(res.getData()).format());
+            } else {
+                System.out.println(new String(res.getData()));
+            }
+        }
+    }
 }
@@ -19,6 +19,7 @@ public class Error {
     public static final Exception MemTooSmallException = new RuntimeException("Memory too small!");
     public static final Exception DataTooLargeException = new RuntimeException("Data too large!");
     public static final Exception DatabaseBusyException = new RuntimeException("Database is busy!");
+    public static final Exception StorageFullException = new RuntimeException("Storage is full!");
 
     // tm:Transaction Manager 中的异常——XID文件问题。
     public static final Exception BadXIDFileException = new RuntimeException("Bad XID file!");
@@ -47,6 +48,12 @@ public class Error {
     // server
     public static final Exception NestedTransactionException = new RuntimeException("Nested transaction not supported!");
     public static final Exception NoTransactionException = new RuntimeException("Not in transaction!");
+    public static final Exception DuplicatedCursorException = new RuntimeException("Duplicated cursor!");
+    public static final Exception CursorNotFoundException = new RuntimeException("Cursor not found!");
+    public static final Exception StatementNotFoundException = new RuntimeException("Prepared statement not found!");
+    public static final Exception InvalidParamsException = new RuntimeException("Invalid parameters!");
+    public static final Exception InvalidVariableException = new RuntimeException("Invalid session variable!");
+    public static final Exception BrokenToastException = new RuntimeException("Broken toast value!");
 
     // launcher
     public static final Exception InvalidMemException = new RuntimeException("Invalid memory!");
@@ -4,39 +4,211 @@ import com.google.common.primitives.Bytes;
 
 import top.philsongzi.mydb.common.Error;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * Encoder 编码 Package，将 Package 编码成 byte[] 数组，或者将 byte[] 数组解码成 Package。
- * 编码和解码的规则：[Flag][data]，flag 为 0 时表示 data 为正常数据，为 1 时表示 data 为错误信息。
+ * 编码和解码的规则：[Flag][data]，flag 为 0 时表示 data 为正常数据，为 1 时表示 data 为错误信息，
+ * 为 2 时表示 data 是要预编译的语句，为 3 时表示 data 是执行预编译语句的请求，格式见 encodeExecute，
+ * 为 4 时表示 data 是带类型的结果行，格式见 ResultRows，为 5 时表示 data 是批量执行的语句或它们的结果，格式见 encodeBatch。
+ * tagged 的 Encoder 在最前面多一个请求 id：[RequestId 4 字节][Flag][data]，用于可以流水线发送请求的二进制协议。
  * @author 小子松
  * @since 2023/8/3
  */
 public class Encoder {
 
+    private boolean tagged;
+
+    public Encoder() {
+        this(false);
+    }
+
+    public Encoder(boolean tagged) {
+        this.tagged = tagged;
+    }
+
+    public boolean isTagged() {
+        return tagged;
+    }
+
     public byte[] encode(Package pkg) {
+        if(tagged) {
+            return Bytes.concat(ByteBuffer.allocate(4).putInt(pkg.getRequestId()).array(), new byte[]{flag(pkg)}, payload(pkg));
+        }
+        return Bytes.concat(new byte[]{flag(pkg)}, payload(pkg));
+    }
+
+    /**
+     * 报文的 flag：有错误时为 1，否则为请求类型
+     */
+    public byte flag(Package pkg) {
+        return pkg.getErr() != null ? 1 : pkg.getType();
+    }
+
+    /**
+     * flag 之后的数据。二进制协议把 flag 和长度放在帧头里，数据单独写出，不需要拼接
+     */
+    public byte[] payload(Package pkg) {
         if(pkg.getErr() != null) {
             Exception err = pkg.getErr();
             String msg = "Intern server error!";
             if(err.getMessage() != null) {
                 msg = err.getMessage();  // 如果有错误信息，就用错误信息
             }
-            return Bytes.concat(new byte[]{1}, msg.getBytes());  // flag 为 1 表示错误，返回错误信息
-        } else {
-            return Bytes.concat(new byte[]{0}, pkg.getData());  // flag 为 0 表示正常数据，返回数据
+            return msg.getBytes();  // flag 为 1 表示错误，返回错误信息
         }
+        return pkg.getData();  // 正常数据，flag 为请求类型
     }
 
     public Package decode(byte[] data) throws Exception {
-        if(data.length < 1) {
+        int pos = tagged ? 4 : 0;
+        if(data.length < pos + 1) {
             throw Error.InvalidPkgDataException;
         }
-        if(data[0] == 0) {
-            return new Package(Arrays.copyOfRange(data, 1, data.length), null);
-        } else if(data[0] == 1) {
-            return new Package(null, new RuntimeException(new String(Arrays.copyOfRange(data, 1, data.length))));
+        int requestId = tagged ? ByteBuffer.wrap(data).getInt() : 0;
+        byte flag = data[pos];
+        if(flag == Package.STATEMENT || flag == Package.PREPARE || flag == Package.EXECUTE || flag == Package.ROWS || flag == Package.BATCH
+                || flag == Package.DEALLOCATE) {
+            return new Package(requestId, flag, Arrays.copyOfRange(data, pos + 1, data.length), null);
+        } else if(flag == 1) {
+            return new Package(requestId, Package.STATEMENT, null, new RuntimeException(new String(Arrays.copyOfRange(data, pos + 1, data.length))));
         } else {
             throw Error.InvalidPkgDataException;
         }
     }
+
+    /**
+     * 执行预编译语句的请求：[StatementId 4 字节][ParamCount 4 字节][ParamLength 4 字节][Param]...
+     */
+    public static byte[] encodeExecute(int statementId, String[] params) {
+        int size = 8;
+        byte[][] raws = new byte[params.length][];
+        for (int i = 0; i < params.length; i++) {
+            raws[i] = params[i].getBytes();
+            size += 4 + raws[i].length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(statementId).putInt(params.length);
+        for (byte[] raw : raws) {
+            buf.putInt(raw.length).put(raw);
+        }
+        return buf.array();
+    }
+
+    /**
+     * 批量执行的请求：[Count 4 字节][Length 4 字节][Statement]...
+     */
+    public static byte[] encodeBatch(byte[][] stats) {
+        int size = 4;
+        for (byte[] stat : stats) {
+            size += 4 + stat.length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(stats.length);
+        for (byte[] stat : stats) {
+            buf.putInt(stat.length).put(stat);
+        }
+        return buf.array();
+    }
+
+    public static byte[][] decodeBatch(byte[] data) throws Exception {
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            byte[][] stats = new byte[readCount(buf, 4)][];
+            for (int i = 0; i < stats.length; i++) {
+                stats[i] = new byte[readLength(buf)];
+                buf.get(stats[i]);
+            }
+            return stats;
+        } catch(RuntimeException e) {
+            throw Error.InvalidPkgDataException;
+        }
+    }
+
+    /**
+     * 批量执行的结果：[Count 4 字节]{[Flag 1 字节][Length 4 字节][data]}...，每条语句的 flag 和 data 与单独执行时相同。
+     * 遇到第一条出错的语句就停止，Count 可能小于请求中的语句数，之后的语句没有执行
+     */
+    public byte[] encodeBatchResult(List<Package> results) {
+        byte[][] payloads = new byte[results.size()][];
+        int size = 4;
+        for (int i = 0; i < payloads.length; i++) {
+            payloads[i] = payload(results.get(i));
+            size += 1 + 4 + payloads[i].length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(payloads.length);
+        for (int i = 0; i < payloads.length; i++) {
+            buf.put(flag(results.get(i))).putInt(payloads[i].length).put(payloads[i]);
+        }
+        return buf.array();
+    }
+
+    public static List<Package> decodeBatchResult(byte[] data) throws Exception {
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            int count = readCount(buf, 1 + 4);
+            List<Package> results = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte flag = buf.get();
+                byte[] raw = new byte[readLength(buf)];
+                buf.get(raw);
+                if(flag == 1) {
+                    results.add(new Package(null, new RuntimeException(new String(raw))));
+                } else {
+                    results.add(new Package(flag, raw, null));
+                }
+            }
+            return results;
+        } catch(RuntimeException e) {
+            throw Error.InvalidPkgDataException;
+        }
+    }
+
+    public static int decodeStatementId(byte[] data) throws Exception {
+        if(data.length < 8) {
+            throw Error.InvalidPkgDataException;
+        }
+        return ByteBuffer.wrap(data).getInt();
+    }
+
+    public static String[] decodeParams(byte[] data) throws Exception {
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(data, 4, data.length - 4);
+            String[] params = new String[readCount(buf, 4)];
+            for (int i = 0; i < params.length; i++) {
+                byte[] raw = new byte[readLength(buf)];
+                buf.get(raw);
+                params[i] = new String(raw);
+            }
+            return params;
+        } catch(RuntimeException e) {
+            throw Error.InvalidPkgDataException;
+        }
+    }
+
+    /**
+     * 读出条目数。每个条目至少占 minEntry 字节，数据不够时视为非法，而不是按对端给出的数目分配内存
+     */
+    private static int readCount(ByteBuffer buf, int minEntry) throws Exception {
+        int count = buf.getInt();
+        if(count < 0 || count > buf.remaining() / minEntry) {
+            throw Error.InvalidPkgDataException;
+        }
+        return count;
+    }
+
+    /**
+     * 读出一个条目的长度，长度不能超过剩余的数据
+     */
+    private static int readLength(ByteBuffer buf) throws Exception {
+        int length = buf.getInt();
+        if(length < 0 || length > buf.remaining()) {
+            throw Error.InvalidPkgDataException;
+        }
+        return length;
+    }
 }
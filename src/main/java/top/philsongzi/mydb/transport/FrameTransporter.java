@@ -0,0 +1,108 @@
+package top.philsongzi.mydb.transport;
+
+import top.philsongzi.mydb.common.Error;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 二进制协议：每个报文是一个帧 [Length 4 字节][Flag 1 字节][data]，Length 是 Flag 和 data 的总长度。
+ * 帧头写在一个复用的直接内存缓冲区里，和数据一起用一次 gathering write 写出，不做十六进制转换，也不拼接字节数组。
+ * 连接建立后客户端先发送握手 [MAGIC 4 字节][Version 1 字节]，服务端原样回复后双方改用帧。
+ * 版本 1 的帧体是 Encoder 的 [Flag][data]，一问一答；版本 2 的帧体是 tagged Encoder 的 [RequestId][Flag][data]，
+ * 客户端可以连续发送多个请求，服务端按顺序执行，结果带回请求 id。
+ * 服务端看到的第一个字节不是 MAGIC 时，就按十六进制文本行的旧协议处理这个连接。
+ *
+ * @author 小子松
+ * @since 2026/10/19
+ */
+public class FrameTransporter implements Transport {
+
+    public static final byte[] MAGIC = {'M', 'Y', 'D', 'B'};
+    public static final byte VERSION_PLAIN = 1;
+    public static final byte VERSION_TAGGED = 2;
+    public static final int HANDSHAKE_LENGTH = MAGIC.length + 1;
+    public static final int HEADER_LENGTH = 4;
+    // 单个帧的上限，超过的帧视为非法数据
+    public static final int MAX_FRAME_LENGTH = 1 << 28;
+
+    private SocketChannel channel;
+    private byte version;
+    private ByteBuffer header;
+    // 读帧头用的缓冲区和写分开，流水线的客户端在不同线程里收发
+    private ByteBuffer readHeader;
+
+    public FrameTransporter(SocketChannel channel) throws IOException {
+        this(channel, VERSION_PLAIN);
+    }
+
+    public FrameTransporter(SocketChannel channel, byte version) throws IOException {
+        this.channel = channel;
+        this.version = version;
+        this.header = ByteBuffer.allocateDirect(HANDSHAKE_LENGTH);
+        this.readHeader = ByteBuffer.allocateDirect(HANDSHAKE_LENGTH);
+        handshake();
+    }
+
+    public byte getVersion() {
+        return version;
+    }
+
+    private void handshake() throws IOException {
+        header.clear();
+        header.put(MAGIC).put(version).flip();
+        while(header.hasRemaining()) {
+            channel.write(header);
+        }
+        readHeader.clear();
+        readFully(readHeader);
+        readHeader.flip();
+        for (byte b : MAGIC) {
+            if(readHeader.get() != b) {
+                throw new IOException("Protocol negotiation failed");
+            }
+        }
+        if(readHeader.get() != version) {
+            throw new IOException("Protocol negotiation failed");
+        }
+    }
+
+    @Override
+    public void send(byte[] data) throws Exception {
+        header.clear();
+        header.putInt(data.length).flip();
+        ByteBuffer[] frame = {header, ByteBuffer.wrap(data)};
+        while(frame[1].hasRemaining()) {
+            channel.write(frame);
+        }
+    }
+
+    @Override
+    public byte[] receive() throws Exception {
+        readHeader.clear();
+        readHeader.limit(HEADER_LENGTH);
+        readFully(readHeader);
+        int length = readHeader.getInt(0);
+        if(length < 1 || length > MAX_FRAME_LENGTH) {
+            throw Error.InvalidPkgDataException;
+        }
+        ByteBuffer data = ByteBuffer.allocate(length);
+        readFully(data);
+        return data.array();
+    }
+
+    private void readFully(ByteBuffer buf) throws IOException {
+        while(buf.hasRemaining()) {
+            if(channel.read(buf) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -7,15 +7,47 @@ package top.philsongzi.mydb.transport;
  */
 public class Package {
 
-    // 数据、错误类型
+    // 请求的类型：普通语句、预编译、执行预编译语句。与 Encoder 中的 flag 一致，1 留给错误
+    public static final byte STATEMENT = 0;
+    public static final byte PREPARE = 2;
+    public static final byte EXECUTE = 3;
+    // 二进制协议下 select 的结果：带类型的行，格式见 ResultRows
+    public static final byte ROWS = 4;
+    // 批量执行多条语句，请求和结果的格式见 Encoder.encodeBatch 和 encodeBatchResult
+    public static final byte BATCH = 5;
+    // 释放预编译语句，数据和没有参数的 EXECUTE 相同
+    public static final byte DEALLOCATE = 6;
+
+    // 类型、数据、错误类型
+    byte type;
     byte[] data;
     Exception err;
+    // 请求 id，只在带 id 的二进制协议中编码，结果带回请求的 id，客户端据此匹配流水线上的请求
+    int requestId;
 
     public Package(byte[] data, Exception err) {
+        this(STATEMENT, data, err);
+    }
+
+    public Package(byte type, byte[] data, Exception err) {
+        this(0, type, data, err);
+    }
+
+    public Package(int requestId, byte type, byte[] data, Exception err) {
+        this.requestId = requestId;
+        this.type = type;
         this.data = data;
         this.err = err;
     }
 
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
     public byte[] getData() {
         return data;
     }
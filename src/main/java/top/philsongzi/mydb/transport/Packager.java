@@ -7,10 +7,10 @@ package top.philsongzi.mydb.transport;
  */
 public class Packager {
 
-    private Transporter transpoter;
+    private Transport transpoter;
     private Encoder encoder;
 
-    public Packager(Transporter transpoter, Encoder encoder) {
+    public Packager(Transport transpoter, Encoder encoder) {
         this.transpoter = transpoter;
         this.encoder = encoder;
     }
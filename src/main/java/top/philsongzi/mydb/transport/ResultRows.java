@@ -0,0 +1,88 @@
+package top.philsongzi.mydb.transport;
+
+import top.philsongzi.mydb.common.Error;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 带类型的结果行，二进制协议下 select 和 fetch 的结果（Package.ROWS）。
+ * 格式：[ColumnCount 2 字节]{[Type 1 字节][NameLength 2 字节][Name]}...[RowCount 4 字节][Row]...
+ * 行按列依次存放：int32 是 4 字节，int64 是 8 字节，string 是 [Length 4 字节][字节]。
+ * 类型编号与服务端的 ColumnVector 一致。
+ *
+ * @author 小子松
+ * @since 2026/10/19
+ */
+public class ResultRows {
+
+    public static final byte INT32 = 0;
+    public static final byte INT64 = 1;
+    public static final byte STRING = 2;
+
+    public String[] names;
+    public byte[] types;
+    public List<Object[]> rows;
+
+    public static ResultRows decode(byte[] data) throws Exception {
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            ResultRows res = new ResultRows();
+            int columns = buf.getShort();
+            res.names = new String[columns];
+            res.types = new byte[columns];
+            for (int i = 0; i < columns; i++) {
+                res.types[i] = buf.get();
+                res.names[i] = readString(buf, buf.getShort());
+            }
+            int count = buf.getInt();
+            res.rows = new ArrayList<>(count);
+            for (int r = 0; r < count; r++) {
+                Object[] row = new Object[columns];
+                for (int i = 0; i < columns; i++) {
+                    switch(res.types[i]) {
+                        case INT32:
+                            row[i] = buf.getInt();
+                            break;
+                        case INT64:
+                            row[i] = buf.getLong();
+                            break;
+                        case STRING:
+                            row[i] = readString(buf, buf.getInt());
+                            break;
+                        default:
+                            throw Error.InvalidPkgDataException;
+                    }
+                }
+                res.rows.add(row);
+            }
+            return res;
+        } catch(BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw Error.InvalidPkgDataException;
+        }
+    }
+
+    private static String readString(ByteBuffer buf, int length) {
+        String str = new String(buf.array(), buf.position(), length);
+        buf.position(buf.position() + length);
+        return str;
+    }
+
+    /**
+     * 格式化成和文本协议相同的结果，每行一个 [v1, v2, ...]
+     */
+    public String format() {
+        StringBuilder sb = new StringBuilder();
+        for (Object[] row : rows) {
+            sb.append("[");
+            for (int i = 0; i < row.length; i++) {
+                sb.append(row[i]);
+                sb.append(i == row.length - 1 ? "]" : ", ");
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+}
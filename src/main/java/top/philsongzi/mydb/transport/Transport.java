@@ -0,0 +1,17 @@
+package top.philsongzi.mydb.transport;
+
+/**
+ * 传输层：把 Encoder 编码后的 byte[] 发送出去、接收回来。
+ * Transporter 是十六进制文本行，FrameTransporter 是带长度前缀的二进制帧，由连接建立时的握手决定。
+ *
+ * @author 小子松
+ * @since 2026/10/19
+ */
+public interface Transport {
+
+    void send(byte[] data) throws Exception;
+
+    byte[] receive() throws Exception;
+
+    void close() throws Exception;
+}
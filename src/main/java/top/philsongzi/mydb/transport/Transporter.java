@@ -8,10 +8,11 @@ import java.net.Socket;
 
 /**
  * Transporter 类将编码后的数据通过 Socket 进行传输，这里封装了 Socket 的读写操作。
+ * 每个报文是一行十六进制文本，是最早的协议，没有握手的客户端都按这种协议处理。
  * @author 小子松
  * @since 2023/8/3
  */
-public class Transporter {
+public class Transporter implements Transport {
 
     private Socket socket;
     private BufferedReader reader;
@@ -24,6 +25,7 @@ public class Transporter {
         this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
     }
 
+    @Override
     public void send(byte[] data) throws Exception {
         // 调用转换方法，将 byte[] 数组转换成十六进制字符串
         String raw = hexEncode(data);
@@ -31,6 +33,7 @@ public class Transporter {
         writer.flush();
     }
 
+    @Override
     public byte[] receive() throws Exception {
         // 使用 BufferedReader 和 Writer 来直接按行读写
         String line = reader.readLine();
@@ -40,6 +43,7 @@ public class Transporter {
         return hexDecode(line);
     }
 
+    @Override
     public void close() throws IOException {
         writer.close();
         reader.close();
@@ -3,7 +3,11 @@ package top.philsongzi.mydb.backend.dm;
 import org.junit.Test;
 import top.philsongzi.mydb.backend.common.SubArray;
 import top.philsongzi.mydb.backend.dm.dataItem.DataItem;
+import top.philsongzi.mydb.backend.dm.logger.LoggerImpl;
+import top.philsongzi.mydb.backend.dm.page.Page;
+import top.philsongzi.mydb.backend.dm.page.PageX;
 import top.philsongzi.mydb.backend.dm.pageCache.PageCache;
+import top.philsongzi.mydb.backend.dm.pageIndex.FreeSpaceMap;
 import top.philsongzi.mydb.backend.tm.MockTransactionManager;
 import top.philsongzi.mydb.backend.tm.TransactionManager;
 import top.philsongzi.mydb.backend.utils.Panic;
@@ -13,8 +17,10 @@ import java.io.File;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -113,6 +119,7 @@ public class DataManagerTest {
 
         new File("/tmp/TESTDMSingle.db").delete();
         new File("/tmp/TESTDMSingle.log").delete();
+        new File("/tmp/TESTDMSingle.fsm").delete();
     }
 
     @Test
@@ -133,6 +140,7 @@ public class DataManagerTest {
 
         new File("/tmp/TestDMMulti.db").delete();
         new File("/tmp/TestDMMulti.log").delete();
+        new File("/tmp/TestDMMulti.fsm").delete();
     }
 
     @Test
@@ -159,6 +167,316 @@ public class DataManagerTest {
         new File("/tmp/TestRecoverySimple.db").delete();
         new File("/tmp/TestRecoverySimple.log").delete();
         new File("/tmp/TestRecoverySimple.xid").delete();
+        new File("/tmp/TestRecoverySimple.fsm").delete();
 
     }
+
+    @Test
+    public void testInsertBatch() throws Exception {
+        String path = "/tmp/TestInsertBatch";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, PageCache.PAGE_SIZE*10, tm0);
+
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 1000; i ++) {
+            datas.add(("batch row " + i).getBytes());
+        }
+        long committed = tm0.begin();
+        long[] uids = dm0.insertBatch(committed, datas);
+        tm0.commit(committed);
+
+        // 1000 条小记录应当被装进少数几页
+        Set<Long> pages = new HashSet<>();
+        for(int i = 0; i < uids.length; i ++) {
+            pages.add(uids[i] >>> 32);
+            DataItem di = dm0.read(uids[i]);
+            SubArray sa = di.data();
+            assert Arrays.equals(datas.get(i), Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+            di.release();
+        }
+        assert pages.size() <= 3;
+
+        long active = tm0.begin();
+        long[] lost = dm0.insertBatch(active, datas.subList(0, 100));
+
+        // 不关闭 dm0，模拟崩溃后重新打开：已提交的批次被重做，未提交的批次整体被撤销
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*10, tm0);
+        for(int i = 0; i < uids.length; i ++) {
+            DataItem di = dm1.read(uids[i]);
+            assert di != null;
+            di.release();
+        }
+        for(long uid : lost) {
+            assert dm1.read(uid) == null;
+        }
+        dm1.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testReopenWithFreeSpaceMap() throws Exception {
+        String path = "/tmp/TestReopenWithFSM";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, PageCache.PAGE_SIZE*10, tm0);
+
+        // 每页放下三条 2000 字节的记录后还剩一些空间
+        long xid = tm0.begin();
+        List<Long> uids = new ArrayList<>();
+        for(int i = 0; i < 30; i ++) {
+            uids.add(dm0.insert(xid, new byte[2000]));
+        }
+        tm0.commit(xid);
+        dm0.close();
+        assert new File(path + FreeSpaceMap.FSM_SUFFIX).exists();
+
+        // 正常关闭后重新打开，空闲空间从 FSM 恢复，小记录写进已有的页
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*10, tm0);
+        int pageNumber = ((DataManagerImpl)dm1).pageCache.getPageNumber();
+        xid = tm0.begin();
+        long uid = dm1.insert(xid, new byte[100]);
+        tm0.commit(xid);
+        assert (uid >>> 32) <= pageNumber;
+        assert ((DataManagerImpl)dm1).pageCache.getPageNumber() == pageNumber;
+        for(long u : uids) {
+            DataItem di = dm1.read(u);
+            assert di != null;
+            di.release();
+        }
+        dm1.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testCheckpointFreeSpaceMap() throws Exception {
+        String path = "/tmp/TestCheckpointFSM";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, PageCache.PAGE_SIZE*10, tm0);
+
+        long xid = tm0.begin();
+        List<Long> uids = new ArrayList<>();
+        for(int i = 0; i < 30; i ++) {
+            uids.add(dm0.insert(xid, new byte[2000]));
+        }
+        tm0.commit(xid);
+        ((DataManagerImpl)dm0).checkpoint();
+        assert new File(path + FreeSpaceMap.FSM_SUFFIX).exists();
+        int pageNumber = ((DataManagerImpl)dm0).pageCache.getPageNumber();
+
+        // 检查点之后只改动一页，不关闭 dm0 模拟崩溃，重新打开时只需要扫描这一页
+        xid = tm0.begin();
+        uids.add(dm0.insert(xid, new byte[1000]));
+        tm0.commit(xid);
+
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*10, tm0);
+        assert ((DataManagerImpl)dm1).pageCache.getPageNumber() == pageNumber;
+        assert ((DataManagerImpl)dm1).scannedPages == 1;
+        // 扫描过的页的空闲空间是准确的，新的记录能放进去
+        xid = tm0.begin();
+        for(int i = 0; i < 10; i ++) {
+            uids.add(dm1.insert(xid, new byte[500]));
+        }
+        tm0.commit(xid);
+        for(long u : uids) {
+            DataItem di = dm1.read(u);
+            assert di != null;
+            di.release();
+        }
+        dm1.close();
+
+        // 正常关闭后不需要扫描任何页
+        DataManager dm2 = DataManager.open(path, PageCache.PAGE_SIZE*10, tm0);
+        assert ((DataManagerImpl)dm2).scannedPages == 0;
+        dm2.close();
+        tm0.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    private byte[] record(int i) {
+        byte[] data = new byte[200];
+        Arrays.fill(data, (byte) i);
+        return data;
+    }
+
+    private void assertRecord(DataManager dm, long uid, int i) throws Exception {
+        DataItem di = dm.read(uid);
+        assert di != null;
+        SubArray sa = di.data();
+        assert Arrays.equals(record(i), Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+        di.release();
+    }
+
+    @Test
+    public void testSlottedPage() throws Exception {
+        String path = "/tmp/TestSlottedPage";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, PageCache.PAGE_SIZE*10, tm0);
+
+        long xid = tm0.begin();
+        long[] uids = new long[30];
+        for(int i = 0; i < uids.length; i ++) {
+            uids[i] = dm0.insert(xid, record(i));
+        }
+        // 新页是槽页，uid 的低位是槽号
+        int pgno = (int)(uids[0] >>> 32);
+        for(int i = 0; i < uids.length; i ++) {
+            assert (uids[i] >>> 32) == pgno;
+            assert (uids[i] & 0xFFFF) == i;
+        }
+
+        // 释放偶数号的记录，槽被复用，之后的插入触发页内整理
+        for(int i = 0; i < uids.length; i += 2) {
+            dm0.free(uids[i]);
+            assert dm0.read(uids[i]) == null;
+        }
+        long reused = dm0.insert(xid, record(100));
+        assert reused == uids[0];
+        Page pg = ((DataManagerImpl)dm0).pageCache.getPage(pgno);
+        assert PageX.getGarbage(pg) == 0;
+        pg.release();
+        for(int i = 1; i < uids.length; i += 2) {
+            assertRecord(dm0, uids[i], i);
+        }
+        assertRecord(dm0, reused, 100);
+        tm0.commit(xid);
+
+        // 未提交事务复用的槽，崩溃恢复后被撤销
+        long active = tm0.begin();
+        long lost = dm0.insert(active, record(101));
+        assert lost == uids[2];
+
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*10, tm0);
+        for(int i = 1; i < uids.length; i += 2) {
+            assertRecord(dm1, uids[i], i);
+        }
+        assertRecord(dm1, reused, 100);
+        assert dm1.read(lost) == null;
+        for(int i = 4; i < uids.length; i += 2) {
+            assert dm1.read(uids[i]) == null;
+        }
+        dm1.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testDeltaLog() throws Exception {
+        String path = "/tmp/TestDeltaLog";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, PageCache.PAGE_SIZE*10, tm0);
+
+        long xid = tm0.begin();
+        long committed = dm0.insert(xid, record(1));
+        long rolledBack = dm0.insert(xid, record(2));
+        tm0.commit(xid);
+
+        // 只改了 8 个字节，日志只记录这 8 个字节的前后像
+        byte[] old = DataItem.wrapDataItemRaw(record(2));
+        byte[] changed = Arrays.copyOf(old, old.length);
+        Arrays.fill(changed, 20, 28, (byte) 99);
+        changed[100] = 98;
+        byte[] log = Recover.deltaLog(xid, rolledBack, old, changed, 0);
+        assert log.length == 1 + 8 + 8 + 2 + (4 + 16) + (4 + 2);
+        // 改动太多时不如完整的前后像
+        Arrays.fill(changed, (byte) 97);
+        assert Recover.deltaLog(xid, rolledBack, old, changed, 0) == null;
+
+        long done = tm0.begin();
+        modify(dm0, done, committed, 20, 8);
+        tm0.commit(done);
+        long active = tm0.begin();
+        modify(dm0, active, rolledBack, 20, 8);
+        modify(dm0, active, rolledBack, 150, 4);
+
+        // 崩溃后重做已提交事务的差量，撤销未提交事务的差量
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*10, tm0);
+        byte[] expected = record(1);
+        Arrays.fill(expected, 20 - 3, 28 - 3, (byte) 99);
+        DataItem di = dm1.read(committed);
+        SubArray sa = di.data();
+        assert Arrays.equals(expected, Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+        di.release();
+        assertRecord(dm1, rolledBack, 2);
+        dm1.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    private long forces(DataManager dm) {
+        return ((LoggerImpl)((DataManagerImpl)dm).logger).forceCount();
+    }
+
+    @Test
+    public void testBufferedLog() throws Exception {
+        String path = "/tmp/TestBufferedLog";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, PageCache.PAGE_SIZE*10, tm0);
+
+        long xid = tm0.begin();
+        long first = dm0.insert(xid, record(0));
+        tm0.commit(xid);
+        // 持有页面上的一条记录，页面不会被逐出写回
+        DataItem pinned = dm0.read(first);
+
+        // 异步事务的插入日志只写不刷，提交也不刷
+        long before = forces(dm0);
+        long async = tm0.begin();
+        for(int i = 1; i <= 30; i ++) {
+            long uid = dm0.insert(async, record(i));
+            assert (uid >>> 32) == (first >>> 32);
+        }
+        tm0.commitAsync(async);
+        assert forces(dm0) == before;
+        assert tm0.isCommitted(async);
+
+        // 后台线程先刷一次日志，再把提交状态刷盘
+        Thread.sleep(1000);
+        assert forces(dm0) == before + 1;
+        TransactionManager reopened = TransactionManager.open(path);
+        assert reopened.isCommitted(async);
+        reopened.close();
+
+        // 同步提交之前刷日志
+        long sync = tm0.begin();
+        dm0.insert(sync, record(31));
+        before = forces(dm0);
+        tm0.commit(sync);
+        assert forces(dm0) == before + 1;
+
+        pinned.release();
+        dm0.close();
+        tm0.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    // 把 dataitem 中 [from, from+length) 的字节改成 99，from 相对于 dataitem 开头
+    private void modify(DataManager dm, long xid, long uid, int from, int length) throws Exception {
+        DataItem di = dm.read(uid);
+        di.before();
+        SubArray raw = di.getRaw();
+        Arrays.fill(raw.raw, raw.start + from, raw.start + from + length, (byte) 99);
+        di.after(xid);
+        di.release();
+    }
 }
@@ -55,6 +55,16 @@ public class MockDataManager implements DataManager {
         }
     }
 
+    @Override
+    public void free(long uid) throws Exception {
+        lock.lock();
+        try {
+            cache.remove(uid);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public void close() {}
 }
@@ -3,6 +3,8 @@ package top.philsongzi.mydb.backend.dm.logger;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
 
 /**
  * @author 小子松
@@ -49,4 +51,49 @@ public class LoggerTest {
 
         assert new File("/tmp/logger_test.log").delete();
     }
+
+    @Test
+    public void testHeaderAheadOfData() throws Exception {
+        Logger lg = Logger.create("/tmp/logger_ahead_test");
+        lg.log("aaa".getBytes());
+        lg.log("bbb".getBytes());
+        lg.flush();
+        byte[] header = readHeader("/tmp/logger_ahead_test.log");
+
+        // 没有刷盘的日志不会改变磁盘上的 XChecksum
+        lg.log("ccc".getBytes());
+        assert Arrays.equals(header, readHeader("/tmp/logger_ahead_test.log"));
+        lg.close();
+
+        // 模拟崩溃时 XChecksum 先于最后一条日志落盘：去掉最后一条日志，XChecksum 仍然覆盖它
+        try (RandomAccessFile raf = new RandomAccessFile("/tmp/logger_ahead_test.log", "rw")) {
+            raf.setLength(raf.length() - 8 - 3);
+        }
+        lg = Logger.open("/tmp/logger_ahead_test");
+        lg.rewind();
+        assert "aaa".equals(new String(lg.next()));
+        assert "bbb".equals(new String(lg.next()));
+        assert lg.next() == null;
+        lg.log("ddd".getBytes());
+        lg.close();
+
+        // 打开时修正过 XChecksum，之后的日志照常校验
+        lg = Logger.open("/tmp/logger_ahead_test");
+        lg.rewind();
+        assert "aaa".equals(new String(lg.next()));
+        assert "bbb".equals(new String(lg.next()));
+        assert "ddd".equals(new String(lg.next()));
+        assert lg.next() == null;
+        lg.close();
+
+        assert new File("/tmp/logger_ahead_test.log").delete();
+    }
+
+    private static byte[] readHeader(String path) throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(path, "r")) {
+            byte[] header = new byte[4];
+            raf.readFully(header);
+            return header;
+        }
+    }
 }
@@ -60,5 +60,10 @@ public class MockPageCache implements PageCache {
     @Override
     public void flushPage(Page pg) {}
 
+    @Override
+    public int pinCount(int pgno) {
+        return 0;
+    }
+
 }
 
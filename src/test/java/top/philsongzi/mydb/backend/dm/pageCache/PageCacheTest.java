@@ -47,6 +47,168 @@ public class PageCacheTest {
         assert new File("tmp/pcacher_simple_test0.db").delete();
     }
 
+    @Test
+    public void testFrameArena() {
+        FrameArena arena = new FrameArena(PageCache.PAGE_SIZE * 2);
+        byte[] buf = new byte[PageCache.PAGE_SIZE];
+        for (int pgno = 1; pgno <= 3; pgno++) {
+            Arrays.fill(buf, (byte)pgno);
+            arena.write(pgno, buf);
+        }
+        // 只有两个页帧，第 1 页被淘汰
+        assert !arena.read(1, buf);
+        assert arena.read(2, buf) && buf[0] == 2 && buf[PageCache.PAGE_SIZE-1] == 2;
+        assert arena.read(3, buf) && buf[0] == 3;
+
+        arena.truncate(2);
+        assert !arena.read(3, buf);
+        assert arena.read(2, buf);
+    }
+
+    @Test
+    public void testOffHeapPageCache() throws Exception {
+        PageCache pc = PageCache.create("tmp/pcacher_offheap_test", PageCache.PAGE_SIZE * 50);
+        for(int i = 0 ; i < 100; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            pc.newPage(tmp);
+        }
+        pc.close();
+
+        // 页帧池比页面数少，反复读写时会不断淘汰
+        pc = PageCache.open("tmp/pcacher_offheap_test", PageCache.PAGE_SIZE * 50, PageCache.PAGE_SIZE * 32);
+        for (int round = 0; round < 3; round++) {
+            for(int i = 1; i <= 100; i ++) {
+                Page pg = pc.getPage(i);
+                assert pg.getData()[0] == (byte)(i - 1 + round);
+                pg.getData()[0] ++;
+                pg.setDirty(true);
+                pg.release();
+            }
+        }
+        pc.truncateByPgno(50);
+        pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        Page pg = pc.getPage(51);
+        assert pg.getData()[0] == 0;
+        pg.release();
+        pc.close();
+
+        pc = PageCache.open("tmp/pcacher_offheap_test", PageCache.PAGE_SIZE * 50);
+        for(int i = 1; i <= 50; i ++) {
+            pg = pc.getPage(i);
+            assert pg.getData()[0] == (byte)(i + 2);
+            pg.release();
+        }
+        pc.close();
+
+        assert new File("tmp/pcacher_offheap_test.db").delete();
+    }
+
+    @Test
+    public void testConcurrentMiss() throws Exception {
+        PageCache pc = PageCache.create("tmp/pcacher_miss_test", PageCache.PAGE_SIZE * 50);
+        for(int i = 1 ; i <= 400; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            Arrays.fill(tmp, (byte)i);
+            pc.newPage(tmp);
+        }
+        pc.close();
+
+        PageCache opened = PageCache.open("tmp/pcacher_miss_test", PageCache.PAGE_SIZE * 50);
+        boolean[] failed = new boolean[1];
+        CountDownLatch cdl = new CountDownLatch(8);
+        for (int t = 0; t < 8; t++) {
+            new Thread(() -> {
+                Random r = new Random();
+                for (int i = 0; i < 2000; i++) {
+                    int pgno = r.nextInt(400) + 1;
+                    try {
+                        Page pg = opened.getPage(pgno);
+                        byte[] data = pg.getData();
+                        if(data[0] != (byte)pgno || data[PageCache.PAGE_SIZE-1] != (byte)pgno) {
+                            failed[0] = true;
+                        }
+                        pg.release();
+                    } catch (Exception e) {
+                        failed[0] = true;
+                    }
+                }
+                cdl.countDown();
+            }).start();
+        }
+        cdl.await();
+        assert !failed[0];
+        opened.close();
+
+        assert new File("tmp/pcacher_miss_test.db").delete();
+    }
+
+    @Test
+    public void testFrameReuse() throws Exception {
+        PageCache pc = PageCache.create("tmp/pcacher_reuse_test", PageCache.PAGE_SIZE * 50);
+        for(int i = 1 ; i <= 3; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            Arrays.fill(tmp, (byte)i);
+            pc.newPage(tmp);
+        }
+        pc.close();
+
+        // 被逐出页面的数组在下一次缺页时复用，内容是新页面的
+        PageCache opened = PageCache.open("tmp/pcacher_reuse_test", PageCache.PAGE_SIZE * 50);
+        Page pg = opened.getPage(1);
+        byte[] frame = pg.getData();
+        pg.release();
+        pg = opened.getPage(2);
+        assert pg.getData() == frame;
+        assert frame[0] == 2 && frame[PageCache.PAGE_SIZE-1] == 2;
+        // 同时被引用的页面各用各的数组
+        Page other = opened.getPage(3);
+        assert other.getData() != frame && other.getData()[0] == 3;
+        other.release();
+        pg.release();
+        opened.close();
+
+        assert new File("tmp/pcacher_reuse_test.db").delete();
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        PageCache pc = PageCache.create("tmp/pcacher_prefetch_test", PageCache.PAGE_SIZE * 50);
+        int[] pgnos = new int[100];
+        for(int i = 0 ; i < 100; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            pgnos[i] = pc.newPage(tmp);
+        }
+        pc.close();
+
+        PageCacheImpl opened = PageCache.open("tmp/pcacher_prefetch_test", PageCache.PAGE_SIZE * 50, PageCache.PAGE_SIZE * 128);
+        opened.prefetch(pgnos);
+        for (int i = 0; i < 500 && !opened.arena.contains(100); i++) {
+            Thread.sleep(10);
+        }
+        // 预读完成后所有页都在页帧池中
+        for (int pgno : pgnos) {
+            assert opened.arena.contains(pgno);
+        }
+        for (int pgno : pgnos) {
+            Page pg = opened.getPage(pgno);
+            assert pg.getData()[0] == (byte)(pgno - 1);
+            pg.release();
+        }
+        opened.close();
+
+        // 不开启页帧池时只预热操作系统的页缓存，不影响读取结果
+        opened = PageCache.open("tmp/pcacher_prefetch_test", PageCache.PAGE_SIZE * 50);
+        opened.prefetch(pgnos);
+        Page pg = opened.getPage(42);
+        assert pg.getData()[0] == 41;
+        pg.release();
+        opened.close();
+
+        assert new File("tmp/pcacher_prefetch_test.db").delete();
+    }
+
     private PageCache pc1;
     private CountDownLatch cdl1;
     private AtomicInteger noPages1;
@@ -3,6 +3,12 @@ package top.philsongzi.mydb.backend.dm.pageIndex;
 import org.junit.Test;
 import top.philsongzi.mydb.backend.dm.pageCache.PageCache;
 
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
 /**
  * @author 小子松
  * @since 2023/10/17
@@ -26,4 +32,82 @@ public class PageIndexTest {
             }
         }
     }
+
+    @Test
+    public void testFreeSpaceMap() throws Exception {
+        String path = "/tmp/TestFreeSpaceMap";
+        PageIndex pIndex = new PageIndex();
+        for(int pgno = 2; pgno <= 1000; pgno ++) {
+            pIndex.add(pgno, (pgno * 37) % PageCache.PAGE_SIZE);
+        }
+        // 正被插入的页不在索引中，区间未知
+        PageInfo taken = pIndex.select(PageCache.PAGE_SIZE - 100);
+        assert pIndex.dump(1000)[taken.pgno-1] == FreeSpaceMap.UNKNOWN;
+        pIndex.release(taken.pgno, taken.freeSpace);
+        FreeSpaceMap.save(path, pIndex, 1000, 1234);
+
+        byte[] classes = new byte[1200];
+        Arrays.fill(classes, FreeSpaceMap.UNKNOWN);
+        assert FreeSpaceMap.load(path, classes) == 1234;
+        assert Arrays.equals(pIndex.dump(1000), Arrays.copyOf(classes, 1000));
+        // FSM 之后新增的页保持原值
+        assert classes[1000] == FreeSpaceMap.UNKNOWN && classes[1199] == FreeSpaceMap.UNKNOWN;
+
+        // 恢复截掉了末尾的页，多出的部分忽略
+        byte[] fewer = new byte[999];
+        assert FreeSpaceMap.load(path, fewer) == 1234;
+        assert Arrays.equals(Arrays.copyOf(classes, 999), fewer);
+
+        // 内容损坏时校验失败
+        try(RandomAccessFile f = new RandomAccessFile(path + FreeSpaceMap.FSM_SUFFIX, "rw")) {
+            f.seek(500);
+            int b = f.read();
+            f.seek(500);
+            f.write(b + 1);
+        }
+        assert FreeSpaceMap.load(path, new byte[1000]) == -1;
+
+        FreeSpaceMap.remove(path);
+        assert !new File(path + FreeSpaceMap.FSM_SUFFIX).exists();
+        assert FreeSpaceMap.load(path, new byte[1000]) == -1;
+    }
+
+    @Test
+    public void testConcurrentSelect() throws Exception {
+        PageIndex pIndex = new PageIndex();
+        int pages = 64;
+        for(int pgno = 1; pgno <= pages; pgno ++) {
+            pIndex.add(pgno, PageCache.PAGE_SIZE - 1);
+        }
+        // 每页记录当前持有它的线程数，同一页任何时刻最多只能被一个线程拿到
+        AtomicIntegerArray holders = new AtomicIntegerArray(pages + 1);
+        boolean[] failed = new boolean[1];
+        int workers = 16;
+        CountDownLatch cdl = new CountDownLatch(workers);
+        for(int w = 0; w < workers; w ++) {
+            new Thread(() -> {
+                for(int i = 0; i < 20000; i ++) {
+                    PageInfo pi = pIndex.select(100);
+                    if(pi == null) {
+                        continue;
+                    }
+                    if(holders.incrementAndGet(pi.pgno) != 1) {
+                        failed[0] = true;
+                    }
+                    holders.decrementAndGet(pi.pgno);
+                    pIndex.release(pi.pgno, pi.freeSpace);
+                }
+                cdl.countDown();
+            }).start();
+        }
+        cdl.await();
+        assert !failed[0];
+
+        // 所有页都回到了索引中
+        int count = 0;
+        while(pIndex.select(100) != null) {
+            count ++;
+        }
+        assert count == pages;
+    }
 }
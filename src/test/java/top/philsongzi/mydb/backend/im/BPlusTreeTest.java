@@ -7,7 +7,11 @@ import top.philsongzi.mydb.backend.tm.MockTransactionManager;
 import top.philsongzi.mydb.backend.tm.TransactionManager;
 
 import java.io.File;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author 小子松
@@ -36,4 +40,120 @@ public class BPlusTreeTest {
         assert new File("./tmp/TestTreeSingle.db").delete();
         assert new File("./tmp/TestTreeSingle.log").delete();
     }
+
+    @Test
+    public void testBuild() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("./tmp/TestTreeBuild", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+        assert tree.isEmpty();
+
+        // 偶数 key 自底向上建树
+        int lim = 10000;
+        long[] keys = new long[lim];
+        long[] uids = new long[lim];
+        for(int i = 0; i < lim; i ++) {
+            keys[i] = i * 2;
+            uids[i] = i * 2 + 1;
+        }
+        assert tree.buildIfEmpty(keys, uids, lim);
+        assert !tree.isEmpty();
+        assert !tree.buildIfEmpty(keys, uids, lim);
+
+        // 之后的普通插入仍然正确（会引起分裂）
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i * 2 + 1, i * 2 + 2);
+        }
+        for(int i = 0; i < lim * 2; i ++) {
+            List<Long> res = tree.search(i);
+            assert res.size() == 1;
+            assert res.get(0) == i + 1;
+        }
+        assert tree.searchRange(100, 199).size() == 100;
+
+        assert new File("./tmp/TestTreeBuild.db").delete();
+        assert new File("./tmp/TestTreeBuild.log").delete();
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("./tmp/TestTreeRemove", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        // 每个 key 两个 uid，删除其中奇数的一半，跨越多个叶子
+        int lim = 5000;
+        Set<Long> removed = new HashSet<>();
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i, i * 2);
+            tree.insert(i, i * 2 + 1);
+            removed.add((long)(i * 2 + 1));
+        }
+        assert tree.remove(removed) == lim;
+        for(int i = 0; i < lim; i ++) {
+            List<Long> uids = tree.search(i);
+            assert uids.size() == 1;
+            assert uids.get(0) == i * 2;
+        }
+        assert tree.remove(removed) == 0;
+
+        // 删除之后的插入仍然正确
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i, i * 2 + 1);
+        }
+        assert tree.searchRange(0, lim).size() == lim * 2;
+
+        assert new File("./tmp/TestTreeRemove.db").delete();
+        assert new File("./tmp/TestTreeRemove.log").delete();
+    }
+
+    @Test
+    public void testBuildWithConcurrentInsert() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("./tmp/TestTreeBuildRace", PageCache.PAGE_SIZE*64, tm);
+
+        // 建树和普通插入同时进行：不论谁先拿到树，两边的 key 都不能丢
+        for(int round = 0; round < 20; round ++) {
+            BPlusTree tree = BPlusTree.load(BPlusTree.create(dm), dm);
+            int lim = 2000;
+            long[] keys = new long[lim];
+            long[] uids = new long[lim];
+            for(int i = 0; i < lim; i ++) {
+                keys[i] = i * 2;
+                uids[i] = i * 2;
+            }
+            CountDownLatch start = new CountDownLatch(1);
+            AtomicReference<Exception> err = new AtomicReference<>();
+            Thread inserter = new Thread(() -> {
+                try {
+                    start.await();
+                    for(int i = 0; i < 200; i ++) {
+                        tree.insert(i * 2 + 1, i * 2 + 1);
+                    }
+                } catch(Exception e) {
+                    err.set(e);
+                }
+            });
+            inserter.start();
+            start.countDown();
+            if(!tree.buildIfEmpty(keys, uids, lim)) {
+                for(int i = 0; i < lim; i ++) {
+                    tree.insert(keys[i], uids[i]);
+                }
+            }
+            inserter.join();
+            assert err.get() == null;
+            assert tree.searchRange(0, Long.MAX_VALUE).size() == lim + 200;
+            for(int i = 0; i < 200; i ++) {
+                assert tree.search(i * 2 + 1).size() == 1;
+            }
+        }
+
+        assert new File("./tmp/TestTreeBuildRace.db").delete();
+        assert new File("./tmp/TestTreeBuildRace.log").delete();
+    }
 }
@@ -65,6 +65,12 @@ public class ParserTest {
         System.out.println("Insert");
         System.out.println(gson.toJson(insert));
         System.out.println("======================");
+
+        stat = "insert into student values (5, \"Guo Ziyang\", 22), (6 abc 23)";
+        insert = (Insert)Parser.Parse(stat.getBytes());
+        assert insert.rows.length == 2;
+        assert Arrays.equals(insert.rows[0], new String[]{"5", "Guo Ziyang", "22"});
+        assert Arrays.equals(insert.rows[1], new String[]{"6", "abc", "23"});
     }
 
     @Test
@@ -99,5 +105,47 @@ public class ParserTest {
         System.out.println(gson.toJson(update));
         System.out.println("======================");
     }
-}
 
+    @Test
+    public void testAnalyze() throws Exception {
+        Analyze analyze = (Analyze)Parser.Parse("analyze table student".getBytes());
+        assert "student".equals(analyze.tableName);
+        analyze = (Analyze)Parser.Parse("analyze student".getBytes());
+        assert "student".equals(analyze.tableName);
+    }
+
+    @Test
+    public void testExplain() throws Exception {
+        String stat = "explain select * from student where id > 1 or name = \"GZY\"";
+        Explain explain = (Explain)Parser.Parse(stat.getBytes());
+        Select select = (Select)explain.statement;
+        assert "student".equals(select.tableName);
+        assert "or".equals(select.where.logicOp);
+
+        stat = "explain delete from student where id = 5";
+        explain = (Explain)Parser.Parse(stat.getBytes());
+        assert explain.statement instanceof Delete;
+    }
+
+    @Test
+    public void testCursor() throws Exception {
+        Declare declare = (Declare)Parser.Parse("declare c1 cursor for select name from student where id > 3".getBytes());
+        assert "c1".equals(declare.cursorName);
+        assert "student".equals(declare.select.tableName);
+
+        Fetch fetch = (Fetch)Parser.Parse("fetch 100 from c1".getBytes());
+        assert fetch.count == 100 && "c1".equals(fetch.cursorName);
+        fetch = (Fetch)Parser.Parse("fetch c1".getBytes());
+        assert fetch.count == 1 && "c1".equals(fetch.cursorName);
+
+        Close close = (Close)Parser.Parse("close c1".getBytes());
+        assert "c1".equals(close.cursorName);
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        Load load = (Load)Parser.Parse("load data \"/tmp/students.csv\" into table student".getBytes());
+        assert "/tmp/students.csv".equals(load.path);
+        assert "student".equals(load.tableName);
+    }
+}
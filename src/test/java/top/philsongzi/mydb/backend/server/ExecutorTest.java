@@ -5,8 +5,10 @@ import top.philsongzi.mydb.backend.dm.DataManager;
 import top.philsongzi.mydb.backend.tbm.TableManager;
 import top.philsongzi.mydb.backend.tm.TransactionManager;
 import top.philsongzi.mydb.backend.vm.VersionManager;
+import top.philsongzi.mydb.common.Error;
 
 import java.io.File;
+import java.io.PrintWriter;
 import java.util.concurrent.CountDownLatch;
 
 /**
@@ -45,6 +47,7 @@ public class ExecutorTest {
         new File(path + ".bt").delete();
         new File(path + ".log").delete();
         new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
     }
 
     private void testMultiInsert(int total, int noWorkers) throws Exception {
@@ -77,5 +80,398 @@ public class ExecutorTest {
         new File(path + ".bt").delete();
         new File(path + ".log").delete();
         new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    private int lines(byte[] res) {
+        String s = new String(res);
+        return "".equals(s) ? 0 : s.split("\n").length;
+    }
+
+    private Executor newExecutor(String path) {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        return new Executor(tbm);
+    }
+
+    private void cleanup(String path) {
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testAsyncCommit() throws Exception {
+        String path = "/tmp/mydb_async";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        Executor exe = new Executor(TableManager.create(path, VersionManager.newVersionManager(tm, dm), dm));
+        exe.execute("create table async_t id int32 (index id)".getBytes());
+
+        // 会话级：之后的临时事务和显式事务都异步提交
+        assert "set synchronous_commit off".equals(new String(exe.execute("set synchronous_commit = off".getBytes())));
+        for (int i = 0; i < 10; i++) {
+            exe.execute(("insert into async_t values " + i).getBytes());
+        }
+        exe.execute("set synchronous_commit on".getBytes());
+        // 事务级
+        exe.execute("begin async isolation level repeatable read".getBytes());
+        exe.execute("insert into async_t values 10".getBytes());
+        exe.execute("commit".getBytes());
+        try {
+            exe.execute("set synchronous_commit maybe".getBytes());
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.InvalidVariableException;
+        }
+        assert lines(exe.execute("select * from async_t".getBytes())) == 11;
+        exe.close();
+        // 关闭时把还没刷盘的提交状态刷盘
+        dm.close();
+        tm.close();
+
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, mem, tm);
+        exe = new Executor(TableManager.open(path, VersionManager.newVersionManager(tm, dm), dm));
+        assert lines(exe.execute("select * from async_t".getBytes())) == 11;
+        exe.close();
+        dm.close();
+        tm.close();
+        cleanup(path);
+    }
+
+    @Test
+    public void testPlanner() throws Exception {
+        String path = "/tmp/mydb_planner";
+        Executor exe = newExecutor(path);
+        exe.execute("create table plan_t id int32, age int32, name string (index id age)".getBytes());
+        for (int i = 0; i < 200; i++) {
+            exe.execute(("insert into plan_t values " + i + " " + (i % 10) + " n" + i).getBytes());
+        }
+
+        // 重叠的 or 区间不应再返回重复行
+        assert lines(exe.execute("select * from plan_t where id < 10 or id < 20".getBytes())) == 20;
+        // 不同字段上的 and 由残余谓词过滤
+        assert lines(exe.execute("select * from plan_t where age = 3 and id < 50".getBytes())) == 5;
+        // 未建索引的字段走全表扫描
+        assert lines(exe.execute("select * from plan_t where name = n7".getBytes())) == 1;
+        assert lines(exe.execute("select * from plan_t where id = 3 or age = 3".getBytes())) == 20;
+
+        exe.execute("analyze plan_t".getBytes());
+        String plan = new String(exe.execute("explain select * from plan_t where age = 3 and id = 42".getBytes()));
+        assert plan.startsWith("-> IndexRangeScan on plan_t using id");
+        // 统计信息决定用哪个索引：age = 3 选中 20 行，比 id > 5 的 195 行少
+        plan = new String(exe.execute("explain select * from plan_t where age = 3 and id > 5".getBytes()));
+        assert plan.startsWith("-> IndexRangeScan on plan_t using age");
+        plan = new String(exe.execute("explain select * from plan_t where id < 5".getBytes()));
+        assert plan.startsWith("-> IndexRangeScan on plan_t using id");
+        // 两个区间合起来几乎覆盖全表，分别扫描再去重不如全表扫描
+        plan = new String(exe.execute("explain select * from plan_t where id > 5 or age > 0".getBytes()));
+        assert plan.startsWith("-> FullScan on plan_t");
+        plan = new String(exe.execute("explain select * from plan_t where id = 3 or age = 3".getBytes()));
+        assert plan.startsWith("-> MultiRangeUnion");
+
+        assert "delete 5".equals(new String(exe.execute("delete from plan_t where age = 3 and id < 50".getBytes())));
+        assert lines(exe.execute("select * from plan_t where age = 3".getBytes())) == 15;
+
+        exe.close();
+        cleanup(path);
+    }
+
+    @Test
+    public void testBatchRead() throws Exception {
+        String path = "/tmp/mydb_batch";
+        Executor exe = newExecutor(path);
+        exe.execute("create table batch_t id int64, name string, age int32 (index id)".getBytes());
+        exe.execute("begin".getBytes());
+        for (int i = 0; i < 3000; i++) {
+            exe.execute(("insert into batch_t values " + i + " \"name " + i + "\" " + (i % 7)).getBytes());
+        }
+        exe.execute("commit".getBytes());
+
+        // 跨越多个批次
+        assert lines(exe.execute("select * from batch_t".getBytes())) == 3000;
+        // 投影只输出被选中的列，并按 select 中的顺序
+        assert "[name 42, 42]\n".equals(new String(exe.execute("select name, id from batch_t where id = 42".getBytes())));
+        // 过滤在批次上进行
+        assert lines(exe.execute("select age from batch_t where age = 3 and id < 1500".getBytes())) == 214;
+
+        exe.close();
+        cleanup(path);
+    }
+
+    @Test
+    public void testCursor() throws Exception {
+        String path = "/tmp/mydb_cursor";
+        Executor exe = newExecutor(path);
+        exe.execute("create table cur_t id int32, age int32 (index id age)".getBytes());
+        exe.execute("begin".getBytes());
+        for (int i = 0; i < 2500; i++) {
+            exe.execute(("insert into cur_t values " + i + " " + (2499 - i)).getBytes());
+        }
+        exe.execute("commit".getBytes());
+
+        // 分批取完，行数与一次性读取一致，且按索引顺序返回
+        exe.execute("declare c1 cursor for select id from cur_t".getBytes());
+        int total = 0;
+        String first = null;
+        while(true) {
+            byte[] chunk = exe.execute("fetch 700 from c1".getBytes());
+            if(chunk.length == 0) {
+                break;
+            }
+            assert lines(chunk) <= 700;
+            if(first == null) {
+                first = new String(chunk).split("\n")[0];
+            }
+            total += lines(chunk);
+        }
+        assert total == 2500;
+        assert "[0]".equals(first);
+        exe.execute("close c1".getBytes());
+
+        // 多区间扫描不返回重复行：两个区间在 id 100..149 上重叠
+        exe.execute("declare c2 cursor for select * from cur_t where id < 150 or age < 2400".getBytes());
+        total = 0;
+        byte[] chunk;
+        while((chunk = exe.execute("fetch 64 c2".getBytes())).length != 0) {
+            total += lines(chunk);
+        }
+        assert total == 2500;
+        exe.execute("close c2".getBytes());
+
+        // 事务结束时游标随之关闭
+        exe.execute("begin".getBytes());
+        exe.execute("declare c3 cursor for select * from cur_t".getBytes());
+        assert lines(exe.execute("fetch 5 from c3".getBytes())) == 5;
+        exe.execute("commit".getBytes());
+        try {
+            exe.execute("fetch 5 from c3".getBytes());
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.CursorNotFoundException;
+        }
+
+        exe.close();
+        cleanup(path);
+    }
+
+    @Test
+    public void testPrepared() throws Exception {
+        String path = "/tmp/mydb_prepared";
+        Executor exe = newExecutor(path);
+        exe.execute("create table prep_t id int32, name string (index id)".getBytes());
+
+        int insert = exe.prepare("insert into prep_t values ? ?".getBytes());
+        assert insert == exe.prepare("insert into prep_t values ? ?".getBytes());
+        for (int i = 0; i < 100; i++) {
+            assert "insert".equals(new String(exe.execute(insert, new String[]{"" + i, "n" + i})));
+        }
+
+        int select = exe.prepare("select name from prep_t where id = ?".getBytes());
+        assert "[n42]\n".equals(new String(exe.execute(select, new String[]{"42"})));
+        assert "[n7]\n".equals(new String(exe.execute(select, new String[]{"7"})));
+
+        int update = exe.prepare("update prep_t set name = ? where id > ? and id < ?".getBytes());
+        assert "update 9".equals(new String(exe.execute(update, new String[]{"x", "10", "20"})));
+        assert lines(exe.execute("select * from prep_t where name = x".getBytes())) == 9;
+
+        try {
+            exe.execute(select, new String[]{});
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.InvalidParamsException;
+        }
+        try {
+            exe.execute(select + 100, new String[]{"1"});
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.StatementNotFoundException;
+        }
+
+        // 释放后 id 失效，同样的文本重新预编译得到新的 id
+        assert "deallocate".equals(new String(exe.deallocate(update)));
+        try {
+            exe.execute(update, new String[]{"y", "10", "20"});
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.StatementNotFoundException;
+        }
+        assert update != exe.prepare("update prep_t set name = ? where id > ? and id < ?".getBytes());
+
+        // 超过上限时淘汰最久没用的语句，最近用过的保留
+        int first = exe.prepare("select * from prep_t where id = 0".getBytes());
+        for (int i = 1; i <= Executor.MAX_PREPARED; i++) {
+            exe.prepare(("select * from prep_t where id = " + i).getBytes());
+            exe.execute(select, new String[]{"1"});
+        }
+        try {
+            exe.execute(first, new String[]{});
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.StatementNotFoundException;
+        }
+        assert "[n7]\n".equals(new String(exe.execute(select, new String[]{"7"})));
+        assert first != exe.prepare("select * from prep_t where id = 0".getBytes());
+
+        exe.close();
+        cleanup(path);
+    }
+
+    @Test
+    public void testMultiRowInsert() throws Exception {
+        String path = "/tmp/mydb_multi_insert";
+        Executor exe = newExecutor(path);
+        exe.execute("create table multi_t id int32, name string (index id name)".getBytes());
+
+        StringBuilder sb = new StringBuilder("insert into multi_t values ");
+        for (int i = 999; i >= 0; i--) {
+            sb.append("(").append(i).append(", \"m ").append(i).append("\")");
+            if(i > 0) {
+                sb.append(", ");
+            }
+        }
+        exe.execute(sb.toString().getBytes());
+
+        assert lines(exe.execute("select * from multi_t".getBytes())) == 1000;
+        assert "[500, m 500]\n".equals(new String(exe.execute("select * from multi_t where id = 500".getBytes())));
+        assert "[7]\n".equals(new String(exe.execute("select id from multi_t where name = \"m 7\"".getBytes())));
+
+        // 行中的值个数不对时整条语句失败
+        try {
+            exe.execute("insert into multi_t values (1, a), (2)".getBytes());
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.InvalidValuesException;
+        }
+
+        exe.close();
+        cleanup(path);
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        String path = "/tmp/mydb_load";
+        File csv = new File(path + ".csv");
+        try(PrintWriter writer = new PrintWriter(csv)) {
+            for (int i = 0; i < 20000; i++) {
+                int id = (i * 7919) % 20000;
+                writer.println(id + ",\"n, " + id + "\"," + (id % 50));
+            }
+        }
+        Executor exe = newExecutor(path);
+        exe.execute("create table load_t id int32, name string, age int32 (index id name)".getBytes());
+
+        String res = new String(exe.execute(("load data \"" + csv.getPath() + "\" into load_t").getBytes()));
+        assert res.startsWith("load 20000 rows in ");
+
+        assert lines(exe.execute("select * from load_t".getBytes())) == 20000;
+        assert "[123, n, 123, 23]\n".equals(new String(exe.execute("select * from load_t where id = 123".getBytes())));
+        assert "[4567]\n".equals(new String(exe.execute("select id from load_t where name = \"n, 4567\"".getBytes())));
+        assert lines(exe.execute("select id from load_t where id > 999 and id < 2000".getBytes())) == 1000;
+
+        // 导入后的索引上继续普通插入
+        exe.execute("insert into load_t values 20000 x 0".getBytes());
+        assert lines(exe.execute("select id from load_t where id > 19990".getBytes())) == 10;
+
+        // 导入到空表的同时另一个连接往里插入，建树不能丢掉这些插入的索引项
+        File small = new File(path + "_small.csv");
+        try(PrintWriter writer = new PrintWriter(small)) {
+            for (int i = 0; i < 2000; i++) {
+                writer.println(i + ",n" + i + "," + (i % 50));
+            }
+        }
+        exe.execute("create table load_c id int32, name string, age int32 (index id)".getBytes());
+        final Executor other = new Executor(exe.tbm);
+        final Exception[] err = new Exception[1];
+        Thread inserter = new Thread(() -> {
+            try {
+                for (int i = 0; i < 200; i++) {
+                    other.execute(("insert into load_c values " + (100000 + i) + " c 0").getBytes());
+                }
+            } catch (Exception e) {
+                err[0] = e;
+            }
+        });
+        inserter.start();
+        exe.execute(("load data \"" + small.getPath() + "\" into load_c").getBytes());
+        inserter.join();
+        assert err[0] == null;
+        assert lines(exe.execute("select id from load_c".getBytes())) == 2200;
+        assert lines(exe.execute("select id from load_c where id > 99999".getBytes())) == 200;
+        other.close();
+
+        exe.close();
+        cleanup(path);
+        csv.delete();
+        small.delete();
+    }
+
+    @Test
+    public void testConcurrentCatalog() throws Exception {
+        String path = "/tmp/mydb_catalog";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        new Executor(tbm).execute("create table hot_t id int32 (index id)".getBytes());
+
+        // 一半线程建表，一半线程往已有的表里插入，互不阻塞
+        int workers = 8, n = 20;
+        CountDownLatch cdl = new CountDownLatch(workers);
+        Exception[] errs = new Exception[workers];
+        for (int i = 0; i < workers; i++) {
+            final int no = i;
+            new Thread(() -> {
+                try {
+                    Executor exe = new Executor(tbm);
+                    for (int j = 0; j < n; j++) {
+                        if(no % 2 == 0) {
+                            exe.execute(("create table t_" + no + "_" + j + " id int32 (index id)").getBytes());
+                        } else {
+                            exe.execute(("insert into hot_t values " + (no * n + j)).getBytes());
+                        }
+                    }
+                } catch (Exception e) {
+                    errs[no] = e;
+                } finally {
+                    cdl.countDown();
+                }
+            }).start();
+        }
+        cdl.await();
+        for (Exception e : errs) {
+            assert e == null;
+        }
+
+        Executor exe = new Executor(tbm);
+        assert lines(exe.execute("select * from hot_t".getBytes())) == workers / 2 * n;
+        try {
+            exe.execute("create table t_0_0 id int32 (index id)".getBytes());
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.DuplicatedTableException;
+        }
+        dm.close();
+        tm.close();
+
+        // 重启后表链表中的表一个不少
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, mem, tm);
+        vm = VersionManager.newVersionManager(tm, dm);
+        exe = new Executor(TableManager.open(path, vm, dm));
+        for (int i = 0; i < workers; i += 2) {
+            for (int j = 0; j < n; j++) {
+                assert lines(exe.execute(("select * from t_" + i + "_" + j).getBytes())) == 0;
+            }
+        }
+        assert lines(exe.execute("select * from hot_t".getBytes())) == workers / 2 * n;
+        dm.close();
+        tm.close();
+        cleanup(path);
     }
 }
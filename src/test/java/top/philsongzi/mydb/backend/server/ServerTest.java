@@ -0,0 +1,313 @@
+package top.philsongzi.mydb.backend.server;
+
+import org.junit.Test;
+import top.philsongzi.mydb.backend.dm.DataManager;
+import top.philsongzi.mydb.backend.tbm.TableManager;
+import top.philsongzi.mydb.backend.tm.TransactionManager;
+import top.philsongzi.mydb.backend.vm.VersionManager;
+import top.philsongzi.mydb.client.AsyncClient;
+import top.philsongzi.mydb.client.Client;
+import top.philsongzi.mydb.client.ResultStream;
+import top.philsongzi.mydb.common.Error;
+import top.philsongzi.mydb.transport.Encoder;
+import top.philsongzi.mydb.transport.FrameTransporter;
+import top.philsongzi.mydb.transport.Package;
+import top.philsongzi.mydb.transport.Packager;
+import top.philsongzi.mydb.transport.ResultRows;
+import top.philsongzi.mydb.transport.Transporter;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author 小子松
+ * @since 2026/10/19
+ */
+public class ServerTest {
+    String path = "/tmp/mydb_server";
+    long mem = (1 << 20) * 64;
+    int port = 19999;
+
+    @Test
+    public void testManyConnections() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        // 线程和队列都很小，连接数远多于它们，请求必须排队和延后提交
+        final Server server = new Server(port, tbm, 2, 1);
+        Thread loop = new Thread(server::start);
+        loop.start();
+
+        Client admin = connect();
+        admin.execute("create table t id int32, name string (index id)".getBytes());
+
+        int clients = 40, rows = 5;
+        CountDownLatch done = new CountDownLatch(clients);
+        AtomicInteger errors = new AtomicInteger();
+        for (int i = 0; i < clients; i++) {
+            final int no = i;
+            new Thread(() -> {
+                try {
+                    Client c = connect();
+                    for (int j = 0; j < rows; j++) {
+                        c.execute(("insert into t values " + (no * rows + j) + " c" + no).getBytes());
+                    }
+                    c.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    errors.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        assert errors.get() == 0;
+        assert new String(admin.execute("select * from t".getBytes())).split("\n").length == clients * rows;
+
+        // 断开的连接上未提交的事务被回滚
+        Client dropped = connect();
+        dropped.execute("begin".getBytes());
+        dropped.execute("insert into t values 100000 lost".getBytes());
+        dropped.close();
+        long deadline = System.currentTimeMillis() + 5000;
+        while(server.connectionCount() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assert "".equals(new String(admin.execute("select * from t where id = 100000".getBytes())));
+        assert server.queueDepth() == 0;
+        assert server.deferredCount() == 0;
+
+        admin.close();
+        server.stop();
+        loop.join();
+        dm.close();
+        tm.close();
+        cleanup();
+    }
+
+    @Test
+    public void testBinaryProtocol() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        final Server server = new Server(port, tbm);
+        Thread loop = new Thread(server::start);
+        loop.start();
+
+        // 同一个服务端上，握手过的连接用二进制帧，没有握手的旧客户端仍然用十六进制文本行
+        Client hex = connect();
+        Client bin = connect(true);
+        assert "create t".equals(new String(bin.execute("create table t id int32, big int64, name string (index id)".getBytes())));
+        hex.execute("insert into t values 1 10000000000 one".getBytes());
+        bin.execute("insert into t values 2 20000000000 two".getBytes());
+
+        ResultRows rows = bin.select("select * from t".getBytes());
+        assert Arrays.equals(new String[]{"id", "big", "name"}, rows.names);
+        assert rows.rows.size() == 2;
+        assert Arrays.equals(new Object[]{1, 10000000000L, "one"}, rows.rows.get(0));
+        assert Arrays.equals(new Object[]{2, 20000000000L, "two"}, rows.rows.get(1));
+        rows = bin.select("select name, id from t where id = 2".getBytes());
+        assert rows.types[0] == ResultRows.STRING && rows.types[1] == ResultRows.INT32;
+        assert Arrays.equals(new Object[]{"two", 2}, rows.rows.get(0));
+
+        // 两种协议格式化后的结果相同，游标分批取回也一样
+        String expected = "[1, 10000000000, one]\n[2, 20000000000, two]\n";
+        assert expected.equals(new String(hex.execute("select * from t".getBytes())));
+        assert expected.equals(new String(bin.execute("select * from t".getBytes())));
+        ResultStream rs = bin.query("select * from t".getBytes(), 1);
+        assert "[1, 10000000000, one]\n".equals(new String(rs.next()));
+        assert "[2, 20000000000, two]\n".equals(new String(rs.next()));
+        assert rs.next() == null;
+
+        try {
+            bin.execute("select * from missing".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e.getMessage().equals(Error.TableNotFoundException.getMessage());
+        }
+        int id = bin.prepare("select * from t where id = ?".getBytes());
+        assert "[1, 10000000000, one]\n".equals(new String(bin.execute(id, "1")));
+        bin.deallocate(id);
+        try {
+            bin.execute(id, "1");
+            assert false;
+        } catch (Exception e) {
+            assert e.getMessage().equals(Error.StatementNotFoundException.getMessage());
+        }
+
+        hex.close();
+        bin.close();
+        server.stop();
+        loop.join();
+        dm.close();
+        tm.close();
+        cleanup();
+    }
+
+    @Test
+    public void testPipelining() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        final Server server = new Server(port, tbm);
+        Thread loop = new Thread(server::start);
+        loop.start();
+        connect().close();
+
+        AsyncClient client = new AsyncClient("127.0.0.1", port);
+        client.execute("create table t id int32, name string (index id)".getBytes()).get();
+
+        // 不等结果连续发送，服务端按顺序执行：最后的 select 能看到前面所有的插入，中间失败的语句只影响它自己
+        int n = 500;
+        List<CompletableFuture<byte[]>> inserts = new ArrayList<>();
+        inserts.add(client.execute("begin".getBytes()));
+        for (int i = 0; i < n; i++) {
+            inserts.add(client.execute(("insert into t values " + i + " v" + i).getBytes()));
+        }
+        CompletableFuture<byte[]> bad = client.execute("insert into missing values 1".getBytes());
+        inserts.add(client.execute("commit".getBytes()));
+        CompletableFuture<ResultRows> all = client.select("select * from t".getBytes());
+        CompletableFuture<ResultRows> one = client.select("select name from t where id = 42".getBytes());
+
+        ResultRows rows = all.get();
+        assert rows.rows.size() == n;
+        for (int i = 0; i < n; i++) {
+            assert Arrays.equals(new Object[]{i, "v" + i}, rows.rows.get(i));
+        }
+        assert Arrays.equals(new Object[]{"v42"}, one.get().rows.get(0));
+        for (CompletableFuture<byte[]> f : inserts) {
+            assert f.isDone() && !f.isCompletedExceptionally();
+        }
+        try {
+            bad.get();
+            assert false;
+        } catch (ExecutionException e) {
+            assert e.getCause().getMessage().equals(Error.TableNotFoundException.getMessage());
+        }
+        int id = client.prepare("select * from t where id = ?".getBytes()).get();
+        assert "[7, v7]\n".equals(new String(client.execute(id, "7").get()));
+        assert "deallocate".equals(new String(client.deallocate(id).get()));
+        assert client.inFlight() == 0;
+
+        // 连接断开后，未完成和之后的请求都失败
+        client.close();
+        try {
+            client.execute("show".getBytes()).get();
+            assert false;
+        } catch (ExecutionException e) {
+            assert e.getCause() instanceof java.io.IOException;
+        }
+
+        server.stop();
+        loop.join();
+        dm.close();
+        tm.close();
+        cleanup();
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        final Server server = new Server(port, tbm);
+        Thread loop = new Thread(server::start);
+        loop.start();
+
+        // 引号里的分号不切分，空语句忽略
+        assert Arrays.asList("insert into t values 1 'x;y'", "commit").equals(Client.splitScript(" insert into t values 1 'x;y' ;; commit;"));
+
+        Client hex = connect();
+        List<Package> results = hex.executeScript("create table t id int32, name string (index id); begin;"
+                + " insert into t values 1 'x;y'; insert into t values 2 two; commit; select * from t");
+        assert results.size() == 6;
+        for (Package res : results) {
+            assert res.getErr() == null;
+        }
+        assert "begin".equals(new String(results.get(1).getData()));
+        assert "[1, x;y]\n[2, two]\n".equals(new String(results.get(5).getData()));
+
+        // 出错的语句之后不再执行，事务仍然打开，由客户端回滚
+        Client bin = connect(true);
+        results = bin.executeBatch("begin".getBytes(), "insert into t values 3 three".getBytes(),
+                "insert into missing values 4".getBytes(), "insert into t values 5 five".getBytes());
+        assert results.size() == 3;
+        assert results.get(1).getErr() == null;
+        assert results.get(2).getErr().getMessage().equals(Error.TableNotFoundException.getMessage());
+        assert "abort".equals(new String(bin.execute("abort".getBytes())));
+
+        // 二进制协议上批量中的 select 也是带类型的结果行
+        results = bin.executeBatch("select * from t where id = 2".getBytes(), "select * from t".getBytes());
+        assert results.get(0).getType() == Package.ROWS;
+        assert Arrays.equals(new Object[]{2, "two"}, ResultRows.decode(results.get(0).getData()).rows.get(0));
+        assert ResultRows.decode(results.get(1).getData()).rows.size() == 2;
+
+        AsyncClient async = new AsyncClient("127.0.0.1", port);
+        CompletableFuture<List<Package>> first = async.executeBatch("insert into t values 6 six".getBytes(), "show".getBytes());
+        CompletableFuture<List<Package>> second = async.executeBatch("select name from t where id = 6".getBytes());
+        assert first.get().size() == 2;
+        assert Arrays.equals(new Object[]{"six"}, ResultRows.decode(second.get().get(0).getData()).rows.get(0));
+
+        // 条目数远大于帧的批量请求返回错误，连接仍然可用
+        Packager raw = new Packager(new FrameTransporter(SocketChannel.open(new InetSocketAddress("127.0.0.1", port))), new Encoder());
+        raw.send(new Package(Package.BATCH, ByteBuffer.allocate(8).putInt(Integer.MAX_VALUE).putInt(1).array(), null));
+        assert raw.receive().getErr().getMessage().equals(Error.InvalidPkgDataException.getMessage());
+        raw.send(new Package("show".getBytes(), null));
+        assert raw.receive().getErr() == null;
+        raw.close();
+
+        async.close();
+        hex.close();
+        bin.close();
+        server.stop();
+        loop.join();
+        dm.close();
+        tm.close();
+        cleanup();
+    }
+
+    private void cleanup() {
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    private Client connect() throws Exception {
+        return connect(false);
+    }
+
+    private Client connect(boolean binary) throws Exception {
+        for (int i = 0; ; i++) {
+            try {
+                if(binary) {
+                    SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+                    return new Client(new Packager(new FrameTransporter(channel), new Encoder()));
+                }
+                Socket socket = new Socket("127.0.0.1", port);
+                return new Client(new Packager(new Transporter(socket), new Encoder()));
+            } catch (java.net.ConnectException e) {
+                if(i > 100) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package top.philsongzi.mydb.backend.tbm;
+
+import com.google.common.primitives.Bytes;
+import org.junit.Test;
+import top.philsongzi.mydb.backend.utils.Parser;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author 小子松
+ * @since 2026/10/19
+ */
+public class RowLayoutTest {
+
+    private List<Field> fields() {
+        return Arrays.asList(
+                new Field(null, "id", "int64", 0),
+                new Field(null, "name", "string", 0),
+                new Field(null, "age", "int32", 0));
+    }
+
+    private Map<String, Object> entry() {
+        Map<String, Object> entry = new HashMap<>();
+        entry.put("id", 1234567890123L);
+        entry.put("name", "Guo Ziyang");
+        entry.put("age", 22);
+        return entry;
+    }
+
+    @Test
+    public void testLegacy() throws Exception {
+        List<Field> fields = fields();
+        RowLayout layout = new RowLayout(RowLayout.LEGACY, fields);
+        byte[] raw = layout.encode(0, entry());
+
+        // 与旧版本逐字段拼接的结果完全一致
+        byte[] old = new byte[0];
+        for (Field f : fields) {
+            old = Bytes.concat(old, f.value2Raw(entry().get(f.fieldName)));
+        }
+        assert Arrays.equals(old, raw);
+        assert entry().equals(layout.decode(raw));
+        assert layout.value(raw, 2).equals(22);
+    }
+
+    @Test
+    public void testV1() throws Exception {
+        RowLayout layout = new RowLayout(RowLayout.V1, fields());
+        byte[] raw = layout.encode(0, entry());
+
+        // [Version][NullBitmap 1 字节][3 个偏移][8 + 10 + 4 字节的数据]
+        assert raw.length == 1 + 1 + 6 + 8 + 10 + 4;
+        assert raw[0] == RowLayout.V1;
+        assert layout.start(raw, 2) == raw.length - 4;
+        assert entry().equals(layout.decode(raw));
+        assert "Guo Ziyang".equals(layout.value(raw, 1));
+        assert layout.key(raw, 1) == Parser.str2Uid("Guo Ziyang");
+        assert layout.key(raw, 0) == 1234567890123L;
+    }
+}
@@ -0,0 +1,349 @@
+package top.philsongzi.mydb.backend.tbm;
+
+import org.junit.Test;
+import top.philsongzi.mydb.backend.dm.DataManager;
+import top.philsongzi.mydb.backend.dm.dataItem.DataItem;
+import top.philsongzi.mydb.backend.parser.Parser;
+import top.philsongzi.mydb.backend.parser.statement.*;
+import top.philsongzi.mydb.backend.tm.TransactionManager;
+import top.philsongzi.mydb.backend.tm.TransactionManagerImpl;
+import top.philsongzi.mydb.backend.vm.VersionManager;
+import top.philsongzi.mydb.common.Error;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * @author 小子松
+ * @since 2026/10/19
+ */
+public class TableManagerTest {
+    String path = "/tmp/mydb_tbm";
+    long mem = (1 << 20) * 64;
+
+    @Test
+    public void testLazyLoad() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        long xid = TransactionManagerImpl.SUPER_XID;
+        for (int i = 0; i < 50; i++) {
+            tbm.create(xid, (Create) Parser.Parse(("create table t" + i + " id int32, name string (index id)").getBytes()));
+        }
+        tbm.insert(xid, (Insert) Parser.Parse("insert into t7 values 7 seven".getBytes()));
+        dm.close();
+        tm.close();
+
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, mem, tm);
+        vm = VersionManager.newVersionManager(tm, dm);
+        TableManagerImpl tbmi = (TableManagerImpl) TableManager.open(path, vm, dm);
+
+        // 启动时只建立目录，不加载任何一张表
+        assert tbmi.tableUids.size() == 50;
+        assert tbmi.tableCache.isEmpty();
+
+        assert "[7, seven]\n".equals(new String(tbmi.read(xid, (Select) Parser.Parse("select * from t7 where id = 7".getBytes()))));
+        assert tbmi.tableCache.size() == 1;
+        assert tbmi.tableCache.containsKey("t7");
+
+        try {
+            tbmi.create(xid, (Create) Parser.Parse("create table t3 id int32 (index id)".getBytes()));
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.DuplicatedTableException;
+        }
+        try {
+            tbmi.read(xid, (Select) Parser.Parse("select * from t50".getBytes()));
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.TableNotFoundException;
+        }
+
+        // 建表失败不会在 metaLocks 中留下表名，之后同名的表仍然可以创建
+        Create bad = new Create();
+        bad.tableName = "bad";
+        bad.fieldName = new String[]{"id"};
+        bad.fieldType = new String[]{"float"};
+        bad.index = new String[]{"id"};
+        try {
+            tbmi.create(xid, bad);
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.InvalidFieldException;
+        }
+        assert !tbmi.metaLocks.containsKey("bad");
+        tbmi.create(xid, (Create) Parser.Parse("create table bad id int32 (index id)".getBytes()));
+        assert tbmi.metaLocks.containsKey("bad");
+
+        dm.close();
+        tm.close();
+        cleanup();
+    }
+
+    @Test
+    public void testToast() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        long xid = TransactionManagerImpl.SUPER_XID;
+        tbm.create(xid, (Create) Parser.Parse("create table doc id int32, body string, note string (index id)".getBytes()));
+
+        // 随机内容基本压不动，重复内容压缩后只需要一块，都远大于一页
+        Random random = new Random(2026);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100 * 1024; i++) {
+            sb.append((char)('a' + random.nextInt(26)));
+        }
+        String randomBody = sb.toString();
+        sb.setLength(0);
+        for (int i = 0; i < 50 * 1024; i++) {
+            sb.append("ab");
+        }
+        String repeatedBody = sb.toString();
+
+        Insert insert = new Insert();
+        insert.tableName = "doc";
+        insert.rows = new String[][]{
+                {"1", randomBody, "random"},
+                {"2", repeatedBody, "repeated"},
+                {"3", "short", "inline"}};
+        tbm.insert(xid, insert);
+        long txn = tbm.begin(new Begin()).xid;
+        tbm.update(txn, (Update) Parser.Parse("update doc set note = changed where id = 1".getBytes()));
+        tbm.commit(txn);
+
+        assert "[1, changed]\n".equals(new String(tbm.read(xid, (Select) Parser.Parse("select id, note from doc where id = 1".getBytes()))));
+        assert ("[" + randomBody + "]\n").equals(new String(tbm.read(xid, (Select) Parser.Parse("select body from doc where id = 1".getBytes()))));
+
+        // 没有改动的 body 不会重新写到行外，新旧版本共用同一条链
+        Table table = ((TableManagerImpl) tbm).tableCache.get("doc");
+        List<Long> versions = table.firstIndexedField().search(1, 1);
+        assert versions.size() == 2;
+        List<Long> chains = new ArrayList<>();
+        for (Long uid : versions) {
+            table.layout.toastChains(vm.readData(uid), chains);
+        }
+        assert chains.size() == 2 && chains.get(0).equals(chains.get(1));
+
+        // 旧版本死亡后链仍被新版本引用，不释放；改掉 body 之后旧版本独占的链随它一起释放
+        txn = tbm.begin(new Begin()).xid;
+        tbm.update(txn, (Update) Parser.Parse("update doc set body = small where id = 2".getBytes()));
+        tbm.commit(txn);
+        txn = tbm.begin(new Begin()).xid;
+        String res = new String(tbm.vacuum(txn, (Vacuum) Parser.Parse("vacuum".getBytes())));
+        assert res.contains("2 dead versions removed from indexes, 0 versions freed, 0 toast values freed");
+        tbm.commit(txn);
+        txn = tbm.begin(new Begin()).xid;
+        res = new String(tbm.vacuum(txn, (Vacuum) Parser.Parse("vacuum".getBytes())));
+        assert res.contains("2 versions freed, 1 toast values freed");
+        tbm.commit(txn);
+        assert ("[" + randomBody + "]\n").equals(new String(tbm.read(xid, (Select) Parser.Parse("select body from doc where id = 1".getBytes()))));
+        dm.close();
+        tm.close();
+
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, mem, tm);
+        vm = VersionManager.newVersionManager(tm, dm);
+        tbm = TableManager.open(path, vm, dm);
+        res = new String(tbm.read(xid, (Select) Parser.Parse("select * from doc where id > 0".getBytes())));
+        assert ("[1, " + randomBody + ", changed]\n[2, small, repeated]\n[3, short, inline]\n").equals(res);
+
+        dm.close();
+        tm.close();
+        cleanup();
+    }
+
+    @Test
+    public void testVacuum() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        tbm.create(TransactionManagerImpl.SUPER_XID, (Create) Parser.Parse("create table t id int32, name string (index id)".getBytes()));
+
+        long xid = tbm.begin(new Begin()).xid;
+        tbm.insert(xid, (Insert) Parser.Parse("insert into t values 1 a".getBytes()));
+        tbm.insert(xid, (Insert) Parser.Parse("insert into t values 2 b".getBytes()));
+        tbm.commit(xid);
+        xid = tbm.begin(new Begin()).xid;
+        tbm.insert(xid, (Insert) Parser.Parse("insert into t values 3 c".getBytes()));
+        tbm.abort(xid);
+        xid = tbm.begin(new Begin()).xid;
+        tbm.delete(xid, (Delete) Parser.Parse("delete from t where id = 2".getBytes()));
+        tbm.abort(xid);
+
+        // 冻结线是当前事务，上面三个事务都早于它
+        Table table = ((TableManagerImpl) tbm).tableCache.get("t");
+        Set<Long> before = new HashSet<>(table.firstIndexedField().search(Long.MIN_VALUE, Long.MAX_VALUE));
+        xid = tbm.begin(new Begin()).xid;
+        String res = new String(tbm.vacuum(xid, (Vacuum) Parser.Parse("vacuum".getBytes())));
+        assert res.startsWith("vacuum 1 tables: 3 versions frozen, 1 dead versions removed from indexes, 0 versions freed");
+        tbm.commit(xid);
+
+        // 已提交的 XMIN 变成 SUPER_XID，中止的 XMAX 清零，中止事务插入的版本被标记为无效并从索引中删除
+        List<Long> after = table.firstIndexedField().search(Long.MIN_VALUE, Long.MAX_VALUE);
+        assert after.size() == 2;
+        for (Long uid : after) {
+            DataItem di = dm.read(uid);
+            byte[] raw = di.data().raw;
+            int start = di.data().start;
+            assert top.philsongzi.mydb.backend.utils.Parser.parseLong(raw, start) == 0;
+            assert top.philsongzi.mydb.backend.utils.Parser.parseLong(raw, start + 8) == 0;
+            di.release();
+        }
+        before.removeAll(after);
+        long dead = before.iterator().next();
+
+        // 删除索引项的 vacuum 已经结束，下一次 vacuum 释放死版本，它的槽被之后的插入复用
+        xid = tbm.begin(new Begin()).xid;
+        res = new String(tbm.vacuum(xid, (Vacuum) Parser.Parse("vacuum".getBytes())));
+        assert res.contains("0 dead versions removed from indexes, 1 versions freed");
+        tbm.commit(xid);
+        xid = tbm.begin(new Begin()).xid;
+        tbm.insert(xid, (Insert) Parser.Parse("insert into t values 4 d".getBytes()));
+        tbm.commit(xid);
+        assert table.firstIndexedField().search(4, 4).get(0) == dead;
+        xid = tbm.begin(new Begin()).xid;
+        tbm.delete(xid, (Delete) Parser.Parse("delete from t where id = 4".getBytes()));
+        tbm.commit(xid);
+        dm.close();
+        tm.close();
+
+        // 冻结以 SUPER_XID 落日志，重启恢复后结果不变
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, mem, tm);
+        vm = VersionManager.newVersionManager(tm, dm);
+        tbm = TableManager.open(path, vm, dm);
+        xid = tbm.begin(new Begin()).xid;
+        assert "[1, a]\n[2, b]\n".equals(new String(tbm.read(xid, (Select) Parser.Parse("select * from t where id > 0".getBytes()))));
+        tbm.commit(xid);
+
+        dm.close();
+        tm.close();
+        cleanup();
+    }
+
+    @Test
+    public void testVacuumTruncateThenCrash() throws Exception {
+        // 旧格式的状态文件：前面的事务都已提交，下一个事务在第 0 页的末尾
+        // 每个状态页的事务数，即 TransactionManagerImpl.XIDS_PER_PAGE
+        int xpp = (1 << 13) * 4;
+        long counter = xpp - 3;
+        byte[] legacy = new byte[8 + (int) counter];
+        System.arraycopy(top.philsongzi.mydb.backend.utils.Parser.long2Byte(counter), 0, legacy, 0, 8);
+        java.util.Arrays.fill(legacy, 8, legacy.length, (byte) 1);
+        java.nio.file.Files.write(new File(path + ".xid").toPath(), legacy);
+
+        TransactionManager tm = TransactionManager.open(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        tbm.create(TransactionManagerImpl.SUPER_XID, (Create) Parser.Parse("create table t id int32, name string (index id)".getBytes()));
+
+        long xid = tbm.begin(new Begin()).xid;
+        assert xid == xpp - 2;
+        tbm.insert(xid, (Insert) Parser.Parse("insert into t values 1 a".getBytes()));
+        tbm.abort(xid);
+        xid = tbm.begin(new Begin()).xid;
+        tbm.insert(xid, (Insert) Parser.Parse("insert into t values 2 b".getBytes()));
+        tbm.commit(xid);
+        xid = tbm.begin(new Begin()).xid;
+        tbm.commit(xid);
+
+        // 截断第 0 页之后，中止的事务读作已提交，只能靠冻结时写的日志把它插入的记录标记为无效
+        xid = tbm.begin(new Begin()).xid;
+        String res = new String(tbm.vacuum(xid, (Vacuum) Parser.Parse("vacuum".getBytes())));
+        assert res.endsWith("1 status pages truncated");
+
+        // 不关闭直接重新打开，模拟崩溃：没有刷盘的日志尾部在打开时被丢弃
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, mem, tm);
+        vm = VersionManager.newVersionManager(tm, dm);
+        tbm = TableManager.open(path, vm, dm);
+        assert tm.isCommitted(xpp - 2);
+        xid = tbm.begin(new Begin()).xid;
+        assert "[2, b]\n".equals(new String(tbm.read(xid, (Select) Parser.Parse("select * from t where id > 0".getBytes()))));
+        tbm.commit(xid);
+
+        dm.close();
+        tm.close();
+        cleanup();
+    }
+
+    @Test
+    public void testUnloggedAndMemoryTables() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        long xid = TransactionManagerImpl.SUPER_XID;
+        tbm.create(xid, (Create) Parser.Parse("create unlogged table u id int32, name string (index id)".getBytes()));
+        tbm.create(xid, (Create) Parser.Parse("create memory table m id int32, name string (index id)".getBytes()));
+
+        long t1 = tbm.begin(new Begin()).xid;
+        for (int i = 0; i < 3; i++) {
+            tbm.insert(t1, (Insert) Parser.Parse(("insert into u values " + i + " u" + i).getBytes()));
+            tbm.insert(t1, (Insert) Parser.Parse(("insert into m values " + i + " m" + i).getBytes()));
+        }
+        // 未提交的行对其他事务不可见，MVCC 和日志表一样
+        long t2 = tbm.begin(new Begin()).xid;
+        assert "".equals(new String(tbm.read(t2, (Select) Parser.Parse("select * from m".getBytes()))));
+        tbm.commit(t1);
+        tbm.commit(t2);
+        long t3 = tbm.begin(new Begin()).xid;
+        tbm.update(t3, (Update) Parser.Parse("update u set name = x where id = 1".getBytes()));
+        tbm.delete(t3, (Delete) Parser.Parse("delete from m where id = 2".getBytes()));
+        assert "[0, u0]\n[1, x]\n[2, u2]\n".equals(new String(tbm.read(t3, (Select) Parser.Parse("select * from u".getBytes()))));
+        assert "[0, m0]\n[1, m1]\n".equals(new String(tbm.read(t3, (Select) Parser.Parse("select * from m".getBytes()))));
+        tbm.commit(t3);
+        assert new String(tbm.show(xid)).contains("{m (memory): ");
+
+        // 正常关闭：非日志表保留，内存表清空但表还在
+        tbm.close();
+        dm.close();
+        tm.close();
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, mem, tm);
+        vm = VersionManager.newVersionManager(tm, dm);
+        tbm = TableManager.open(path, vm, dm);
+        long t4 = tbm.begin(new Begin()).xid;
+        assert "[0, u0]\n[1, x]\n[2, u2]\n".equals(new String(tbm.read(t4, (Select) Parser.Parse("select * from u".getBytes()))));
+        assert "".equals(new String(tbm.read(t4, (Select) Parser.Parse("select * from m".getBytes()))));
+        tbm.commit(t4);
+        tbm.insert(xid, (Insert) Parser.Parse("insert into m values 5 m5".getBytes()));
+        assert "[5, m5]\n".equals(new String(tbm.read(xid, (Select) Parser.Parse("select * from m where id = 5".getBytes()))));
+
+        // 崩溃：非日志表的存储没有正常关闭，重启后被清空，索引仍然可用
+        dm.close();
+        tm.close();
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, mem, tm);
+        vm = VersionManager.newVersionManager(tm, dm);
+        tbm = TableManager.open(path, vm, dm);
+        assert "".equals(new String(tbm.read(xid, (Select) Parser.Parse("select * from u".getBytes()))));
+        tbm.insert(xid, (Insert) Parser.Parse("insert into u values 9 u9".getBytes()));
+        assert "[9, u9]\n".equals(new String(tbm.read(xid, (Select) Parser.Parse("select * from u where id = 9".getBytes()))));
+
+        tbm.close();
+        dm.close();
+        tm.close();
+        cleanup();
+    }
+
+    private void cleanup() {
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+        new File(path + ".unlogged.db").delete();
+        new File(path + ".unlogged.fsm").delete();
+    }
+}
@@ -50,6 +50,108 @@ public class TransactionManagerTest {
         assert new File("./tmp/tranmger_test.xid").delete();
     }
 
+    @Test
+    public void testPackedStatus() {
+        String path = "/tmp/mydb_tm";
+        TransactionManager tm = TransactionManager.create(path);
+        long[] xids = new long[10];
+        for (int i = 0; i < xids.length; i++) {
+            xids[i] = tm.begin();
+            if(i % 3 == 1) {
+                tm.commit(xids[i]);
+            } else if(i % 3 == 2) {
+                tm.abort(xids[i]);
+            }
+        }
+        tm.close();
+
+        // 10 个事务只占一个状态页
+        File file = new File(path + ".xid");
+        assert file.length() == TransactionManagerImpl.LEN_XID_HEADER_LENGTH + TransactionManagerImpl.STATUS_PAGE_SIZE;
+        tm = TransactionManager.open(path);
+        for (int i = 0; i < xids.length; i++) {
+            assert tm.isActive(xids[i]) == (i % 3 == 0);
+            assert tm.isCommitted(xids[i]) == (i % 3 == 1);
+            assert tm.isAborted(xids[i]) == (i % 3 == 2);
+        }
+        assert tm.isCommitted(TransactionManagerImpl.SUPER_XID);
+        assert tm.begin() == xids.length + 1;
+        tm.close();
+        assert file.delete();
+    }
+
+    @Test
+    public void testCommitAsync() throws Exception {
+        String path = "/tmp/mydb_tm_async";
+        TransactionManager tm = TransactionManager.create(path);
+        long sync = tm.begin();
+        long async = tm.begin();
+        tm.commitAsync(async);
+        // 状态立刻可见，刷盘交给后台线程
+        assert tm.isCommitted(async);
+        Thread.sleep(TransactionManagerImpl.FLUSH_INTERVAL * 2);
+        tm.commit(sync);
+        long last = tm.begin();
+        tm.commitAsync(last);
+        tm.close();
+
+        tm = TransactionManager.open(path);
+        assert tm.isCommitted(sync);
+        assert tm.isCommitted(async);
+        assert tm.isCommitted(last);
+        tm.close();
+        assert new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testLegacyAndTruncate() throws Exception {
+        String path = "/tmp/mydb_tm_legacy";
+        int xpp = TransactionManagerImpl.XIDS_PER_PAGE;
+        // 旧格式：[XidCounter 8] + 每个事务 1 字节，状态按 xid % 3 分布，下一个事务正好跨到第 4 页
+        long counter = 3L * xpp - 1;
+        byte[] legacy = new byte[8 + (int) counter];
+        System.arraycopy(top.philsongzi.mydb.backend.utils.Parser.long2Byte(counter), 0, legacy, 0, 8);
+        for (long xid = 1; xid <= counter; xid++) {
+            legacy[8 + (int) (xid - 1)] = (byte) (xid % 3);
+        }
+        File file = new File(path + ".xid");
+        java.nio.file.Files.write(file.toPath(), legacy);
+
+        TransactionManager tm = TransactionManager.open(path);
+        assert file.length() == TransactionManagerImpl.LEN_XID_HEADER_LENGTH + 3 * TransactionManagerImpl.STATUS_PAGE_SIZE;
+        for (long xid = 1; xid <= counter; xid += 97) {
+            assert tm.isActive(xid) == (xid % 3 == 0);
+            assert tm.isCommitted(xid) == (xid % 3 == 1);
+            assert tm.isAborted(xid) == (xid % 3 == 2);
+        }
+        long next = tm.begin();
+        assert next == counter + 1;
+        assert tm.isActive(next);
+        assert file.length() == TransactionManagerImpl.LEN_XID_HEADER_LENGTH + 4 * TransactionManagerImpl.STATUS_PAGE_SIZE;
+
+        // 截断前两页，其中的事务都视为已提交，之后的状态保持不变
+        assert tm.truncateBefore(2L * xpp + 7) == 2;
+        assert file.length() == TransactionManagerImpl.LEN_XID_HEADER_LENGTH + 2 * TransactionManagerImpl.STATUS_PAGE_SIZE;
+        assert tm.isCommitted(3) && !tm.isActive(3) && !tm.isAborted(3);
+        assert tm.isCommitted(2L * xpp - 1);
+        for (long xid = 2L * xpp; xid <= counter; xid += 31) {
+            assert tm.isActive(xid) == (xid % 3 == 0);
+            assert tm.isAborted(xid) == (xid % 3 == 2);
+        }
+        tm.commit(next);
+        // 已经截断过的不会再截断
+        assert tm.truncateBefore(2L * xpp) == 0;
+        tm.close();
+
+        tm = TransactionManager.open(path);
+        assert tm.isCommitted(next);
+        assert tm.isCommitted(5);
+        assert tm.isAborted(2L * xpp + 1);
+        assert tm.begin() == next + 1;
+        tm.close();
+        assert file.delete();
+    }
+
     private void worker() {
         boolean inTrans = false;
         long transXID = 0;
@@ -0,0 +1,61 @@
+package top.philsongzi.mydb.backend.vm;
+
+import org.junit.Test;
+import top.philsongzi.mydb.backend.common.SubArray;
+import top.philsongzi.mydb.backend.dm.DataManager;
+import top.philsongzi.mydb.backend.dm.dataItem.DataItem;
+import top.philsongzi.mydb.backend.tm.TransactionManager;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * @author 小子松
+ * @since 2026/10/19
+ */
+public class VersionManagerTest {
+
+    String path = "/tmp/mydb_vm";
+
+    @Test
+    public void testReadEntryView() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, (1 << 20) * 16, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+
+        byte[] data = "hello, view".getBytes();
+        long writer = vm.begin(0);
+        long uid = vm.insert(writer, data);
+
+        // 未提交时其他事务看不到
+        long reader = vm.begin(0);
+        assert vm.readEntry(reader, uid) == null;
+        vm.commit(writer);
+
+        Entry entry = vm.readEntry(reader, uid);
+        assert entry != null;
+        try {
+            SubArray view = entry.view();
+            assert Arrays.equals(data, Arrays.copyOfRange(view.raw, view.start, view.end));
+            assert Arrays.equals(data, vm.read(reader, uid));
+        } finally {
+            entry.release();
+        }
+        vm.commit(reader);
+
+        // 只读过的 DataItem 不分配前像，第一次修改时才分配
+        DataItem di = dm.read(uid);
+        assert di.getOldRaw() == null;
+        di.before();
+        di.after(0);
+        assert di.getOldRaw() != null;
+        di.release();
+
+        dm.close();
+        tm.close();
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+}
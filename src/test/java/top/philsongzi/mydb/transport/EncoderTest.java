@@ -0,0 +1,61 @@
+package top.philsongzi.mydb.transport;
+
+import org.junit.Test;
+import top.philsongzi.mydb.common.Error;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author 小子松
+ * @since 2026/10/19
+ */
+public class EncoderTest {
+
+    @Test
+    public void testBatchRoundTrip() throws Exception {
+        byte[][] stats = Encoder.decodeBatch(Encoder.encodeBatch(new byte[][]{"begin".getBytes(), new byte[0], "commit".getBytes()}));
+        assert stats.length == 3;
+        assert Arrays.equals("commit".getBytes(), stats[2]);
+        assert stats[1].length == 0;
+
+        Encoder encoder = new Encoder();
+        List<Package> results = Encoder.decodeBatchResult(encoder.encodeBatchResult(Arrays.asList(
+                new Package("ok".getBytes(), null), new Package(null, Error.TableNotFoundException))));
+        assert Arrays.equals("ok".getBytes(), results.get(0).getData());
+        assert results.get(1).getErr().getMessage().equals(Error.TableNotFoundException.getMessage());
+
+        String[] params = Encoder.decodeParams(Encoder.encodeExecute(7, new String[]{"a", ""}));
+        assert Arrays.equals(new String[]{"a", ""}, params);
+    }
+
+    @Test
+    public void testMalformedCounts() throws Exception {
+        // 对端声称的条目数和长度远大于实际的数据，不能按它分配内存
+        byte[] hugeCount = ByteBuffer.allocate(8).putInt(Integer.MAX_VALUE).putInt(1).array();
+        byte[] hugeLength = ByteBuffer.allocate(9).putInt(1).putInt(Integer.MAX_VALUE).put((byte) 0).array();
+        byte[] negative = ByteBuffer.allocate(8).putInt(-1).putInt(0).array();
+        assertInvalid(() -> Encoder.decodeBatch(hugeCount));
+        assertInvalid(() -> Encoder.decodeBatch(hugeLength));
+        assertInvalid(() -> Encoder.decodeBatch(negative));
+        assertInvalid(() -> Encoder.decodeBatchResult(hugeCount));
+        byte[] hugeResult = ByteBuffer.allocate(9).putInt(1).put((byte) 0).putInt(Integer.MAX_VALUE).array();
+        assertInvalid(() -> Encoder.decodeBatchResult(hugeResult));
+        byte[] execute = ByteBuffer.allocate(12).putInt(1).putInt(Integer.MAX_VALUE).putInt(0).array();
+        assertInvalid(() -> Encoder.decodeParams(execute));
+    }
+
+    interface Decode {
+        void run() throws Exception;
+    }
+
+    private static void assertInvalid(Decode decode) {
+        try {
+            decode.run();
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.InvalidPkgDataException;
+        }
+    }
+}